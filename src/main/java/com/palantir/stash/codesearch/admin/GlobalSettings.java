@@ -35,6 +35,33 @@ public interface GlobalSettings extends Entity {
     public int getMaxConcurrentIndexing ();
     public void setMaxConcurrentIndexing (int value);
 
+    // Minimum number of concurrent indexing operations the adaptive limit may back off to
+    public static final int MIN_CONCURRENT_INDEXING_DEFAULT = 1;
+    public static final int MIN_CONCURRENT_INDEXING_LB = 1;
+    public static final int MIN_CONCURRENT_INDEXING_UB = 16;
+    @NotNull
+    @Default(MIN_CONCURRENT_INDEXING_DEFAULT + "")
+    public int getMinConcurrentIndexing ();
+    public void setMinConcurrentIndexing (int value);
+
+    // Maximum number of concurrent cat-file readers per indexing operation
+    public static final int CAT_FILE_PARALLELISM_DEFAULT = 4;
+    public static final int CAT_FILE_PARALLELISM_LB = 1;
+    public static final int CAT_FILE_PARALLELISM_UB = 16;
+    @NotNull
+    @Default(CAT_FILE_PARALLELISM_DEFAULT + "")
+    public int getCatFileParallelism ();
+    public void setCatFileParallelism (int value);
+
+    // Delay (in milliseconds) before a queued update job starts, restarted by each newer ref change
+    public static final int UPDATE_DEBOUNCE_DEFAULT = 0;
+    public static final int UPDATE_DEBOUNCE_LB = 0;
+    public static final int UPDATE_DEBOUNCE_UB = 10 * 60 * 1000;
+    @NotNull
+    @Default(UPDATE_DEBOUNCE_DEFAULT + "")
+    public int getUpdateDebounce ();
+    public void setUpdateDebounce (int value);
+
     // Maximum file size to index (in bytes)
     public static final int MAX_FILE_SIZE_DEFAULT = 256 * 1024;
     public static final int MAX_FILE_SIZE_LB = 1024;
@@ -44,6 +71,51 @@ public interface GlobalSettings extends Entity {
     public int getMaxFileSize ();
     public void setMaxFileSize (int value);
 
+    // Whether to store file contents once per blob, shared between repositories and forks
+    public static final boolean SHARED_BLOB_STORAGE_DEFAULT = false;
+    @NotNull
+    @Default(SHARED_BLOB_STORAGE_DEFAULT + "")
+    public boolean getSharedBlobStorage ();
+    public void setSharedBlobStorage (boolean value);
+
+    // Maximum number of actions per ElasticSearch bulk request
+    public static final int BULK_MAX_ACTIONS_DEFAULT = 500;
+    public static final int BULK_MAX_ACTIONS_LB = 1;
+    public static final int BULK_MAX_ACTIONS_UB = 10000;
+    @NotNull
+    @Default(BULK_MAX_ACTIONS_DEFAULT + "")
+    public int getBulkMaxActions ();
+    public void setBulkMaxActions (int value);
+
+    // Estimated payload size (in bytes) at which an ElasticSearch bulk request is sent
+    public static final int BULK_MAX_BYTES_DEFAULT = 10 * 1024 * 1024;
+    public static final int BULK_MAX_BYTES_LB = 64 * 1024;
+    public static final int BULK_MAX_BYTES_UB = 256 * 1024 * 1024;
+    @NotNull
+    @Default(BULK_MAX_BYTES_DEFAULT + "")
+    public int getBulkMaxBytes ();
+    public void setBulkMaxBytes (int value);
+
+    // Maximum number of bulk requests an indexing operation may have outstanding (0 to wait for
+    // each bulk request before continuing)
+    public static final int BULK_MAX_IN_FLIGHT_DEFAULT = 2;
+    public static final int BULK_MAX_IN_FLIGHT_LB = 0;
+    public static final int BULK_MAX_IN_FLIGHT_UB = 16;
+    @NotNull
+    @Default(BULK_MAX_IN_FLIGHT_DEFAULT + "")
+    public int getBulkMaxInFlight ();
+    public void setBulkMaxInFlight (int value);
+
+    // Time (in milliseconds) a shared bulk request waits for more updates from concurrent jobs
+    // before it is sent (0 for each job to send its own bulk requests)
+    public static final int BULK_LINGER_DEFAULT = 0;
+    public static final int BULK_LINGER_LB = 0;
+    public static final int BULK_LINGER_UB = 10 * 1000;
+    @NotNull
+    @Default(BULK_LINGER_DEFAULT + "")
+    public int getBulkLinger ();
+    public void setBulkLinger (int value);
+
     // Elasticsearch query timeout (in milliseconds)
     public static final int SEARCH_TIMEOUT_DEFAULT = 10000;
     public static final int SEARCH_TIMEOUT_LB = 1000;
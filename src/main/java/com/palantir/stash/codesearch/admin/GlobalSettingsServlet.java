@@ -4,6 +4,16 @@
 
 package com.palantir.stash.codesearch.admin;
 
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_MAX_ACTIONS_LB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_MAX_ACTIONS_UB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_MAX_BYTES_LB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_MAX_BYTES_UB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_LINGER_LB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_LINGER_UB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_MAX_IN_FLIGHT_LB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.BULK_MAX_IN_FLIGHT_UB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.CAT_FILE_PARALLELISM_LB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.CAT_FILE_PARALLELISM_UB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.COMMIT_BODY_BOOST_LB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.COMMIT_BODY_BOOST_UB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.COMMIT_HASH_BOOST_LB;
@@ -22,16 +32,22 @@ import static com.palantir.stash.codesearch.admin.GlobalSettings.MAX_MATCH_LINES
 import static com.palantir.stash.codesearch.admin.GlobalSettings.MAX_MATCH_LINES_UB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.MAX_PREVIEW_LINES_LB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.MAX_PREVIEW_LINES_UB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.MIN_CONCURRENT_INDEXING_LB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.MIN_CONCURRENT_INDEXING_UB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.PAGE_SIZE_LB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.PAGE_SIZE_UB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.SEARCH_TIMEOUT_LB;
 import static com.palantir.stash.codesearch.admin.GlobalSettings.SEARCH_TIMEOUT_UB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.UPDATE_DEBOUNCE_LB;
+import static com.palantir.stash.codesearch.admin.GlobalSettings.UPDATE_DEBOUNCE_UB;
 
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -50,6 +66,8 @@ import com.atlassian.stash.user.PermissionValidationService;
 import com.atlassian.stash.user.SecurityService;
 import com.atlassian.stash.util.Operation;
 import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.codesearch.updater.IndexingPriority;
+import com.palantir.stash.codesearch.updater.IndexingTenantStats;
 import com.palantir.stash.codesearch.updater.SearchUpdater;
 
 public class GlobalSettingsServlet extends HttpServlet {
@@ -149,6 +167,33 @@ public class GlobalSettingsServlet extends HttpServlet {
         return true;
     }
 
+    // Returns the indexing queue depth of each priority class, in priority order
+    private List<ImmutableMap<String, Object>> getQueueDepths() {
+        Map<IndexingPriority, Integer> depths = searchUpdater.getQueueDepths();
+        List<ImmutableMap<String, Object>> queues = new ArrayList<ImmutableMap<String, Object>>();
+        for (IndexingPriority priority : IndexingPriority.values()) {
+            Integer depth = depths.get(priority);
+            queues.add(ImmutableMap.<String, Object> of(
+                "name", priority.getDescription(),
+                "depth", depth == null ? 0 : depth));
+        }
+        return queues;
+    }
+
+    // Returns the indexing stats of each repository that has queued updates since startup
+    private List<ImmutableMap<String, Object>> getTenantStats() {
+        List<ImmutableMap<String, Object>> tenants = new ArrayList<ImmutableMap<String, Object>>();
+        for (IndexingTenantStats stats : searchUpdater.getTenantStats()) {
+            tenants.add(ImmutableMap.<String, Object> of(
+                "name", stats.getTenant(),
+                "queued", stats.getQueued(),
+                "running", stats.getRunning(),
+                "completed", stats.getCompleted(),
+                "busySeconds", stats.getBusyMs() / 1000));
+        }
+        return tenants;
+    }
+
     private void renderPage(HttpServletRequest req, HttpServletResponse resp,
         GlobalSettings globalSettings, Collection<? extends Object> errors)
         throws ServletException, IOException {
@@ -157,6 +202,8 @@ public class GlobalSettingsServlet extends HttpServlet {
             ImmutableMap<String, Object> data = new ImmutableMap.Builder<String, Object>()
                 .put("settings", globalSettings)
                 .put("errors", errors)
+                .put("queues", getQueueDepths())
+                .put("tenants", getTenantStats())
                 .build();
             soyTemplateRenderer.render(resp.getWriter(),
                 "com.palantir.stash.stash-code-search:codesearch-soy",
@@ -194,6 +241,33 @@ public class GlobalSettingsServlet extends HttpServlet {
         } catch (IllegalArgumentException e) {
             errors.add(e.getMessage());
         }
+        int minConcurrentIndexing = 0;
+        try {
+            minConcurrentIndexing = parseInt("Indexing Concurrency Floor",
+                MIN_CONCURRENT_INDEXING_LB, MIN_CONCURRENT_INDEXING_UB,
+                req.getParameter("minConcurrentIndexing"));
+            if (maxConcurrentIndexing > 0 && minConcurrentIndexing > maxConcurrentIndexing) {
+                throw new IllegalArgumentException(
+                    "Indexing Concurrency Floor must not exceed Indexing Concurrency Limit");
+            }
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        }
+        int catFileParallelism = 0;
+        try {
+            catFileParallelism = parseInt("Cat-file Parallelism",
+                CAT_FILE_PARALLELISM_LB, CAT_FILE_PARALLELISM_UB,
+                req.getParameter("catFileParallelism"));
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        }
+        int updateDebounce = 0;
+        try {
+            updateDebounce = parseInt("Update Debounce", UPDATE_DEBOUNCE_LB, UPDATE_DEBOUNCE_UB,
+                req.getParameter("updateDebounce"));
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        }
         int maxFileSize = 0;
         try {
             maxFileSize = parseInt("Max Filesize", MAX_FILE_SIZE_LB, MAX_FILE_SIZE_UB,
@@ -201,6 +275,35 @@ public class GlobalSettingsServlet extends HttpServlet {
         } catch (IllegalArgumentException e) {
             errors.add(e.getMessage());
         }
+        boolean sharedBlobStorage = "on".equals(req.getParameter("sharedBlobStorage"));
+        int bulkMaxActions = 0;
+        try {
+            bulkMaxActions = parseInt("Bulk Request Actions", BULK_MAX_ACTIONS_LB,
+                BULK_MAX_ACTIONS_UB, req.getParameter("bulkMaxActions"));
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        }
+        int bulkMaxBytes = 0;
+        try {
+            bulkMaxBytes = parseInt("Bulk Request Size", BULK_MAX_BYTES_LB, BULK_MAX_BYTES_UB,
+                req.getParameter("bulkMaxBytes"));
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        }
+        int bulkMaxInFlight = 0;
+        try {
+            bulkMaxInFlight = parseInt("Outstanding Bulk Requests", BULK_MAX_IN_FLIGHT_LB,
+                BULK_MAX_IN_FLIGHT_UB, req.getParameter("bulkMaxInFlight"));
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        }
+        int bulkLinger = 0;
+        try {
+            bulkLinger = parseInt("Shared Bulk Linger", BULK_LINGER_LB, BULK_LINGER_UB,
+                req.getParameter("bulkLinger"));
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        }
         int searchTimeout = 0;
         try {
             searchTimeout = parseInt("Search Timeout", SEARCH_TIMEOUT_LB, SEARCH_TIMEOUT_UB,
@@ -270,7 +373,9 @@ public class GlobalSettingsServlet extends HttpServlet {
         GlobalSettings settings;
         if (errors.isEmpty()) {
             settings = settingsManager.setGlobalSettings(indexingEnabled,
-                maxConcurrentIndexing, maxFileSize, searchTimeout, noHighlightExtensions,
+                maxConcurrentIndexing, minConcurrentIndexing, catFileParallelism, updateDebounce, maxFileSize,
+                sharedBlobStorage, bulkMaxActions, bulkMaxBytes, bulkMaxInFlight, bulkLinger,
+                searchTimeout, noHighlightExtensions,
                 maxPreviewLines, maxMatchLines, maxFragments, pageSize, commitHashBoost,
                 commitSubjectBoost, commitBodyBoost, fileNameBoost);
             // Trigger reindex is requested
@@ -13,7 +13,15 @@ public interface SettingsManager {
     GlobalSettings setGlobalSettings (
         boolean indexingEnabled,
         int maxConcurrentIndexing,
+        int minConcurrentIndexing,
+        int catFileParallelism,
+        int updateDebounce,
         int maxFileSize,
+        boolean sharedBlobStorage,
+        int bulkMaxActions,
+        int bulkMaxBytes,
+        int bulkMaxInFlight,
+        int bulkLinger,
         int searchTimeout,
         String noHighlightExtensions,
         int maxPreviewLines,
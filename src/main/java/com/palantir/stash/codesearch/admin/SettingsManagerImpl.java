@@ -44,7 +44,15 @@ public class SettingsManagerImpl implements SettingsManager {
     public GlobalSettings setGlobalSettings (
             boolean indexingEnabled,
             int maxConcurrentIndexing,
+            int minConcurrentIndexing,
+            int catFileParallelism,
+            int updateDebounce,
             int maxFileSize,
+            boolean sharedBlobStorage,
+            int bulkMaxActions,
+            int bulkMaxBytes,
+            int bulkMaxInFlight,
+            int bulkLinger,
             int searchTimeout,
             String noHighlightExtensions,
             int maxPreviewLines,
@@ -63,7 +71,15 @@ public class SettingsManagerImpl implements SettingsManager {
         if (settings.length > 0) {
             settings[0].setIndexingEnabled(indexingEnabled);
             settings[0].setMaxConcurrentIndexing(maxConcurrentIndexing);
+            settings[0].setMinConcurrentIndexing(minConcurrentIndexing);
+            settings[0].setCatFileParallelism(catFileParallelism);
+            settings[0].setUpdateDebounce(updateDebounce);
             settings[0].setMaxFileSize(maxFileSize);
+            settings[0].setSharedBlobStorage(sharedBlobStorage);
+            settings[0].setBulkMaxActions(bulkMaxActions);
+            settings[0].setBulkMaxBytes(bulkMaxBytes);
+            settings[0].setBulkMaxInFlight(bulkMaxInFlight);
+            settings[0].setBulkLinger(bulkLinger);
             settings[0].setSearchTimeout(searchTimeout);
             settings[0].setNoHighlightExtensions(noHighlightExtensions);
             settings[0].setMaxPreviewLines(maxPreviewLines);
@@ -84,7 +100,15 @@ public class SettingsManagerImpl implements SettingsManager {
             return ao.create(GlobalSettings.class, new DBParam("GLOBAL_SETTINGS_ID", ID),
                 new DBParam("INDEXING_ENABLED", indexingEnabled),
                 new DBParam("MAX_CONCURRENT_INDEXING", maxConcurrentIndexing),
+                new DBParam("MIN_CONCURRENT_INDEXING", minConcurrentIndexing),
+                new DBParam("CAT_FILE_PARALLELISM", catFileParallelism),
+                new DBParam("UPDATE_DEBOUNCE", updateDebounce),
                 new DBParam("MAX_FILE_SIZE", maxFileSize),
+                new DBParam("SHARED_BLOB_STORAGE", sharedBlobStorage),
+                new DBParam("BULK_MAX_ACTIONS", bulkMaxActions),
+                new DBParam("BULK_MAX_BYTES", bulkMaxBytes),
+                new DBParam("BULK_MAX_IN_FLIGHT", bulkMaxInFlight),
+                new DBParam("BULK_LINGER", bulkLinger),
                 new DBParam("SEARCH_TIMEOUT", searchTimeout),
                 new DBParam("NO_HIGHLIGHT_EXTENSIONS", noHighlightExtensions),
                 new DBParam("MAX_PREVIEW_LINES", maxPreviewLines),
@@ -0,0 +1,17 @@
+/**
+ * Receives the outcome of every bulk request flushed by a RequestBuffer, e.g. to adapt indexing
+ * concurrency to the load on the cluster.
+ */
+
+package com.palantir.stash.codesearch.elasticsearch;
+
+public interface BulkFeedback {
+
+    /**
+     * Called after a bulk request of the specified number of actions completes (or fails). The
+     * number of rejections counts the actions refused because the cluster's bulk thread pool
+     * was saturated.
+     */
+    void bulkCompleted(int actions, long latencyMs, int rejections);
+
+}
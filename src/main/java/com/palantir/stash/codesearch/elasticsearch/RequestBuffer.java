@@ -1,35 +1,170 @@
 /**
- * Class that automatically queues and submits ElasticSearch requests via BulkRequests. This class
- * is _not_ thread-safe.
+ * Class that automatically queues and submits ElasticSearch requests via BulkRequests. A bulk is
+ * sent once it holds maxActions requests, or once its estimated payload reaches maxBytes (so a
+ * few large files don't make for an oversized bulk). This class is _not_ thread-safe.
+ *
+ * Bulks are sent asynchronously, so the caller can keep producing requests while earlier bulks
+ * are being indexed. At most maxInFlight bulks are outstanding at a time: sending another one
+ * blocks until the oldest completes. flush() sends the remaining requests and waits for every
+ * outstanding bulk. If a bulk request fails, the next call that sends or flushes throws its
+ * exception. With maxInFlight = 0, each bulk is awaited as soon as it is sent.
+ *
+ * If a BulkFeedback is given, it is told the latency and the number of rejected actions of every
+ * bulk request.
+ *
+ * If a SharedBulkBatcher is given, bulks are submitted to it instead of being sent directly, so
+ * that the small bulks of concurrent jobs are combined. Limits and retries work the same way.
+ *
+ * A request added with addBarrier() is written before anything added after it: no later bulk is
+ * sent until the bulk holding it (and any retry of it) has completed, and the next call that
+ * sends or flushes throws if it failed permanently. Later requests in its own bulk are only
+ * ordered after it if they are routed to the same shard, where bulk items are applied in order.
+ *
+ * Items that fail for transient reasons are resubmitted with exponential backoff, up to
+ * MAX_RETRIES times (see isRetryable()). The retries are sent along with later bulks, and flush()
+ * waits for them. Requests for the same document are written in the order they were added: a bulk
+ * holding a request for a document that an outstanding bulk (or retry) also writes isn't sent
+ * until those have completed, with every retry they need.
+ * Items that fail for any other reason, or keep failing, are counted by getFailedCount(): callers
+ * must not consider their updates complete while it is nonzero. Deletes that removed an existing
+ * document are counted by getDeletedCount().
  */
 
 package com.palantir.stash.codesearch.elasticsearch;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import com.google.common.collect.Sets;
 
 public class RequestBuffer {
 
+    private static final int DEFAULT_MAX_ACTIONS = 500;
+
+    private static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 0;
+
+    // Maximum number of times a transiently failing item is resubmitted
+    static final int MAX_RETRIES = 5;
+
+    // Backoff before the first retry of an item, doubled for each further retry
+    static final long RETRY_BASE_DELAY_MS = 100;
+
+    // Item waiting to be resubmitted
+    private static class Retry {
+
+        private final ActionRequest request;
+
+        private final int attempt;
+
+        private final long notBefore;
+
+        private Retry(ActionRequest request, int attempt, long notBefore) {
+            this.request = request;
+            this.attempt = attempt;
+            this.notBefore = notBefore;
+        }
+    }
+
     private final Client client;
 
-    private final int size;
+    private final int maxActions;
+
+    private final long maxBytes;
+
+    private final int maxInFlight;
+
+    private final BulkFeedback feedback;
+
+    // Batcher to submit bulks to (null to send them directly)
+    private final SharedBulkBatcher batcher;
+
+    // One permit per bulk that may be outstanding
+    private final Semaphore inFlight;
 
     private BulkRequestBuilder bulkRequest;
 
+    // First failure of an outstanding bulk, not yet thrown (guarded by inFlight)
+    private RuntimeException failure;
+
+    // Items waiting to be resubmitted (guarded by inFlight)
+    private final List<Retry> retries;
+
+    // Retry attempt of each resubmitted item that hasn't completed yet (guarded by inFlight)
+    private final Map<ActionRequest, Integer> retryAttempts;
+
+    // Number of requests for each document (see getDocumentKey()) in outstanding bulks or waiting
+    // to be resubmitted (guarded by inFlight)
+    private final Map<String, Integer> outstandingDocuments;
+
+    // Items that failed permanently, and the first reason (guarded by inFlight)
+    private int failedCount;
+    private String failureMessage;
+
+    // Deletes that found the document they removed (guarded by inFlight)
+    private long deletedCount;
+
+    // Barrier request that hasn't been sent yet, or whose bulk hasn't completed
+    private ActionRequest barrier;
+
+    // Whether the current bulk holds the barrier
+    private boolean barrierPending;
+
+    // Totals of the bulks sent so far
+    private int bulkCount;
+    private long actionCount;
+    private long byteCount;
+    private int sizeLimitedCount;
+
     public RequestBuffer (Client client) {
-        this(client, 500);
+        this(client, DEFAULT_MAX_ACTIONS);
+    }
+
+    public RequestBuffer (Client client, int maxActions) {
+        this(client, maxActions, DEFAULT_MAX_BYTES, DEFAULT_MAX_IN_FLIGHT, null);
     }
 
-    public RequestBuffer (Client client, int size) {
+    public RequestBuffer (Client client, int maxActions, long maxBytes, int maxInFlight,
+        BulkFeedback feedback) {
+        this(client, maxActions, maxBytes, maxInFlight, feedback, null);
+    }
+
+    public RequestBuffer (Client client, int maxActions, long maxBytes, int maxInFlight,
+        BulkFeedback feedback, SharedBulkBatcher batcher) {
         this.client = client;
-        this.size = size;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.maxInFlight = maxInFlight;
+        this.feedback = feedback;
+        this.batcher = batcher;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.retries = new ArrayList<Retry>();
+        this.retryAttempts = new IdentityHashMap<ActionRequest, Integer>();
+        this.outstandingDocuments = new HashMap<String, Integer>();
         this.bulkRequest = client.prepareBulk();
     }
 
@@ -63,20 +198,436 @@ public class RequestBuffer {
         flushIfNeeded();
     }
 
-    public BulkResponse flushIfNeeded () {
-        if (bulkRequest.numberOfActions() >= size) {
-            return flush();
+    // Adds a request that must be written before any request added after it (see above)
+    public void addBarrier (IndexRequestBuilder req) {
+        bulkRequest.add(req);
+        synchronized (inFlight) {
+            barrier = req.request();
+        }
+        barrierPending = true;
+        flushIfNeeded();
+    }
+
+    public void flushIfNeeded () {
+        if (bulkRequest.numberOfActions() >= maxActions) {
+            send();
+        } else if (bulkRequest.request().estimatedSizeInBytes() >= maxBytes) {
+            ++sizeLimitedCount;
+            send();
         }
-        return null;
     }
 
-    public BulkResponse flush () {
-        BulkResponse resp = null;
+    // Sends the remaining requests and waits for all outstanding bulks and retries to complete
+    public void flush () {
         if (bulkRequest.numberOfActions() > 0) {
-            resp = bulkRequest.get();
+            send();
+        }
+        awaitRetries();
+    }
+
+    // Waits for all outstanding bulks, resubmitting their failed items until none is left to
+    // retry. Must be called with an empty current bulk.
+    private void awaitRetries () {
+        while (true) {
+            awaitOutstanding();
+            long delay = getNextRetryDelay(System.currentTimeMillis());
+            if (delay < 0) {
+                return;
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abandonRetries("Interrupted while waiting to retry");
+                    return;
+                }
+            }
+            addDueRetries(System.currentTimeMillis());
+            if (bulkRequest.numberOfActions() > 0) {
+                sendBulk(false);
+            }
+        }
+    }
+
+    // Returns the index/type/id of the document a request writes (null if it has no ID)
+    private static String getDocumentKey (ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            IndexRequest req = (IndexRequest) request;
+            return req.id() == null ? null : req.index() + "/" + req.type() + "/" + req.id();
+        } else if (request instanceof DeleteRequest) {
+            DeleteRequest req = (DeleteRequest) request;
+            return req.index() + "/" + req.type() + "/" + req.id();
+        } else if (request instanceof UpdateRequest) {
+            UpdateRequest req = (UpdateRequest) request;
+            return req.index() + "/" + req.type() + "/" + req.id();
+        }
+        return null;
+    }
+
+    // Returns true iff an outstanding bulk or retry writes a document that one of the requests
+    // writes
+    private boolean isOutstanding (List<ActionRequest> requests) {
+        synchronized (inFlight) {
+            if (outstandingDocuments.isEmpty()) {
+                return false;
+            }
+            for (ActionRequest request : requests) {
+                String key = getDocumentKey(request);
+                if (key != null && outstandingDocuments.containsKey(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Must hold the inFlight lock
+    private void addOutstanding (ActionRequest request) {
+        String key = getDocumentKey(request);
+        if (key != null) {
+            Integer count = outstandingDocuments.get(key);
+            outstandingDocuments.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    // Must hold the inFlight lock
+    private void removeOutstanding (ActionRequest request) {
+        String key = getDocumentKey(request);
+        Integer count = key == null ? null : outstandingDocuments.get(key);
+        if (count == null) {
+            return;
+        } else if (count > 1) {
+            outstandingDocuments.put(key, count - 1);
+        } else {
+            outstandingDocuments.remove(key);
+        }
+    }
+
+    // Moves the items whose backoff has elapsed to the current bulk
+    private void addDueRetries (long now) {
+        synchronized (inFlight) {
+            Iterator<Retry> it = retries.iterator();
+            while (it.hasNext()) {
+                Retry retry = it.next();
+                if (retry.notBefore <= now) {
+                    it.remove();
+                    bulkRequest.request().add(retry.request);
+                    retryAttempts.put(retry.request, retry.attempt);
+                }
+            }
+        }
+    }
+
+    // Returns the time until the next retry is due (0 if one is due, -1 if none is waiting)
+    private long getNextRetryDelay (long now) {
+        synchronized (inFlight) {
+            long delay = -1;
+            for (Retry retry : retries) {
+                long retryDelay = Math.max(0, retry.notBefore - now);
+                delay = delay < 0 ? retryDelay : Math.min(delay, retryDelay);
+            }
+            return delay;
+        }
+    }
+
+    // Counts the items waiting to be resubmitted as failed
+    private void abandonRetries (String reason) {
+        synchronized (inFlight) {
+            if (!retries.isEmpty()) {
+                recordPermanentFailure(reason);
+                failedCount += retries.size() - 1;
+                for (Retry retry : retries) {
+                    removeOutstanding(retry.request);
+                }
+                retries.clear();
+            }
+        }
+    }
+
+    // Must hold the inFlight lock
+    private void recordPermanentFailure (String reason) {
+        ++failedCount;
+        if (failureMessage == null) {
+            failureMessage = reason;
+        }
+    }
+
+    /**
+     * Handles a failed item: schedules it for another attempt if the failure is transient and it
+     * hasn't been retried MAX_RETRIES times yet, or counts it as failed otherwise. Returns true
+     * iff it will be retried. Must hold the inFlight lock.
+     */
+    private boolean itemFailed (ActionRequest request, Integer prevAttempt, boolean retryable,
+        String reason, long now) {
+        int attempt = prevAttempt == null ? 1 : prevAttempt + 1;
+        if (!retryable || attempt > MAX_RETRIES) {
+            recordPermanentFailure(reason);
+            if (request == barrier && failure == null) {
+                failure = new IllegalStateException("Barrier request failed: " + reason);
+            }
+            return false;
+        }
+        retries.add(new Retry(request, attempt, now + (RETRY_BASE_DELAY_MS << (attempt - 1))));
+        return true;
+    }
+
+    // Inspects the items of a completed bulk (see itemFailed()), counting successful deletes
+    private void bulkCompleted (List<ActionRequest> requests, BulkResponse resp) {
+        long now = System.currentTimeMillis();
+        synchronized (inFlight) {
+            Set<ActionRequest> retrying = Sets.newIdentityHashSet();
+            for (BulkItemResponse item : resp.getItems()) {
+                ActionRequest request = requests.get(item.getItemId());
+                Integer prevAttempt = retryAttempts.remove(request);
+                if (item.isFailed()) {
+                    if (itemFailed(request, prevAttempt, isRetryable(request, item.getFailure()),
+                        item.getFailureMessage(), now)) {
+                        retrying.add(request);
+                    }
+                } else if (item.getResponse() instanceof DeleteResponse &&
+                    ((DeleteResponse) item.getResponse()).isFound()) {
+                    ++deletedCount;
+                }
+            }
+            for (ActionRequest request : requests) {
+                if (!retrying.contains(request)) {
+                    removeOutstanding(request);
+                }
+            }
+        }
+    }
+
+    // Handles a bulk that was rejected as a whole by a node with a full bulk queue
+    private void bulkRejected (List<ActionRequest> requests, Throwable e) {
+        long now = System.currentTimeMillis();
+        synchronized (inFlight) {
+            for (ActionRequest request : requests) {
+                if (!itemFailed(request, retryAttempts.remove(request), true, e.toString(), now)) {
+                    removeOutstanding(request);
+                }
+            }
+        }
+    }
+
+    // Throws the failure of an earlier bulk, if there is one
+    private void throwFailure () {
+        RuntimeException e;
+        synchronized (inFlight) {
+            e = failure;
+            failure = null;
+        }
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private void awaitOutstanding () {
+        int permits = Math.max(1, maxInFlight);
+        inFlight.acquireUninterruptibly(permits);
+        inFlight.release(permits);
+        throwFailure();
+    }
+
+    /**
+     * Sends the buffered requests as one bulk, once fewer than maxInFlight bulks are outstanding.
+     * If an outstanding bulk or retry writes one of their documents, the bulk waits for those to
+     * complete. Otherwise, the retries that are due are sent along with it.
+     */
+    private void send () {
+        throwFailure();
+        boolean sendingBarrier = barrierPending;
+        barrierPending = false;
+        if (isOutstanding(bulkRequest.request().requests())) {
+            BulkRequestBuilder held = bulkRequest;
             bulkRequest = client.prepareBulk();
+            try {
+                awaitRetries();
+            } finally {
+                bulkRequest = held;
+            }
+            throwFailure();
+        } else {
+            addDueRetries(System.currentTimeMillis());
+        }
+        sendBulk(sendingBarrier);
+    }
+
+    // Sends the buffered requests as one bulk, once fewer than maxInFlight bulks are outstanding
+    private void sendBulk (boolean sendingBarrier) {
+        final int actions = bulkRequest.numberOfActions();
+        final long startTime = System.currentTimeMillis();
+        ++bulkCount;
+        actionCount += actions;
+        final long bytes = bulkRequest.request().estimatedSizeInBytes();
+        byteCount += bytes;
+
+        inFlight.acquireUninterruptibly();
+        BulkRequestBuilder sending = bulkRequest;
+        bulkRequest = client.prepareBulk();
+        final List<ActionRequest> requests = sending.request().requests();
+        synchronized (inFlight) {
+            for (ActionRequest request : requests) {
+                // Resubmitted items are still outstanding from their first attempt
+                if (!retryAttempts.containsKey(request)) {
+                    addOutstanding(request);
+                }
+            }
+        }
+        ActionListener<BulkResponse> listener = new ActionListener<BulkResponse>() {
+
+            @Override
+            public void onResponse (BulkResponse resp) {
+                try {
+                    if (feedback != null) {
+                        // Shared bulks report ElasticSearch's time for the combined bulk, so
+                        // that the linger isn't mistaken for load on the cluster
+                        long latencyMs = batcher != null ? resp.getTookInMillis()
+                            : System.currentTimeMillis() - startTime;
+                        feedback.bulkCompleted(actions, latencyMs, countRejections(resp));
+                    }
+                    bulkCompleted(requests, resp);
+                } finally {
+                    inFlight.release();
+                }
+            }
+
+            @Override
+            public void onFailure (Throwable e) {
+                try {
+                    // The whole request is refused if the bulk queue of a node is full
+                    boolean rejected = ExceptionsHelper.unwrapCause(e)
+                        instanceof EsRejectedExecutionException;
+                    if (feedback != null) {
+                        feedback.bulkCompleted(actions,
+                            System.currentTimeMillis() - startTime, rejected ? actions : 0);
+                    }
+                    if (rejected) {
+                        bulkRejected(requests, e);
+                        return;
+                    }
+                    synchronized (inFlight) {
+                        if (failure == null) {
+                            failure = e instanceof RuntimeException ? (RuntimeException) e
+                                : new RuntimeException("Bulk request failed", e);
+                        }
+                        for (ActionRequest request : requests) {
+                            retryAttempts.remove(request);
+                            removeOutstanding(request);
+                        }
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            }
+        };
+        try {
+            if (batcher != null) {
+                batcher.submit(requests, bytes, listener);
+            } else {
+                sending.execute(listener);
+            }
+        } catch (RuntimeException e) {
+            synchronized (inFlight) {
+                for (ActionRequest request : requests) {
+                    retryAttempts.remove(request);
+                    removeOutstanding(request);
+                }
+            }
+            inFlight.release();
+            throw e;
+        }
+        if (sendingBarrier) {
+            // Also waits for retries, which includes the barrier's if it failed transiently
+            try {
+                awaitRetries();
+            } finally {
+                synchronized (inFlight) {
+                    barrier = null;
+                }
+            }
+        } else if (maxInFlight == 0) {
+            awaitOutstanding();
+        }
+    }
+
+    // Returns the number of bulks sent
+    public int getBulkCount () {
+        return bulkCount;
+    }
+
+    // Returns the number of actions sent in bulks
+    public long getActionCount () {
+        return actionCount;
+    }
+
+    // Returns the estimated payload size (in bytes) of the bulks sent
+    public long getByteCount () {
+        return byteCount;
+    }
+
+    // Returns the number of bulks sent because they reached maxBytes before maxActions
+    public int getSizeLimitedCount () {
+        return sizeLimitedCount;
+    }
+
+    // Returns the number of items that failed permanently (including exhausted retries)
+    public int getFailedCount () {
+        synchronized (inFlight) {
+            return failedCount;
+        }
+    }
+
+    // Returns the number of deletes that removed an existing document
+    public long getDeletedCount () {
+        synchronized (inFlight) {
+            return deletedCount;
+        }
+    }
+
+    // Returns the failure message of the first item that failed permanently (null if none did)
+    public String getFailureMessage () {
+        synchronized (inFlight) {
+            return failureMessage;
+        }
+    }
+
+    // Returns the number of bulk items that were rejected by a saturated thread pool
+    private static int countRejections (BulkResponse resp) {
+        if (!resp.hasFailures()) {
+            return 0;
+        }
+        int rejections = 0;
+        for (BulkItemResponse item : resp.getItems()) {
+            if (item.isFailed() && isRejection(item.getFailure())) {
+                ++rejections;
+            }
+        }
+        return rejections;
+    }
+
+    // ElasticSearch 1.1 reports executions rejected by a saturated thread pool (and unavailable
+    // shards) as SERVICE_UNAVAILABLE; it has no TOO_MANY_REQUESTS status yet
+    private static boolean isRejection (BulkItemResponse.Failure failure) {
+        return failure.getStatus() == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Returns true iff an item that failed with the given failure may succeed if resubmitted:
+     *
+     * - Items rejected by a saturated thread pool are always retried.
+     * - Version conflicts of updates are only retried here if the update doesn't retry them
+     *   itself (retryOnConflict); otherwise ElasticSearch has already retried it, and retrying
+     *   again would multiply the attempts.
+     * - Version conflicts of index and delete requests come from an explicit version or op type,
+     *   which a retry would fail again, so they aren't retried.
+     */
+    private static boolean isRetryable (ActionRequest request, BulkItemResponse.Failure failure) {
+        if (isRejection(failure)) {
+            return true;
         }
-        return resp;
+        return failure.getStatus() == RestStatus.CONFLICT &&
+            request instanceof UpdateRequest && ((UpdateRequest) request).retryOnConflict() == 0;
     }
 
 }
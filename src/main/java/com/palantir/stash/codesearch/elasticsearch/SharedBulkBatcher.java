@@ -0,0 +1,246 @@
+/**
+ * Process-wide batcher that combines the bulk requests of concurrent update jobs. Most pushes
+ * change a handful of files, so each job on its own would send a bulk request of a few actions.
+ * With batching enabled (see GlobalSettings.getBulkLinger()), a RequestBuffer submits its bulks
+ * here instead, and the batcher sends them as one bulk request once the combined bulk reaches the
+ * configured action or size limit, or once its first submission has waited for the linger time.
+ * The limits and linger time are read from the settings once per combined bulk, when its first
+ * submission arrives.
+ *
+ * Every submission gets its own response, holding the items of its requests renumbered from 0
+ * (with the tookInMillis that ElasticSearch reported for the combined bulk request), or the
+ * failure of the combined bulk request. A job therefore still knows when its own requests are
+ * written.
+ */
+
+package com.palantir.stash.codesearch.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.admin.SettingsManager;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class SharedBulkBatcher implements DisposableBean {
+
+    // Requests of one bulk submitted by a RequestBuffer
+    private static class Submission {
+
+        private final List<ActionRequest> requests;
+
+        private final ActionListener<BulkResponse> listener;
+
+        private Submission(List<ActionRequest> requests, ActionListener<BulkResponse> listener) {
+            this.requests = requests;
+            this.listener = listener;
+        }
+    }
+
+    private final ElasticSearch es;
+
+    private final SettingsManager settingsManager;
+
+    private final Logger log;
+
+    private final ScheduledExecutorService lingerExecutor;
+
+    // Submissions of the combined bulk being assembled (guarded by this)
+    private List<Submission> pending;
+    private int pendingActions;
+    private long pendingBytes;
+
+    // Settings of the combined bulk being assembled (null if nothing is pending)
+    private GlobalSettings pendingSettings;
+
+    // Sends the combined bulk once its linger time has elapsed (null if nothing is pending)
+    private ScheduledFuture<?> lingerFlush;
+
+    // Totals of the combined bulks sent so far (guarded by this)
+    private long bulkCount;
+    private long submissionCount;
+
+    public SharedBulkBatcher(ElasticSearch es, SettingsManager settingsManager,
+        PluginLoggerFactory plf) {
+        this.es = es;
+        this.settingsManager = settingsManager;
+        this.log = plf.getLogger(this.getClass().toString());
+        this.lingerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "codesearch-bulk-linger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.pending = new ArrayList<Submission>();
+    }
+
+    /**
+     * Adds the requests of a bulk (of the specified estimated size) to the combined bulk. The
+     * listener is called once they have been written (or have failed).
+     */
+    public void submit(List<ActionRequest> requests, long estimatedBytes,
+        ActionListener<BulkResponse> listener) {
+        GlobalSettings globalSettings;
+        synchronized (this) {
+            globalSettings = pendingSettings;
+        }
+        if (globalSettings == null) {
+            globalSettings = settingsManager.getGlobalSettings();
+        }
+        List<Submission> batch = null;
+        synchronized (this) {
+            if (pendingSettings == null) {
+                pendingSettings = globalSettings;
+            }
+            globalSettings = pendingSettings;
+            pending.add(new Submission(requests, listener));
+            pendingActions += requests.size();
+            pendingBytes += estimatedBytes;
+            if (pendingActions >= globalSettings.getBulkMaxActions() ||
+                pendingBytes >= globalSettings.getBulkMaxBytes()) {
+                batch = takePending();
+            } else if (lingerFlush == null) {
+                try {
+                    lingerFlush = lingerExecutor.schedule(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            sendPending();
+                        }
+                    }, globalSettings.getBulkLinger(), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down, so there is nothing to wait for
+                    batch = takePending();
+                }
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    // Removes and returns the pending submissions. Must hold the lock.
+    private List<Submission> takePending() {
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        List<Submission> batch = pending;
+        pending = new ArrayList<Submission>();
+        pendingActions = 0;
+        pendingBytes = 0;
+        pendingSettings = null;
+        ++bulkCount;
+        submissionCount += batch.size();
+        return batch;
+    }
+
+    private void sendPending() {
+        List<Submission> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        send(batch);
+    }
+
+    private void send(final List<Submission> batch) {
+        try {
+            BulkRequestBuilder bulkRequest = es.getClient().prepareBulk();
+            for (Submission submission : batch) {
+                for (ActionRequest request : submission.requests) {
+                    bulkRequest.request().add(request);
+                }
+            }
+            bulkRequest.execute(new ActionListener<BulkResponse>() {
+
+                @Override
+                public void onResponse(BulkResponse resp) {
+                    long tookMs = resp.getTookInMillis();
+                    BulkItemResponse[] items = resp.getItems();
+                    int offset = 0;
+                    for (Submission submission : batch) {
+                        int count = submission.requests.size();
+                        BulkItemResponse[] submissionItems = new BulkItemResponse[count];
+                        for (int i = 0; i < count; ++i) {
+                            submissionItems[i] = renumber(items[offset + i], i);
+                        }
+                        offset += count;
+                        respond(submission, new BulkResponse(submissionItems, tookMs));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    fail(batch, e);
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(batch, e);
+        }
+    }
+
+    private static BulkItemResponse renumber(BulkItemResponse item, int itemId) {
+        if (item.isFailed()) {
+            return new BulkItemResponse(itemId, item.getOpType(), item.getFailure());
+        }
+        return new BulkItemResponse(itemId, item.getOpType(), item.<ActionResponse>getResponse());
+    }
+
+    // Listeners are called separately, so that one job's error can't affect the others
+    private void respond(Submission submission, BulkResponse resp) {
+        try {
+            submission.listener.onResponse(resp);
+        } catch (Throwable e) {
+            log.error("Caught error handling shared bulk response", e);
+        }
+    }
+
+    private void fail(List<Submission> batch, Throwable cause) {
+        for (Submission submission : batch) {
+            try {
+                submission.listener.onFailure(cause);
+            } catch (Throwable e) {
+                log.error("Caught error handling shared bulk failure", e);
+            }
+        }
+    }
+
+    // Returns the number of combined bulks sent
+    public synchronized long getBulkCount() {
+        return bulkCount;
+    }
+
+    // Returns the number of bulks submitted by request buffers that have been sent
+    public synchronized long getSubmissionCount() {
+        return submissionCount;
+    }
+
+    @Override
+    public void destroy() {
+        lingerExecutor.shutdownNow();
+        // Don't leave jobs waiting for a linger that won't end
+        sendPending();
+    }
+
+}
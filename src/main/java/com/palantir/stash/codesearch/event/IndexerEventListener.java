@@ -4,9 +4,14 @@
 
 package com.palantir.stash.codesearch.event;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import com.atlassian.event.api.EventListener;
 import com.atlassian.stash.event.RepositoryDeletedEvent;
 import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.repository.Branch;
 import com.atlassian.stash.repository.RefChange;
 import com.atlassian.stash.repository.RefChangeType;
 import com.atlassian.stash.repository.Repository;
@@ -25,17 +30,28 @@ public class IndexerEventListener {
         this.updater = updater;
     }
 
+    // All refs changed by a push are processed by a single repository job. Updated refs come
+    // before new ones, so that new refs can be seeded from freshly updated refs.
     @EventListener
     public void refChangeListener(RepositoryRefsChangedEvent event) {
         Repository repository = event.getRepository();
+        Map<String, Branch> branchMap = repositoryServiceManager.getBranchMap(repository);
+        List<String> updatedRefs = new ArrayList<String>();
+        List<String> addedRefs = new ArrayList<String>();
+        List<String> deletedRefs = new ArrayList<String>();
         for (RefChange change : event.getRefChanges()) {
             if (change.getType() == RefChangeType.DELETE) {
-                updater.submitAsyncReindex(repository, change.getRefId(), 0);
-            } else if (repositoryServiceManager.getBranchMap(repository)
-                .containsKey(change.getRefId())) {
-                updater.submitAsyncUpdate(repository, change.getRefId(), 0);
+                deletedRefs.add(change.getRefId());
+            } else if (branchMap.containsKey(change.getRefId())) {
+                if (change.getType() == RefChangeType.ADD) {
+                    addedRefs.add(change.getRefId());
+                } else {
+                    updatedRefs.add(change.getRefId());
+                }
             }
         }
+        updatedRefs.addAll(addedRefs);
+        updater.submitAsyncRepositoryUpdate(repository, updatedRefs, deletedRefs, 0);
     }
 
     @EventListener
@@ -1,14 +1,22 @@
 /**
  * Static factory class for building codesearch ES filter objects.
+ *
+ * Ref membership is stored in child documents ("commitref" and "fileref", one per document and
+ * ref) rather than in the commit and file documents themselves. Ref filters on commits and files
+ * therefore match documents with a matching membership child.
  */
 
 package com.palantir.stash.codesearch.search;
 
 import static org.elasticsearch.index.query.FilterBuilders.boolFilter;
+import static org.elasticsearch.index.query.FilterBuilders.hasChildFilter;
 import static org.elasticsearch.index.query.FilterBuilders.matchAllFilter;
 import static org.elasticsearch.index.query.FilterBuilders.orFilter;
+import static org.elasticsearch.index.query.FilterBuilders.prefixFilter;
 import static org.elasticsearch.index.query.FilterBuilders.rangeFilter;
+import static org.elasticsearch.index.query.FilterBuilders.regexpFilter;
 import static org.elasticsearch.index.query.FilterBuilders.termFilter;
+import static org.elasticsearch.index.query.FilterBuilders.termsFilter;
 import static org.elasticsearch.index.query.FilterBuilders.typeFilter;
 
 import java.security.MessageDigest;
@@ -20,6 +28,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.elasticsearch.index.query.BoolFilterBuilder;
 import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.RangeFilterBuilder;
+import org.elasticsearch.index.query.TermsFilterBuilder;
 import org.joda.time.ReadableInstant;
 import org.slf4j.Logger;
 
@@ -45,7 +54,14 @@ public class SearchFilterUtils {
         };
     }
 
-    public FilterBuilder exactRefFilter(String ref) {
+    // Matches commits and files with a membership child that matches the filter. has_child
+    // results depend on other documents, so only the inner filter is cached.
+    private FilterBuilder membershipFilter(FilterBuilder filter) {
+        return orFilter(hasChildFilter("commitref", filter), hasChildFilter("fileref", filter));
+    }
+
+    // Matches ref membership documents of exactly the specified ref
+    public FilterBuilder exactRefMembershipFilter(String ref) {
         return termFilter("refs.untouched", ref)
             .cache(true)
             .cacheKey("CACHE^EXACTREFFILTER^" + ref);
@@ -59,26 +75,28 @@ public class SearchFilterUtils {
             .cacheKey("CACHE^PROJECTREPOFILTER^" + project + "^" + repository);
     }
 
-    public FilterBuilder aclFilter(Map<String, Repository> repoMap) {
-        if (repoMap.isEmpty()) {
-            return boolFilter().mustNot(matchAllFilter());
-        }
-
-        // Compute cryptographic hash of repository set to use for cache key
+    // Computes a cryptographic hash of the repository set to use for cache keys (null on error)
+    private String getAclHash(Map<String, Repository> repoMap) {
         String[] projectRepoPairs = repoMap.keySet().toArray(new String[repoMap.size()]);
         Arrays.sort(projectRepoPairs);
-        String filterHash;
         try {
             MessageDigest hasher = MessageDigest.getInstance("SHA-256");
             for (String pair : projectRepoPairs) {
                 hasher.update(pair.getBytes());
                 hasher.update((byte) 0);
             }
-            filterHash = new String(Base64.encodeBase64(hasher.digest()));
+            return new String(Base64.encodeBase64(hasher.digest()));
         } catch (Exception e) {
-            filterHash = null;
             log.error("Caught exception generating ACL hash -- caching is disabled.", e);
+            return null;
         }
+    }
+
+    public FilterBuilder aclFilter(Map<String, Repository> repoMap) {
+        if (repoMap.isEmpty()) {
+            return boolFilter().mustNot(matchAllFilter());
+        }
+        String filterHash = getAclHash(repoMap);
 
         // Create disjunction of individual repo ACL filters
         BoolFilterBuilder filter = boolFilter();
@@ -94,6 +112,58 @@ public class SearchFilterUtils {
         return filter;
     }
 
+    /**
+     * Matches shared blobs referenced by a repository that the user can see (repoMap is null iff
+     * no permission validation is required) and that passes the project and repository filters.
+     * Blobs list the project^repository of every repository referencing them.
+     */
+    public FilterBuilder blobRepositoryFilter(Map<String, Repository> repoMap, String[] projects,
+        String[] repositories) {
+        BoolFilterBuilder filter = boolFilter();
+        if (repoMap != null) {
+            String filterHash = getAclHash(repoMap);
+            TermsFilterBuilder aclFilter = termsFilter("repositories", repoMap.keySet());
+            if (filterHash != null) {
+                aclFilter.cache(true)
+                    .cacheKey("CACHE^BLOBACLFILTER^" + filterHash);
+            } else {
+                aclFilter.cache(false);
+            }
+            filter.must(aclFilter);
+        }
+        BoolFilterBuilder projectFilter = boolFilter();
+        boolean projectAdded = false;
+        for (String project : projects) {
+            project = project.trim();
+            if (!project.isEmpty()) {
+                projectFilter.should(prefixFilter("repositories", project + "^"));
+                projectAdded = true;
+            }
+        }
+        BoolFilterBuilder repositoryFilter = boolFilter();
+        boolean repositoryAdded = false;
+        for (String repository : repositories) {
+            repository = repository.trim();
+            if (!repository.isEmpty()) {
+                repositoryFilter.should(regexpFilter("repositories",
+                    ".*" + escapeRegexp("^" + repository)));
+                repositoryAdded = true;
+            }
+        }
+        return filter
+            .must(projectAdded ? projectFilter : matchAllFilter())
+            .must(repositoryAdded ? repositoryFilter : matchAllFilter());
+    }
+
+    // Escapes every character of a string for use in a Lucene regular expression
+    private static String escapeRegexp(String string) {
+        StringBuilder escaped = new StringBuilder(string.length() * 2);
+        for (int i = 0; i < string.length(); ++i) {
+            escaped.append('\\').append(string.charAt(i));
+        }
+        return escaped.toString();
+    }
+
     public FilterBuilder refFilter(String[] refs) {
         return refFilter(toIterable(refs));
     }
@@ -126,7 +196,10 @@ public class SearchFilterUtils {
             filter.should(refFilter);
             filterAdded = true;
         }
-        return filterAdded ? filter : matchAllFilter();
+        // Without refs there is nothing to join against. Documents that are no longer on any ref
+        // (which are kept until their repository is purged, so that re-adding them is cheap) may
+        // match, and are left out when the page of hits is rendered.
+        return filterAdded ? membershipFilter(filter) : matchAllFilter();
     }
 
     public FilterBuilder projectFilter(String[] projects) {
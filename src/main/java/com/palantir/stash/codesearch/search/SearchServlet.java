@@ -7,8 +7,12 @@ package com.palantir.stash.codesearch.search;
 import static com.palantir.stash.codesearch.elasticsearch.ElasticSearch.ES_SEARCHALIAS;
 import static org.elasticsearch.index.query.FilterBuilders.andFilter;
 import static org.elasticsearch.index.query.FilterBuilders.boolFilter;
+import static org.elasticsearch.index.query.FilterBuilders.idsFilter;
 import static org.elasticsearch.index.query.FilterBuilders.matchAllFilter;
+import static org.elasticsearch.index.query.FilterBuilders.termsFilter;
 import static org.elasticsearch.index.query.FilterBuilders.typeFilter;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.constantScoreQuery;
 import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 import static org.elasticsearch.index.query.QueryBuilders.queryString;
@@ -21,7 +25,10 @@ import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -31,6 +38,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.FilterBuilder;
@@ -88,6 +96,14 @@ public class SearchServlet extends HttpServlet {
 
     private static final double[] PERCENTILES = { 1.0, 5.0, 25.0, 50.0, 75.0, 95.0, 99.0 };
 
+    // Maximum number of matching shared blobs to join with their file documents
+    private static final int MAX_JOINED_BLOBS = 10000;
+
+    // Ref memberships of a page of search hits are scanned in batches of this size (per shard)
+    private static final int HIT_REFS_SCROLL_SIZE = 1000;
+
+    private static final TimeValue HIT_REFS_SCROLL_TIMEOUT = TimeValue.timeValueSeconds(30);
+
     private final ApplicationPropertiesService propertiesService;
 
     private final ElasticSearch es;
@@ -144,14 +160,14 @@ public class SearchServlet extends HttpServlet {
     }
 
     // Returns map view of search hits for soy templates
-    // Not sure this is actually safe at all.  Jerry thought so.
-    @SuppressWarnings("unchecked")
     private ImmutableMap<String, Object> searchHitToDataMap(
         SearchHit hit,
         Map<String, Repository> repoMap, // null iff no permission validation required
         int maxPreviewLines,
         int maxMatchLines,
-        ImmutableSet<String> noHighlight) {
+        ImmutableSet<String> noHighlight,
+        Map<String, SearchHit> blobHits, // shared blob hits (for files without contents)
+        Map<String, Set<String>> hitRefs) {
         ImmutableMap.Builder<String, Object> hitData = new ImmutableMap.Builder<String, Object>();
         Map<String, Object> hitSource = hit.getSource();
 
@@ -179,15 +195,12 @@ public class SearchServlet extends HttpServlet {
             repoObject.getSlug().equals(repository)) {
 
             // Generate refs array
-            ImmutableSortedSet<String> refSet;
-            try {
-                refSet = ImmutableSortedSet.copyOf((Iterable<String>) hitSource.get("refs"));
-            } catch (Exception e) {
-                log.warn("Invalid refs collection detected for element in {}/{}", project, repository, e);
-                return null;
-            }
+            ImmutableSortedSet<String> refSet = hitRefs.containsKey(hit.getId())
+                ? ImmutableSortedSet.copyOf(hitRefs.get(hit.getId()))
+                : ImmutableSortedSet.<String>of();
             if (refSet.isEmpty()) {
-                log.warn("Detected empty refs collection for element in {}/{}", project, repository);
+                // Documents that are no longer on any ref only match searches without a ref filter
+                log.debug("Skipping hit without refs in {}/{}", project, repository);
                 return null;
             }
             hitData.put("refs", refSet);
@@ -207,13 +220,19 @@ public class SearchServlet extends HttpServlet {
                     .put("authorEmail", getStringFromMap(hitSource, "authoremail"));
 
             } else if (type.equals("file")) {
-                HighlightField highlightField = hit.getHighlightFields().get("contents");
+                // Files in shared blob storage take their contents from the blob document
+                SearchHit contentsHit = hit;
+                if (!hitSource.containsKey("contents") &&
+                    blobHits.containsKey(getStringFromMap(hitSource, "blob"))) {
+                    contentsHit = blobHits.get(getStringFromMap(hitSource, "blob"));
+                }
+                HighlightField highlightField = contentsHit.getHighlightFields().get("contents");
                 String path = getStringFromMap(hitSource, "path");
                 String primaryRef = "refs/heads/master";
                 if (!refSet.contains(primaryRef)) {
                     primaryRef = refSet.iterator().next();
                 }
-                String contents = getStringFromMap(hitSource, "contents");
+                String contents = getStringFromMap(contentsHit.getSource(), "contents");
                 SourceSearch searchedContents = SourceSearch.search(
                     contents, highlightField, 1, maxPreviewLines, maxMatchLines);
                 String extension = getStringFromMap(hitSource, "extension");
@@ -237,6 +256,108 @@ public class SearchServlet extends HttpServlet {
         return hitData.build();
     }
 
+    // Returns the refs of each hit (from its ref membership documents), keyed by document ID. The
+    // memberships are scanned, since a page of hits on a repository with many branches easily has
+    // more of them than a single search should return.
+    private Map<String, Set<String>> getHitRefs(SearchHit[] hits, TimeValue searchTimeout) {
+        Map<String, Set<String>> hitRefs = new HashMap<String, Set<String>>();
+        if (hits.length == 0) {
+            return hitRefs;
+        }
+        Set<String> ids = new LinkedHashSet<String>();
+        for (SearchHit hit : hits) {
+            ids.add(hit.getId());
+        }
+        try {
+            SearchResponse refResp = es.getClient().prepareSearch(ES_SEARCHALIAS)
+                .setTypes("commitref", "fileref")
+                .setSearchType(SearchType.SCAN)
+                .setScroll(HIT_REFS_SCROLL_TIMEOUT)
+                .setQuery(filteredQuery(matchAllQuery(), termsFilter("document", ids)))
+                .setSize(HIT_REFS_SCROLL_SIZE)
+                .setTimeout(searchTimeout)
+                .setFetchSource(new String[] { "document", "refs" }, null)
+                .get();
+            while (true) {
+                refResp = es.getClient().prepareSearchScroll(refResp.getScrollId())
+                    .setScroll(HIT_REFS_SCROLL_TIMEOUT)
+                    .get();
+                SearchHit[] refHits = refResp.getHits().getHits();
+                if (refHits.length == 0) {
+                    break;
+                }
+                for (SearchHit refHit : refHits) {
+                    Map<String, Object> refSource = refHit.getSource();
+                    String id = getStringFromMap(refSource, "document");
+                    if (!hitRefs.containsKey(id)) {
+                        hitRefs.put(id, new LinkedHashSet<String>());
+                    }
+                    hitRefs.get(id).add(getStringFromMap(refSource, "refs"));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Caught error fetching refs of search hits", e);
+        }
+        return hitRefs;
+    }
+
+    // Returns (at most MAX_JOINED_BLOBS) shared blobs that match the query and the filter, or null
+    // on error. The total hit count tells whether any matching blobs were left out.
+    private SearchHits searchSharedBlobs(QueryBuilder contentsQuery, FilterBuilder blobFilter,
+        TimeValue searchTimeout) {
+        try {
+            return es.getClient().prepareSearch(ES_SEARCHALIAS)
+                .setTypes("blob")
+                .setQuery(filteredQuery(contentsQuery, blobFilter))
+                .setSize(MAX_JOINED_BLOBS)
+                .setTimeout(searchTimeout)
+                .setFetchSource(false)
+                .get()
+                .getHits();
+        } catch (Exception e) {
+            log.warn("Caught error searching shared blobs", e);
+            return null;
+        }
+    }
+
+    // Fetches the shared blobs of the file hits that have no contents of their own, keyed by
+    // hash. Contents are highlighted with contentsQuery (if not null).
+    private Map<String, SearchHit> getSharedBlobHits(SearchHit[] hits, QueryBuilder contentsQuery,
+        int maxFragments, TimeValue searchTimeout) {
+        Map<String, SearchHit> blobHits = new HashMap<String, SearchHit>();
+        Set<String> blobs = new LinkedHashSet<String>();
+        for (SearchHit hit : hits) {
+            Map<String, Object> hitSource = hit.getSource();
+            if (hit.getType().equals("file") && !hitSource.containsKey("contents")) {
+                blobs.add(getStringFromMap(hitSource, "blob"));
+            }
+        }
+        if (blobs.isEmpty()) {
+            return blobHits;
+        }
+        try {
+            SearchRequestBuilder blobReq = es.getClient().prepareSearch(ES_SEARCHALIAS)
+                .setTypes("blob")
+                .setQuery(filteredQuery(matchAllQuery(),
+                    idsFilter("blob").ids(blobs.toArray(new String[blobs.size()]))))
+                .setSize(blobs.size())
+                .setTimeout(searchTimeout)
+                .setFetchSource(true);
+            if (contentsQuery != null) {
+                blobReq.setHighlighterQuery(contentsQuery)
+                    .setHighlighterPreTags("\u0001")
+                    .setHighlighterPostTags("\u0001")
+                    .addHighlightedField("contents", 1, maxFragments);
+            }
+            for (SearchHit blobHit : blobReq.get().getHits().getHits()) {
+                blobHits.put(blobHit.getId(), blobHit);
+            }
+        } catch (Exception e) {
+            log.warn("Caught error fetching shared blobs", e);
+        }
+        return blobHits;
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException {
@@ -283,9 +404,12 @@ public class SearchServlet extends HttpServlet {
         long searchTime = 0;
         SearchHit[] currentHits = {};
         String error = "";
+        // Set if some files with matching contents were left out of the results
+        boolean blobsTruncated = false;
         ArrayList<ImmutableMap<String, Object>> hitArray =
             new ArrayList<ImmutableMap<String, Object>>(currentHits.length);
         ImmutableMap<String, Object> statistics = ImmutableMap.of();
+        QueryBuilder contentsQuery = null;
         if (params.doSearch) {
             // Repo map is null iff user is a system administrator (don't need to validate permissions).
             ImmutableMap<String, Repository> repoMap;
@@ -329,8 +453,41 @@ public class SearchServlet extends HttpServlet {
                     }
                     if (params.searchCode) {
                         queryStringQuery.field("file.contents", 1);
+                        contentsQuery = queryString(params.searchString)
+                            .analyzeWildcard(true)
+                            .lenient(true)
+                            .defaultOperator(QueryStringQueryBuilder.Operator.AND)
+                            .field("contents");
                     }
                     query = queryStringQuery;
+
+                    // With shared blob storage, file documents carry no contents. Find the
+                    // matching blobs of repositories the user can search first and match the
+                    // files that contain them (which can't be scored by their contents, so they
+                    // all get the same score).
+                    if (contentsQuery != null && globalSettings.getSharedBlobStorage()) {
+                        SearchHits blobHits = searchSharedBlobs(contentsQuery,
+                            sf.blobRepositoryFilter(repoMap, params.projectKeys.split(","),
+                                params.repoNames.split(",")),
+                            searchTimeout);
+                        Set<String> matchingBlobs = new LinkedHashSet<String>();
+                        if (blobHits != null) {
+                            for (SearchHit blobHit : blobHits.getHits()) {
+                                matchingBlobs.add(blobHit.getId());
+                            }
+                            if (blobHits.getTotalHits() > matchingBlobs.size()) {
+                                log.info("Only joining {} of {} matching blobs",
+                                    matchingBlobs.size(), blobHits.getTotalHits());
+                                blobsTruncated = true;
+                            }
+                        }
+                        if (!matchingBlobs.isEmpty()) {
+                            query = boolQuery()
+                                .should(queryStringQuery)
+                                .should(constantScoreQuery(andFilter(
+                                    typeFilter("file"), termsFilter("blob", matchingBlobs))));
+                        }
+                    }
                 }
                 FilterBuilder filter = andFilter(
                     boolFilter().must(
@@ -443,9 +600,12 @@ public class SearchServlet extends HttpServlet {
             }
 
             // Iterate through current page of search hits
+            Map<String, SearchHit> blobHits =
+                getSharedBlobHits(currentHits, contentsQuery, maxFragments, searchTimeout);
+            Map<String, Set<String>> hitRefs = getHitRefs(currentHits, searchTimeout);
             for (SearchHit hit : currentHits) {
                 ImmutableMap<String, Object> hitData = searchHitToDataMap(
-                    hit, repoMap, maxPreviewLines, maxMatchLines, noHighlight);
+                    hit, repoMap, maxPreviewLines, maxMatchLines, noHighlight, blobHits, hitRefs);
                 if (hitData != null) {
                     hitArray.add(hitData);
                 }
@@ -470,6 +630,8 @@ public class SearchServlet extends HttpServlet {
                 .put("hitArray", hitArray)
                 .put("statistics", statistics)
                 .put("error", error)
+                .put("blobsTruncated", blobsTruncated)
+                .put("maxJoinedBlobs", MAX_JOINED_BLOBS)
                 .put("fullUri", fullUri)
                 .put("baseUrl", propertiesService.getBaseUrl().toASCIIString())
                 .put("resultFrom", Math.min(totalHits, params.page * pageSize + 1))
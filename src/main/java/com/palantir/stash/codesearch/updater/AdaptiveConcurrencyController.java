@@ -0,0 +1,210 @@
+/**
+ * Adapts the number of concurrent indexing jobs to the load on the ElasticSearch cluster, using
+ * additive increase / multiplicative decrease (AIMD). Update jobs report every bulk request they
+ * flush. Once per ADJUSTMENT_INTERVAL_MS, the controller looks at the bulks reported since the
+ * last adjustment: if any action was rejected, or bulks took longer than TARGET_BULK_LATENCY_MS
+ * on average, the limit is halved; otherwise it grows by one. The limit always stays between the
+ * MinConcurrentIndexing floor and the MaxConcurrentIndexing ceiling of the global settings, and
+ * starts at the ceiling.
+ *
+ * The search updater applies the limit to its semaphore (see
+ * SearchUpdater.refreshConcurrencyLimit). Bulks are reported from ElasticSearch's listener
+ * threads, so reporting one only adds it to the current window: reading the settings, adjusting
+ * the limit and applying it run on the controller's own executor.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.google.common.base.Ticker;
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.admin.SettingsManager;
+import com.palantir.stash.codesearch.elasticsearch.BulkFeedback;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class AdaptiveConcurrencyController implements BulkFeedback, DisposableBean {
+
+    // Minimum time between two adjustments of the limit
+    static final long ADJUSTMENT_INTERVAL_MS = 10 * 1000;
+
+    // Average bulk latency above which the cluster is considered overloaded
+    static final long TARGET_BULK_LATENCY_MS = 2000;
+
+    private final Logger log;
+
+    private final SettingsManager settingsManager;
+
+    private final Ticker ticker;
+
+    // Adjusts the limit, off the threads that report bulks
+    private final Executor executor;
+
+    // Updater to notify when the limit changes (null until one registers)
+    private SearchUpdater searchUpdater;
+
+    // Whether an adjustment has been handed to the executor but hasn't run yet
+    private boolean adjustmentPending;
+
+    // Current limit (0 until first requested)
+    private int limit;
+
+    // Bulks reported since the last adjustment
+    private long windowStart;
+    private int bulks;
+    private long totalLatencyMs;
+    private int windowRejections;
+
+    public AdaptiveConcurrencyController(SettingsManager settingsManager,
+        PluginLoggerFactory plf) {
+        this(settingsManager, plf, Ticker.systemTicker(),
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "codesearch-concurrency-adjuster");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+    }
+
+    AdaptiveConcurrencyController(SettingsManager settingsManager, PluginLoggerFactory plf,
+        Ticker ticker, Executor executor) {
+        this.log = plf.getLogger(this.getClass().toString());
+        this.settingsManager = settingsManager;
+        this.ticker = ticker;
+        this.executor = executor;
+        this.limit = 0;
+        this.windowStart = now();
+    }
+
+    public synchronized void setSearchUpdater(SearchUpdater searchUpdater) {
+        this.searchUpdater = searchUpdater;
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    // Returns the current limit, clamped to the configured floor and ceiling
+    public int getConcurrencyLimit() {
+        GlobalSettings globalSettings = settingsManager.getGlobalSettings();
+        return getConcurrencyLimit(globalSettings.getMinConcurrentIndexing(),
+            globalSettings.getMaxConcurrentIndexing());
+    }
+
+    private synchronized int getConcurrencyLimit(int floor, int ceiling) {
+        floor = Math.min(floor, ceiling);
+        int clamped = limit == 0 ? ceiling : Math.max(floor, Math.min(ceiling, limit));
+        if (clamped != limit) {
+            if (limit != 0) {
+                log.info("Clamping indexing concurrency from {} to {} (bounds {}-{})",
+                    limit, clamped, floor, ceiling);
+            }
+            limit = clamped;
+        }
+        return limit;
+    }
+
+    @Override
+    public void bulkCompleted(int actions, long latencyMs, int rejections) {
+        synchronized (this) {
+            if (!addToWindow(latencyMs, rejections, now()) || searchUpdater == null ||
+                adjustmentPending) {
+                return;
+            }
+            adjustmentPending = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    adjustAndNotify();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The controller is shutting down
+            synchronized (this) {
+                adjustmentPending = false;
+            }
+        }
+    }
+
+    // Adjusts the limit and notifies the updater if it changed. Runs on the controller's executor.
+    private void adjustAndNotify() {
+        SearchUpdater updater;
+        boolean changed;
+        try {
+            GlobalSettings globalSettings = settingsManager.getGlobalSettings();
+            synchronized (this) {
+                changed = adjust(now(),
+                    globalSettings.getMinConcurrentIndexing(),
+                    globalSettings.getMaxConcurrentIndexing());
+                updater = searchUpdater;
+            }
+        } finally {
+            synchronized (this) {
+                adjustmentPending = false;
+            }
+        }
+        // Not holding the lock, since the updater reads the limit back
+        if (changed && updater != null) {
+            updater.refreshConcurrencyLimit();
+        }
+    }
+
+    // Adds a bulk to the current window. Returns true iff the window has ended.
+    private synchronized boolean addToWindow(long latencyMs, int rejections, long now) {
+        ++bulks;
+        totalLatencyMs += latencyMs;
+        windowRejections += rejections;
+        return now - windowStart >= ADJUSTMENT_INTERVAL_MS;
+    }
+
+    // Adjusts the limit from the bulks of the window that has ended, and starts a new window.
+    // Returns true iff the limit changed.
+    private synchronized boolean adjust(long now, int floor, int ceiling) {
+        if (bulks == 0 || now - windowStart < ADJUSTMENT_INTERVAL_MS) {
+            return false;
+        }
+
+        int prevLimit = getConcurrencyLimit(floor, ceiling);
+        long avgLatencyMs = totalLatencyMs / bulks;
+        int newLimit;
+        if (windowRejections > 0 || avgLatencyMs > TARGET_BULK_LATENCY_MS) {
+            newLimit = Math.max(Math.min(floor, ceiling), prevLimit / 2);
+        } else {
+            newLimit = Math.min(ceiling, prevLimit + 1);
+        }
+        if (newLimit != prevLimit) {
+            log.info("Adjusting indexing concurrency from {} to {} ({} bulks, {}ms average " +
+                "latency, {} rejected actions)", prevLimit, newLimit, bulks, avgLatencyMs,
+                windowRejections);
+            limit = newLimit;
+        }
+
+        windowStart = now;
+        bulks = 0;
+        totalLatencyMs = 0;
+        windowRejections = 0;
+        return newLimit != prevLimit;
+    }
+
+    @Override
+    public void destroy() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+
+}
@@ -1,13 +1,23 @@
 /**
- * Class that reads batch output from cat-file.
+ * Class that reads batch output from cat-file. File contents are handed to a listener as soon as
+ * they are read, so callers never need to hold more than one file in memory at a time.
+ *
+ * The handler expects the default output format of "git cat-file --batch", where each object is
+ * preceded by a "<sha> <type> <size>" header (or "<sha> missing" if the object does not exist).
+ * Objects that are not blobs or that exceed the maximum file size are skipped in the stream, so a
+ * single cat-file pass is enough to both filter and read files.
+ *
+ * Contents are read into a buffer borrowed from a ReadBufferPool, which is returned once all
+ * objects have been read (see releaseBuffer()). Apart from the listener's own work, reading an
+ * object allocates nothing.
  */
 
 package com.palantir.stash.codesearch.updater;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collection;
 
 import org.slf4j.Logger;
 
@@ -15,59 +25,66 @@ import com.atlassian.stash.scm.CommandOutputHandler;
 import com.atlassian.utils.process.Watchdog;
 import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
 
-class CatFileOutputHandler implements CommandOutputHandler<String[]> {
+class CatFileOutputHandler implements CommandOutputHandler<Integer> {
 
-    private final Logger log;
+    /**
+     * Receives the contents of each file read from cat-file, in the order the objects were fed to
+     * cat-file. Contents are null for binary files. Objects that were skipped (missing, not a
+     * blob, or too large) are not passed to the listener. The contents refer to the handler's
+     * buffer, so they must not be used after the listener returns.
+     */
+    interface FileListener {
 
-    private static final boolean[] BINARY_BYTES = new boolean[256];
+        void processFile(int index, FileContents contents) throws IOException;
 
-    static {
-        for (int i = 0; i <= 8; ++i) {
-            BINARY_BYTES[i] = true;
-        }
-        for (int i = 14; i <= 31; ++i) {
-            BINARY_BYTES[i] = true;
-        }
-        BINARY_BYTES[127] = true;
     }
 
-    private static boolean isBinary(byte b) {
-        if (b < 0) {
-            return BINARY_BYTES[256 + b];
-        }
-        return BINARY_BYTES[b];
-    }
+    static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_HEADER_LENGTH = 256;
 
-    private final Collection<Integer> fileSizes;
+    private final Logger log;
 
-    private Collection<String> outputFiles;
+    private final int maxFileSize;
 
-    private int maxFileSize;
+    private final FileListener listener;
+
+    private final ReadBufferPool bufferPool;
+
+    private Integer objectsRead;
+
+    // Buffer for object contents (null until the first object is read)
+    private byte[] buffer;
+
+    // Buffer for header lines
+    private final byte[] header;
 
-    // TODO: unused
     private Watchdog watchdog;
 
-    public CatFileOutputHandler(PluginLoggerFactory plf) {
-        this(plf, new ArrayList<Integer>());
+    public CatFileOutputHandler(PluginLoggerFactory plf, int maxFileSize, FileListener listener) {
+        this(plf, maxFileSize, listener, new ReadBufferPool());
     }
 
-    public CatFileOutputHandler(PluginLoggerFactory plf, Collection<Integer> fileSizes) {
+    public CatFileOutputHandler(PluginLoggerFactory plf, int maxFileSize, FileListener listener,
+        ReadBufferPool bufferPool) {
         this.log = plf.getLogger(this.getClass().toString());
-        this.fileSizes = fileSizes;
-        this.outputFiles = new ArrayList<String>();
-        this.maxFileSize = 0;
+        this.maxFileSize = maxFileSize;
+        this.listener = listener;
+        this.bufferPool = bufferPool;
+        this.objectsRead = 0;
+        this.header = new byte[MAX_HEADER_LENGTH];
     }
 
-    public boolean addFile(int fileSize) {
-        if (fileSizes.add(fileSize)) {
-            maxFileSize = Math.max(maxFileSize, fileSize);
-        }
-        return false;
+    // Returns the handler's buffer to the pool. Reading more objects borrows a new one.
+    public void releaseBuffer() {
+        bufferPool.release(buffer);
+        buffer = null;
     }
 
+    // Returns the number of objects read from cat-file (null if reading failed)
     @Override
-    public String[] getOutput() {
-        return outputFiles == null ? null : outputFiles.toArray(new String[outputFiles.size()]);
+    public Integer getOutput() {
+        return objectsRead;
     }
 
     @Override
@@ -79,41 +96,140 @@ class CatFileOutputHandler implements CommandOutputHandler<String[]> {
         this.watchdog = watchdog;
     }
 
-    @Override
-    public void process(InputStream is) {
-        byte[] buffer = new byte[maxFileSize + 2];
-        try {
-            for (int fileSize : fileSizes) {
-                if (watchdog != null) {
-                    watchdog.resetWatchdog();
+    // Reads a single header line into the header buffer, returning its length (-1 at the end of
+    // the stream)
+    private int readHeader(InputStream is) throws IOException {
+        int length = 0;
+        int c;
+        while ((c = is.read()) != '\n') {
+            if (c < 0) {
+                if (length == 0) {
+                    return -1;
                 }
+                throw new EOFException("Unexpected end of cat-file output in header");
+            }
+            if (length >= MAX_HEADER_LENGTH) {
+                throw new IOException("cat-file header exceeds " + MAX_HEADER_LENGTH + " bytes");
+            }
+            header[length++] = (byte) c;
+        }
+        return length;
+    }
 
-                // read fileSize bytes
-                is.read(); // clear newline
-                int offset = 0;
-                while ((offset += is.read(buffer, offset, fileSize - offset)) < fileSize)
-                    ;
-                is.read(); // clear newline
-
-                // Check for binary bytes
-                boolean binary = false;
-                for (int i = 0; i < fileSize; ++i) {
-                    if (isBinary(buffer[i])) {
-                        binary = true;
-                        break;
-                    }
-                }
+    // Returns the position of the next space in the header (-1 if there is none)
+    private int indexOfSpace(int from, int length) {
+        for (int i = from; i < length; ++i) {
+            if (header[i] == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isBlobType(int from, int to) {
+        return to - from == 4 && header[from] == 'b' && header[from + 1] == 'l' &&
+            header[from + 2] == 'o' && header[from + 3] == 'b';
+    }
 
-                // Add output string
-                if (binary) {
-                    outputFiles.add(null);
-                } else {
-                    outputFiles.add(new String(buffer, 0, fileSize));
+    // Parses the object size at the end of the header (at most 18 digits, so it fits a long)
+    private long parseSize(int from, int to) throws IOException {
+        if (from == to || to - from > 18) {
+            throw new IOException("Malformed cat-file header: " +
+                new String(header, 0, to, "UTF-8"));
+        }
+        long size = 0;
+        for (int i = from; i < to; ++i) {
+            int digit = header[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Malformed cat-file header: " +
+                    new String(header, 0, to, "UTF-8"));
+            }
+            size = size * 10 + digit;
+        }
+        return size;
+    }
+
+    private static void readFully(InputStream is, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = is.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of cat-file output in object contents");
+            }
+            offset += read;
+        }
+    }
+
+    private static void skipFully(InputStream is, long length) throws IOException {
+        while (length > 0) {
+            long skipped = is.skip(length);
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new EOFException("Unexpected end of cat-file output in object contents");
                 }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Reads a single object from cat-file output, handing it to the listener if it is a text file
+     * within the filesize limit. Returns false if the stream ended before a new object header.
+     */
+    boolean readObject(InputStream is, int index) throws IOException {
+        int headerLength = readHeader(is);
+        if (headerLength < 0) {
+            return false;
+        }
+        if (watchdog != null) {
+            watchdog.resetWatchdog();
+        }
+
+        // Parse "<sha> <type> <size>" header
+        int typeStart = indexOfSpace(0, headerLength) + 1;
+        int typeEnd = typeStart > 0 ? indexOfSpace(typeStart, headerLength) : -1;
+        if (typeEnd < 0 || indexOfSpace(typeEnd + 1, headerLength) >= 0) {
+            // Missing object, nothing follows the header
+            return true;
+        }
+        long fileSize = parseSize(typeEnd + 1, headerLength);
+
+        // Discard objects that we don't want to index
+        if (fileSize > maxFileSize || !isBlobType(typeStart, typeEnd)) {
+            skipFully(is, fileSize + 1); // contents & trailing newline
+            return true;
+        }
+
+        // read fileSize bytes
+        int size = (int) fileSize;
+        if (buffer == null || buffer.length < size) {
+            releaseBuffer();
+            buffer = bufferPool.acquire(size);
+        }
+        readFully(is, buffer, size);
+        if (is.read() < 0) { // clear newline
+            throw new EOFException("Unexpected end of cat-file output after object contents");
+        }
+
+        // Check for binary bytes and hand file off to listener
+        listener.processFile(index, FileContents.fromBytes(buffer, size));
+        return true;
+    }
+
+    @Override
+    public void process(InputStream rawStream) {
+        InputStream is = new BufferedInputStream(rawStream, INITIAL_BUFFER_SIZE);
+        try {
+            int count = 0;
+            while (readObject(is, count)) {
+                objectsRead = ++count;
             }
         } catch (IOException e) {
             log.error("Error reading output from cat-file, aborting", e);
-            outputFiles = null;
+            objectsRead = null;
+        } finally {
+            releaseBuffer();
         }
     }
 
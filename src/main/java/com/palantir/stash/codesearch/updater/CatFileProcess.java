@@ -0,0 +1,267 @@
+/**
+ * A long-running "git cat-file --batch" process for a single repository. Objects are requested by
+ * writing their hashes to the process's stdin, and their contents are read back from stdout by a
+ * CatFileOutputHandler. Instances are not thread-safe; see CatFileProcessPool for sharing them
+ * between update jobs.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.scm.Command;
+import com.atlassian.stash.scm.CommandInputHandler;
+import com.atlassian.stash.scm.CommandOutputHandler;
+import com.atlassian.stash.scm.git.GitCommandBuilderFactory;
+import com.atlassian.utils.process.Watchdog;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+class CatFileProcess {
+
+    private static final String EMPTY_TREE = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
+
+    // Max number of hashes to write before reading objects back (keeps stdin writes well within
+    // the pipe buffer so that we never block on git while git blocks on us)
+    private static final int WINDOW_SIZE = 64;
+
+    private static final long START_TIMEOUT_MS = 30000;
+
+    private final Logger log;
+
+    private final Repository repository;
+
+    private final CountDownLatch started;
+
+    private final CountDownLatch closed;
+
+    private final long createdMs;
+
+    private Future<?> commandFuture;
+
+    private volatile OutputStream stdin;
+
+    private volatile InputStream stdout;
+
+    private volatile Watchdog watchdog;
+
+    private long lastUsedMs;
+
+    private volatile boolean broken;
+
+    CatFileProcess(PluginLoggerFactory plf, Repository repository) {
+        this.log = plf.getLogger(this.getClass().toString());
+        this.repository = repository;
+        this.started = new CountDownLatch(2);
+        this.closed = new CountDownLatch(1);
+        this.createdMs = System.currentTimeMillis();
+        this.lastUsedMs = createdMs;
+        this.broken = false;
+    }
+
+    // Waits for the process to be closed, ignoring interrupts
+    private void awaitClose() {
+        while (true) {
+            try {
+                closed.await();
+                return;
+            } catch (InterruptedException e) {
+                // Keep waiting -- the pipes must stay open until close() is called
+            }
+        }
+    }
+
+    // Feeds the process's stdin, which is held open until the process is closed
+    private class InputHandler implements CommandInputHandler {
+
+        @Override
+        public void process(OutputStream os) {
+            stdin = new BufferedOutputStream(os);
+            started.countDown();
+            awaitClose();
+            try {
+                os.close();
+            } catch (IOException e) {
+                log.debug("Caught error closing cat-file stdin for {}", repository.getSlug(), e);
+            }
+        }
+
+        @Override
+        public void complete() {
+        }
+
+        @Override
+        public void setWatchdog(Watchdog watchdog) {
+        }
+    }
+
+    // Exposes the process's stdout to readers until the process is closed
+    private class OutputHandler implements CommandOutputHandler<Void> {
+
+        @Override
+        public Void getOutput() {
+            return null;
+        }
+
+        @Override
+        public void process(InputStream is) {
+            stdout = new BufferedInputStream(is, CatFileOutputHandler.INITIAL_BUFFER_SIZE);
+            started.countDown();
+            awaitClose();
+        }
+
+        @Override
+        public void complete() {
+        }
+
+        @Override
+        public void setWatchdog(Watchdog watchdog) {
+            CatFileProcess.this.watchdog = watchdog;
+        }
+    }
+
+    /**
+     * Starts the cat-file process on a thread from the specified executor. Returns true iff both
+     * pipes were opened successfully.
+     */
+    boolean start(GitCommandBuilderFactory builderFactory, ExecutorService executor) {
+        final Command<Void> command = builderFactory.builder(repository)
+            .command("cat-file")
+            .argument("--batch")
+            .inputHandler(new InputHandler())
+            .build(new OutputHandler());
+        commandFuture = executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    command.call();
+                } catch (Exception e) {
+                    log.warn("Persistent cat-file for {} exited abnormally",
+                        repository.getSlug(), e);
+                } finally {
+                    broken = true;
+                    closed.countDown();
+                }
+            }
+        });
+        try {
+            if (started.await(START_TIMEOUT_MS, TimeUnit.MILLISECONDS) && isHealthy()) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while starting cat-file for {}", repository.getSlug(), e);
+        }
+        close();
+        return false;
+    }
+
+    Repository getRepository() {
+        return repository;
+    }
+
+    long getCreatedMs() {
+        return createdMs;
+    }
+
+    long getLastUsedMs() {
+        return lastUsedMs;
+    }
+
+    // Prevents the Stash process watchdog from killing an idle process
+    void keepAlive() {
+        Watchdog wd = watchdog;
+        if (wd != null) {
+            wd.resetWatchdog();
+        }
+    }
+
+    boolean isHealthy() {
+        return !broken && closed.getCount() > 0 && commandFuture != null && !commandFuture.isDone();
+    }
+
+    /**
+     * Reads the specified objects through the output handler. Returns the number of objects read.
+     * If an IOException is thrown, the process is left in an undefined state and must be closed.
+     */
+    int read(List<String> objects, CatFileOutputHandler handler) throws IOException {
+        if (!isHealthy()) {
+            throw new IOException("cat-file process for " + repository.getSlug() + " is not running");
+        }
+        handler.setWatchdog(watchdog);
+        lastUsedMs = System.currentTimeMillis();
+        try {
+            int count = 0;
+            while (count < objects.size()) {
+                int windowEnd = Math.min(objects.size(), count + WINDOW_SIZE);
+                for (String object : objects.subList(count, windowEnd)) {
+                    stdin.write(object.getBytes("UTF-8"));
+                    stdin.write('\n');
+                }
+                stdin.flush();
+                for (; count < windowEnd; ++count) {
+                    if (!handler.readObject(stdout, count)) {
+                        throw new IOException("cat-file exited before returning all objects");
+                    }
+                }
+            }
+            return count;
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        } catch (RuntimeException e) {
+            broken = true;
+            throw e;
+        } finally {
+            lastUsedMs = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Requests the empty tree object and checks that cat-file responds with it. Returns true iff
+     * the process is usable.
+     */
+    boolean healthCheck() {
+        if (!isHealthy()) {
+            return false;
+        }
+        try {
+            stdin.write((EMPTY_TREE + "\n").getBytes("UTF-8"));
+            stdin.flush();
+            StringBuilder header = new StringBuilder();
+            int c;
+            while ((c = stdout.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("cat-file exited during health check");
+                }
+                header.append((char) c);
+            }
+            if (!header.toString().equals(EMPTY_TREE + " tree 0") || stdout.read() != '\n') {
+                throw new IOException("Unexpected cat-file health check response " + header);
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("cat-file health check failed for {}", repository.getSlug(), e);
+            broken = true;
+            return false;
+        }
+    }
+
+    // Closes stdin, causing cat-file to exit
+    void close() {
+        broken = true;
+        closed.countDown();
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+ * Pool of long-lived "git cat-file --batch" processes keyed by repository. Reusing processes across
+ * update jobs avoids paying the fork/exec and pack index warm-up cost on every small update.
+ *
+ * Processes are handed out exclusively to one job at a time. Idle processes are kept alive,
+ * health-checked and eventually evicted by a background maintenance task, which takes them out of
+ * the pool while checking them so that a slow process never blocks borrowers. The total number of
+ * processes (idle or in use) never exceeds MAX_PROCESSES; if the pool is exhausted, borrow()
+ * returns null and callers should fall back to a one-shot cat-file command.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.scm.git.GitCommandBuilderFactory;
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class CatFileProcessPool implements DisposableBean {
+
+    // Maximum number of cat-file processes alive at any time
+    public static final int MAX_PROCESSES = GlobalSettings.MAX_CONCURRENT_INDEXING_UB * 2;
+
+    // Idle processes are closed after this long without use
+    private static final long IDLE_TIMEOUT_MS = 2 * 60 * 1000;
+
+    // Processes are recycled after this long, even if they are in active use
+    private static final long MAX_AGE_MS = 30 * 60 * 1000;
+
+    private static final long MAINTENANCE_INTERVAL_MS = 15 * 1000;
+
+    private final PluginLoggerFactory plf;
+
+    private final Logger log;
+
+    // Idle processes for each repository ID, most recently used first
+    private final Map<Integer, Deque<CatFileProcess>> idleProcesses;
+
+    private final ExecutorService processExecutor;
+
+    private final ExecutorService readerExecutor;
+
+    private final ScheduledExecutorService maintenanceExecutor;
+
+    // Read buffers shared by the output handlers of all jobs
+    private final ReadBufferPool bufferPool;
+
+    private int processCount;
+
+    private boolean destroyed;
+
+    public CatFileProcessPool(PluginLoggerFactory plf) {
+        this.plf = plf;
+        this.log = plf.getLogger(this.getClass().toString());
+        this.idleProcesses = new HashMap<Integer, Deque<CatFileProcess>>();
+        this.processExecutor = Executors.newCachedThreadPool(newThreadFactory("cat-file"));
+        this.readerExecutor = Executors.newCachedThreadPool(newThreadFactory("cat-file-reader"));
+        this.maintenanceExecutor =
+            Executors.newSingleThreadScheduledExecutor(newThreadFactory("cat-file-maintenance"));
+        this.bufferPool = new ReadBufferPool();
+        this.processCount = 0;
+        this.destroyed = false;
+        maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    performMaintenance();
+                } catch (Throwable e) {
+                    log.error("Caught error during cat-file pool maintenance", e);
+                }
+            }
+        }, MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "codesearch-" + prefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // Removes and returns an idle process of any repository (null if none are idle)
+    private CatFileProcess removeLeastRecentlyUsedIdleProcess() {
+        CatFileProcess lru = null;
+        Deque<CatFileProcess> lruDeque = null;
+        for (Deque<CatFileProcess> deque : idleProcesses.values()) {
+            CatFileProcess candidate = deque.peekLast();
+            if (candidate != null &&
+                (lru == null || candidate.getLastUsedMs() < lru.getLastUsedMs())) {
+                lru = candidate;
+                lruDeque = deque;
+            }
+        }
+        if (lruDeque != null) {
+            lruDeque.pollLast();
+        }
+        return lru;
+    }
+
+    /**
+     * Returns a running cat-file process for the repository, starting a new one if necessary.
+     * The caller has exclusive use of the process until it is passed back to release(). Returns
+     * null if no process could be obtained.
+     */
+    public CatFileProcess borrow(Repository repository, GitCommandBuilderFactory builderFactory) {
+        CatFileProcess evicted = null;
+        synchronized (idleProcesses) {
+            if (destroyed) {
+                return null;
+            }
+            Deque<CatFileProcess> deque = idleProcesses.get(repository.getId());
+            while (deque != null && !deque.isEmpty()) {
+                CatFileProcess process = deque.pollFirst();
+                if (process.isHealthy()) {
+                    return process;
+                }
+                --processCount;
+                process.close();
+            }
+
+            // Make room for a new process by evicting the least recently used idle process
+            if (processCount >= MAX_PROCESSES) {
+                evicted = removeLeastRecentlyUsedIdleProcess();
+                if (evicted == null) {
+                    log.debug("cat-file pool exhausted ({} processes)", processCount);
+                    return null;
+                }
+                --processCount;
+            }
+            ++processCount;
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+
+        // Start the process outside of the lock, since it may take a while
+        CatFileProcess process = new CatFileProcess(plf, repository);
+        if (!process.start(builderFactory, processExecutor)) {
+            log.warn("Unable to start persistent cat-file for {}^{}",
+                repository.getProject().getKey(), repository.getSlug());
+            synchronized (idleProcesses) {
+                --processCount;
+            }
+            return null;
+        }
+        return process;
+    }
+
+    /**
+     * Runs a cat-file reader on a pooled thread. Used by update jobs to read chunks of a large
+     * object list concurrently.
+     */
+    public <T> Future<T> submitReader(Callable<T> reader) {
+        return readerExecutor.submit(reader);
+    }
+
+    /**
+     * Returns a borrowed process to the pool. If the process is no longer usable (or too old), it
+     * is closed instead.
+     */
+    public void release(CatFileProcess process) {
+        boolean reusable = process.isHealthy() &&
+            System.currentTimeMillis() - process.getCreatedMs() < MAX_AGE_MS;
+        synchronized (idleProcesses) {
+            if (reusable && !destroyed) {
+                Integer repositoryId = process.getRepository().getId();
+                Deque<CatFileProcess> deque = idleProcesses.get(repositoryId);
+                if (deque == null) {
+                    deque = new ArrayDeque<CatFileProcess>();
+                    idleProcesses.put(repositoryId, deque);
+                }
+                deque.addFirst(process);
+                return;
+            }
+            --processCount;
+        }
+        process.close();
+    }
+
+    // Keeps idle processes alive and evicts idle, old or unhealthy ones. Health checks talk to
+    // the processes, so they run outside of the lock: the idle processes are taken out of the
+    // pool while they are checked, and the healthy ones are put back afterwards.
+    private void performMaintenance() {
+        long now = System.currentTimeMillis();
+        List<CatFileProcess> toCheck = new ArrayList<CatFileProcess>();
+        List<CatFileProcess> toClose = new ArrayList<CatFileProcess>();
+        synchronized (idleProcesses) {
+            for (Deque<CatFileProcess> deque : idleProcesses.values()) {
+                for (CatFileProcess process : deque) {
+                    if (now - process.getLastUsedMs() >= IDLE_TIMEOUT_MS ||
+                        now - process.getCreatedMs() >= MAX_AGE_MS) {
+                        --processCount;
+                        toClose.add(process);
+                    } else {
+                        toCheck.add(process);
+                    }
+                }
+            }
+            idleProcesses.clear();
+        }
+
+        List<CatFileProcess> healthy = new ArrayList<CatFileProcess>();
+        for (CatFileProcess process : toCheck) {
+            if (process.healthCheck()) {
+                process.keepAlive();
+                healthy.add(process);
+            } else {
+                toClose.add(process);
+            }
+        }
+
+        // Processes released in the meantime are more recently used, so the checked ones go last
+        synchronized (idleProcesses) {
+            for (CatFileProcess process : healthy) {
+                if (destroyed) {
+                    --processCount;
+                    toClose.add(process);
+                    continue;
+                }
+                Integer repositoryId = process.getRepository().getId();
+                Deque<CatFileProcess> deque = idleProcesses.get(repositoryId);
+                if (deque == null) {
+                    deque = new ArrayDeque<CatFileProcess>();
+                    idleProcesses.put(repositoryId, deque);
+                }
+                deque.addLast(process);
+            }
+            processCount -= toCheck.size() - healthy.size();
+        }
+        for (CatFileProcess process : toClose) {
+            process.close();
+        }
+    }
+
+    ReadBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public void destroy() {
+        maintenanceExecutor.shutdownNow();
+        synchronized (idleProcesses) {
+            destroyed = true;
+            for (Deque<CatFileProcess> deque : idleProcesses.values()) {
+                for (CatFileProcess process : deque) {
+                    process.close();
+                }
+            }
+            idleProcesses.clear();
+        }
+        readerExecutor.shutdown();
+        processExecutor.shutdown();
+    }
+
+}
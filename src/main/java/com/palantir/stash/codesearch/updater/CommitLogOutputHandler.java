@@ -0,0 +1,137 @@
+/**
+ * Class that incrementally parses commit records from "git log". Each commit is handed to a
+ * listener as soon as its record has been read, so only one commit is held in memory at a time
+ * regardless of the length of the history.
+ *
+ * The handler expects the format produced by FORMAT, i.e. records terminated by \u0003 whose
+ * fields are separated by \u0002. git appends a newline after each record, which is ignored.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.scm.CommandOutputHandler;
+import com.atlassian.utils.process.Watchdog;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+class CommitLogOutputHandler implements CommandOutputHandler<Integer> {
+
+    // Argument to pass to "git log --format"
+    public static final String FORMAT = "%H%x02%ct%x02%an%x02%ae%x02%s%x02%b%x03";
+
+    /**
+     * Receives each commit read from git log, in log order.
+     */
+    interface CommitListener {
+
+        void processCommit(String hash, long timestamp, String authorName, String authorEmail,
+            String subject, String body) throws IOException;
+
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger log;
+
+    private final CommitListener listener;
+
+    // Reused to accumulate the current record
+    private final StringBuilder record;
+
+    private Integer commitsRead;
+
+    private Watchdog watchdog;
+
+    public CommitLogOutputHandler(PluginLoggerFactory plf, CommitListener listener) {
+        this.log = plf.getLogger(this.getClass().toString());
+        this.listener = listener;
+        this.record = new StringBuilder();
+        this.commitsRead = 0;
+    }
+
+    // Returns the number of commits read from git log (null if reading failed)
+    @Override
+    public Integer getOutput() {
+        return commitsRead;
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public void setWatchdog(Watchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    // Reads a single \u0003-terminated record into the record buffer, returning false at the end
+    // of the stream
+    private boolean readRecord(BufferedReader reader) throws IOException {
+        record.setLength(0);
+        int c;
+        while ((c = reader.read()) != '\u0003') {
+            if (c < 0) {
+                // Only trailing whitespace may follow the last record
+                if (record.toString().trim().isEmpty()) {
+                    return false;
+                }
+                throw new IOException("Unexpected end of git log output");
+            }
+            // Skip the newline git writes between records
+            if (record.length() == 0 && c == '\n') {
+                continue;
+            }
+            record.append((char) c);
+        }
+        return true;
+    }
+
+    // Parses the current record and hands it to the listener. Returns false if the record is
+    // malformed.
+    private boolean processRecord() throws IOException {
+        String[] commitToks = record.toString().split("\u0002", 6);
+        if (commitToks.length < 5 || commitToks[0].length() != 40) {
+            return false;
+        }
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(commitToks[1]) * 1000;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        // bodies are optional, so this might not be present
+        String body = commitToks.length < 6 ? "" : commitToks[5];
+        listener.processCommit(commitToks[0], timestamp, commitToks[2], commitToks[3],
+            commitToks[4], body);
+        return true;
+    }
+
+    @Override
+    public void process(InputStream is) {
+        try {
+            BufferedReader reader =
+                new BufferedReader(new InputStreamReader(is, "UTF-8"), BUFFER_SIZE);
+            int count = 0;
+            while (readRecord(reader)) {
+                if (watchdog != null) {
+                    watchdog.resetWatchdog();
+                }
+                if (processRecord()) {
+                    commitsRead = ++count;
+                } else {
+                    log.warn("Skipping malformed git log record");
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error reading output from git log, aborting", e);
+            commitsRead = null;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Contents of a text file read from cat-file, held as UTF-8 bytes along with the character and
+ * line counts stored in its document. A single scan of the bytes read from cat-file detects
+ * binary files, validates the UTF-8 encoding and counts characters and lines, and the validated
+ * bytes are written into the request's JSON as they are, without decoding them to a String and
+ * encoding them again. Contents scanned from a buffer refer to that buffer rather than a copy, so
+ * they are only valid until the buffer is reused.
+ *
+ * Files that aren't valid UTF-8 are decoded with the platform charset, as they always were.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.io.IOException;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import com.google.common.base.Charsets;
+
+final class FileContents {
+
+    private static final boolean[] BINARY_BYTES = new boolean[256];
+
+    static {
+        for (int i = 0; i <= 8; ++i) {
+            BINARY_BYTES[i] = true;
+        }
+        for (int i = 14; i <= 31; ++i) {
+            BINARY_BYTES[i] = true;
+        }
+        BINARY_BYTES[127] = true;
+    }
+
+    private final byte[] utf8;
+
+    private final int length;
+
+    // Number of UTF-16 code units (i.e. the length of the decoded String)
+    private final int charCount;
+
+    private final int lineCount;
+
+    private FileContents(byte[] utf8, int length, int charCount, int lineCount) {
+        this.utf8 = utf8;
+        this.length = length;
+        this.charCount = charCount;
+        this.lineCount = lineCount;
+    }
+
+    static FileContents fromString(String str) {
+        byte[] utf8 = str.getBytes(Charsets.UTF_8);
+        return new FileContents(utf8, utf8.length, str.length(), countLines(str));
+    }
+
+    /**
+     * Scans the first length bytes of the buffer, which must not be modified while the contents
+     * are in use. Returns null if the file is binary.
+     */
+    static FileContents fromBytes(byte[] buffer, int length) {
+        boolean valid = true;
+        int charCount = 0, lineCount = 0;
+        byte prevByte = '\n';
+        int i = 0;
+        while (i < length) {
+            byte b = buffer[i];
+            if (BINARY_BYTES[b & 0xff]) {
+                return null;
+            }
+            int sequenceLength = valid ? getSequenceLength(buffer, i, length) : 1;
+            if (sequenceLength == 0) {
+                // Keep scanning for binary bytes only
+                valid = false;
+                sequenceLength = 1;
+            }
+            if ((prevByte == '\r' && b != '\n') || prevByte == '\n') {
+                ++lineCount;
+            }
+            charCount += sequenceLength == 4 ? 2 : 1;
+            prevByte = buffer[i + sequenceLength - 1];
+            i += sequenceLength;
+        }
+        if (!valid) {
+            return fromString(new String(buffer, 0, length));
+        }
+        return new FileContents(buffer, length, charCount, lineCount);
+    }
+
+    // Returns the length of the well-formed UTF-8 sequence at offset i (0 if it is malformed)
+    private static int getSequenceLength(byte[] buffer, int i, int length) {
+        int b = buffer[i] & 0xff;
+        if (b < 0x80) {
+            return 1;
+        }
+        int sequenceLength;
+        int min = 0x80, max = 0xbf; // Range of the second byte
+        if (b >= 0xc2 && b <= 0xdf) {
+            sequenceLength = 2;
+        } else if (b >= 0xe0 && b <= 0xef) {
+            sequenceLength = 3;
+            if (b == 0xe0) {
+                min = 0xa0; // Overlong
+            } else if (b == 0xed) {
+                max = 0x9f; // Surrogate
+            }
+        } else if (b >= 0xf0 && b <= 0xf4) {
+            sequenceLength = 4;
+            if (b == 0xf0) {
+                min = 0x90; // Overlong
+            } else if (b == 0xf4) {
+                max = 0x8f; // Above U+10FFFF
+            }
+        } else {
+            return 0;
+        }
+        if (i + sequenceLength > length) {
+            return 0;
+        }
+        int second = buffer[i + 1] & 0xff;
+        if (second < min || second > max) {
+            return 0;
+        }
+        for (int j = 2; j < sequenceLength; ++j) {
+            if ((buffer[i + j] & 0xc0) != 0x80) {
+                return 0;
+            }
+        }
+        return sequenceLength;
+    }
+
+    static int countLines(String str) {
+        char prevChar = '\n', c;
+        int count = 0;
+        for (int i = 0; i < str.length(); ++i) {
+            c = str.charAt(i);
+            if ((prevChar == '\r' && c != '\n') || prevChar == '\n') {
+                ++count;
+            }
+            prevChar = c;
+        }
+        return count;
+    }
+
+    int getCharCount() {
+        return charCount;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    // Adds the contents to the builder as a string field
+    XContentBuilder addField(XContentBuilder builder, String name) throws IOException {
+        return builder.field(new XContentBuilderString(name), new BytesRef(utf8, 0, length));
+    }
+
+    @Override
+    public String toString() {
+        return new String(utf8, 0, length, Charsets.UTF_8);
+    }
+
+}
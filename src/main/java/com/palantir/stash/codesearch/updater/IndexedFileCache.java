@@ -0,0 +1,349 @@
+/**
+ * Per-repository cache of the file documents (blob/path pairs) in the index. Update jobs consult
+ * it before probing ElasticSearch with a multiget: pairs that are known to exist are only added
+ * to the ref, pairs that are known to be missing are read and upserted straight away, and only
+ * the rest are probed. Entries are 64-bit fingerprints of document IDs, kept in compact
+ * open-addressing hash sets.
+ *
+ * Only documents that are known to be in the index are added: those found by the load scan, and
+ * those of update ranges whose writes have all succeeded. File documents are only deleted with
+ * their repository (see invalidate()), so an entry stays true until then, barring a fingerprint
+ * collision (about one in 2^64 per lookup and entry). A missing entry only costs a probe or a
+ * redundant cat-file.
+ *
+ * Each repository's set is rebuilt from the index (with a scan/scroll over its file documents)
+ * the first time it is needed, e.g. after a restart. The scan runs in the background, and jobs
+ * probe every pair until it has finished.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import static com.palantir.stash.codesearch.elasticsearch.ElasticSearch.ES_UPDATEALIAS;
+import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+import com.palantir.stash.codesearch.search.SearchFilterUtils;
+
+public class IndexedFileCache implements DisposableBean {
+
+    // Maximum number of fingerprints held across all repositories (8 bytes each, plus slack)
+    private static final long MAX_TOTAL_ENTRIES = 8 * 1024 * 1024;
+
+    private static final TimeValue SCROLL_TIMEOUT = TimeValue.timeValueMinutes(2);
+
+    /**
+     * Open-addressing hash set of non-zero 64-bit fingerprints. Not thread-safe.
+     */
+    static class FingerprintSet {
+
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private long[] slots;
+
+        private int size;
+
+        FingerprintSet() {
+            this.slots = new long[INITIAL_CAPACITY];
+            this.size = 0;
+        }
+
+        // Returns the slot containing fingerprint, or the empty slot where it would be inserted
+        private static int findSlot(long[] slots, long fingerprint) {
+            int mask = slots.length - 1;
+            int slot = (int) fingerprint & mask;
+            while (slots[slot] != 0 && slots[slot] != fingerprint) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        boolean contains(long fingerprint) {
+            return slots[findSlot(slots, fingerprint)] != 0;
+        }
+
+        // Returns true iff the fingerprint was not already present
+        boolean add(long fingerprint) {
+            int slot = findSlot(slots, fingerprint);
+            if (slots[slot] != 0) {
+                return false;
+            }
+            slots[slot] = fingerprint;
+            ++size;
+
+            // Keep the load factor at or below 0.75
+            if (size * 4L > slots.length * 3L) {
+                long[] newSlots = new long[slots.length * 2];
+                for (long f : slots) {
+                    if (f != 0) {
+                        newSlots[findSlot(newSlots, f)] = f;
+                    }
+                }
+                slots = newSlots;
+            }
+            return true;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Adds every fingerprint of another set. Returns the number that were not already present.
+        int addAll(FingerprintSet other) {
+            int added = 0;
+            for (long f : other.slots) {
+                if (f != 0 && add(f)) {
+                    ++added;
+                }
+            }
+            return added;
+        }
+    }
+
+    // Cache state of one repository (guarded by the entry itself)
+    private static class RepositoryEntry {
+
+        private final FingerprintSet fingerprints = new FingerprintSet();
+
+        private boolean loaded = false;
+    }
+
+    // 64-bit FNV-1a, followed by the murmur3 finalizer to spread the bits. Never returns 0.
+    static long fingerprint(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); ++i) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static String getRepoDesc(Repository repository) {
+        return repository.getProject().getKey() + "^" + repository.getSlug();
+    }
+
+    private final Logger log;
+
+    private final SearchFilterUtils sfu;
+
+    // Runs the load scans
+    private final Executor loader;
+
+    // Repository entries by project^repository (guarded by itself)
+    private final Map<String, RepositoryEntry> entries;
+
+    private long totalEntries;
+
+    public IndexedFileCache(PluginLoggerFactory plf, SearchFilterUtils sfu) {
+        this(plf, sfu, Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "codesearch-file-cache-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    IndexedFileCache(PluginLoggerFactory plf, SearchFilterUtils sfu, Executor loader) {
+        this.log = plf.getLogger(this.getClass().toString());
+        this.sfu = sfu;
+        this.loader = loader;
+        this.entries = new HashMap<String, RepositoryEntry>();
+        this.totalEntries = 0;
+    }
+
+    private RepositoryEntry getEntry(Repository repository) {
+        synchronized (entries) {
+            return entries.get(getRepoDesc(repository));
+        }
+    }
+
+    /**
+     * Starts building the repository's fingerprint set from the index in the background, unless
+     * it is cached or being loaded already, or the cache is full. Until the set is loaded, nothing
+     * is known about the repository's pairs.
+     */
+    public void ensureLoaded(final Client client, final Repository repository) {
+        String repoDesc = getRepoDesc(repository);
+        final RepositoryEntry entry;
+        synchronized (entries) {
+            if (entries.containsKey(repoDesc) || totalEntries >= MAX_TOTAL_ENTRIES) {
+                return;
+            }
+            entry = new RepositoryEntry();
+            entries.put(repoDesc, entry);
+        }
+        try {
+            loader.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    load(client, repository, entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The cache is shutting down
+            removeEntry(repoDesc, entry);
+        }
+    }
+
+    // Removes the repository's entry if it is still the given one
+    private void removeEntry(String repoDesc, RepositoryEntry entry) {
+        synchronized (entries) {
+            if (entries.get(repoDesc) == entry) {
+                entries.remove(repoDesc);
+            }
+        }
+    }
+
+    // Scans the repository's file documents into its entry
+    private void load(Client client, Repository repository, RepositoryEntry entry) {
+        String repoDesc = getRepoDesc(repository);
+        long startTime = System.currentTimeMillis();
+        try {
+            SearchResponse resp = client.prepareSearch(ES_UPDATEALIAS)
+                .setTypes("file")
+                .setSearchType(SearchType.SCAN)
+                .setScroll(SCROLL_TIMEOUT)
+                .setSize(1000)
+                .setFetchSource(false)
+                .setRouting(repoDesc)
+                .setQuery(filteredQuery(matchAllQuery(), sfu.projectRepositoryFilter(
+                    repository.getProject().getKey(), repository.getSlug())))
+                .get();
+            while (true) {
+                resp = client.prepareSearchScroll(resp.getScrollId())
+                    .setScroll(SCROLL_TIMEOUT)
+                    .get();
+                SearchHit[] hits = resp.getHits().getHits();
+                if (hits.length == 0) {
+                    break;
+                }
+                synchronized (entry) {
+                    for (SearchHit hit : hits) {
+                        entry.fingerprints.add(fingerprint(hit.getId()));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Caught error loading indexed files of {}, not caching them", repoDesc, e);
+            removeEntry(repoDesc, entry);
+            return;
+        }
+
+        // The entry only counts towards the total if it wasn't invalidated while loading, since
+        // invalidate() only subtracts the entries of loaded repositories
+        int size;
+        synchronized (entries) {
+            synchronized (entry) {
+                entry.loaded = true;
+                size = entry.fingerprints.size();
+                if (entries.get(repoDesc) == entry) {
+                    totalEntries += size;
+                }
+            }
+        }
+        log.info("Loaded {} indexed files of {} in {}ms", size, repoDesc,
+            System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Returns true iff the repository is cached and the file ID is definitely not in the index
+     * (as far as this node knows).
+     */
+    public boolean isKnownMissing(Repository repository, String fileId) {
+        RepositoryEntry entry = getEntry(repository);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            return entry.loaded && !entry.fingerprints.contains(fingerprint(fileId));
+        }
+    }
+
+    /**
+     * Returns true iff the repository is cached and the file ID is in the index (barring a
+     * fingerprint collision).
+     */
+    public boolean isKnownPresent(Repository repository, String fileId) {
+        RepositoryEntry entry = getEntry(repository);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            return entry.loaded && entry.fingerprints.contains(fingerprint(fileId));
+        }
+    }
+
+    // Records that the fingerprinted file IDs have been written to the index
+    void addAll(Repository repository, FingerprintSet fingerprints) {
+        RepositoryEntry entry = getEntry(repository);
+        if (entry == null) {
+            return;
+        }
+        int added;
+        synchronized (entry) {
+            added = entry.fingerprints.addAll(fingerprints);
+            if (!entry.loaded) {
+                return;
+            }
+        }
+        synchronized (entries) {
+            if (entries.get(getRepoDesc(repository)) == entry) {
+                totalEntries += added;
+            }
+        }
+    }
+
+    // Forgets the repository's fingerprints, e.g. after its documents were deleted
+    public void invalidate(String projectKey, String repositorySlug) {
+        synchronized (entries) {
+            RepositoryEntry entry = entries.remove(projectKey + "^" + repositorySlug);
+            if (entry != null) {
+                synchronized (entry) {
+                    totalEntries -= entry.loaded ? entry.fingerprints.size() : 0;
+                }
+            }
+        }
+    }
+
+    // Forgets every repository's fingerprints, e.g. after switching to a new index
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            totalEntries = 0;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (loader instanceof ExecutorService) {
+            ((ExecutorService) loader).shutdownNow();
+        }
+    }
+
+}
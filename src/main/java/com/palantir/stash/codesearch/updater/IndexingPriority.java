@@ -0,0 +1,45 @@
+/**
+ * Priority classes of indexing work. Queued jobs are scheduled by weighted round robin over the
+ * classes (see PriorityJobQueue), so a class with twice the weight of another runs twice as many
+ * jobs while both have work queued. Classes are declared from highest to lowest priority.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+public enum IndexingPriority {
+
+    // Pushes to a repository's default branch, which users are most likely to search
+    DEFAULT_BRANCH("Default branch updates", 8),
+
+    // Pushes to any other indexed ref
+    OTHER_REF("Other ref updates", 4),
+
+    // Manual reindexes of a single repository
+    REPOSITORY_REINDEX("Repository reindexes", 2),
+
+    // Complete reindexes of every repository
+    FULL_REINDEX("Full reindexes", 1);
+
+    private final String description;
+
+    private final int weight;
+
+    private IndexingPriority(String description, int weight) {
+        this.description = description;
+        this.weight = weight;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    // Returns true iff this class has a higher priority than other
+    public boolean isHigherThan(IndexingPriority other) {
+        return ordinal() < other.ordinal();
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Snapshot of the indexing work of one tenant (i.e. repository) in the job queue.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+public class IndexingTenantStats {
+
+    private final String tenant;
+
+    private final int queued;
+
+    private final int running;
+
+    private final long completed;
+
+    private final long busyMs;
+
+    public IndexingTenantStats(String tenant, int queued, int running, long completed,
+        long busyMs) {
+        this.tenant = tenant;
+        this.queued = queued;
+        this.running = running;
+        this.completed = completed;
+        this.busyMs = busyMs;
+    }
+
+    // Returns the tenant's key (project^repository)
+    public String getTenant() {
+        return tenant;
+    }
+
+    // Returns the number of jobs waiting in the queue
+    public int getQueued() {
+        return queued;
+    }
+
+    // Returns the number of jobs currently holding an indexing slot
+    public int getRunning() {
+        return running;
+    }
+
+    // Returns the number of jobs completed since startup
+    public long getCompleted() {
+        return completed;
+    }
+
+    // Returns the total time spent running the tenant's jobs since startup
+    public long getBusyMs() {
+        return busyMs;
+    }
+
+}
@@ -0,0 +1,380 @@
+/**
+ * Queue of indexing jobs that are ready to run, with one FIFO queue per priority class and
+ * tenant (i.e. repository, keyed project^repository). Classes are chosen by smooth weighted
+ * round robin: every time a job is taken, each class with queued jobs gains credit equal to its
+ * weight, the class with the most credit supplies the job, and that class pays back the credit
+ * handed out in the round. Classes with work queued therefore run jobs in proportion to their
+ * weights, interleaved rather than in bursts.
+ *
+ * To keep low-priority work moving when higher classes are always busy, a class's weight grows
+ * with the time its oldest job has been waiting: by its base weight every AGING_INTERVAL_MS. A
+ * full reindex job that has waited for seven minutes competes on equal terms with a fresh default
+ * branch push.
+ *
+ * Within a class, each slot that frees up is handed out in two levels: first to a project, then
+ * to one of its repositories. The job comes from the project with the fewest running jobs, and
+ * within it from the repository with the fewest running jobs (at both levels, the oldest waiting
+ * job breaks ties). This only orders the handout: running jobs are never preempted and no
+ * project's share is capped, so a project that filled every idle slot keeps them until its jobs
+ * finish. From then on, though, a project that has been waiting gets each freed slot before a
+ * busier one, however many jobs the busier project has queued.
+ *
+ * Counters are kept for every tenant with queued or running jobs, and for the MAX_IDLE_TENANTS
+ * tenants that most recently became idle.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+class PriorityJobQueue {
+
+    // Waiting time after which a class's oldest job counts with twice its weight
+    static final long AGING_INTERVAL_MS = 60 * 1000;
+
+    // Maximum number of tenants without queued or running jobs to keep counters of
+    static final int MAX_IDLE_TENANTS = 100;
+
+    private static class QueuedJob {
+
+        private final Runnable job;
+
+        private final String tenant;
+
+        private final long enqueueTime;
+
+        private long startTime;
+
+        private QueuedJob(Runnable job, String tenant, long enqueueTime) {
+            this.job = job;
+            this.tenant = tenant;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    // Counters of one tenant
+    private static class Tenant {
+
+        private int queued;
+
+        private int running;
+
+        private long completed;
+
+        private long busyMs;
+    }
+
+    // Queued jobs of each class and tenant (empty tenant queues are removed)
+    private final Map<IndexingPriority, Map<String, LinkedList<QueuedJob>>> queues;
+
+    // Round robin credit of each class, indexed by ordinal
+    private final double[] credits;
+
+    // Jobs taken that haven't finished yet
+    private final Map<Runnable, QueuedJob> running;
+
+    // Counters of every tenant with queued or running jobs
+    private final Map<String, Tenant> tenants;
+
+    // Counters of the tenants that most recently became idle, oldest first
+    private final LinkedHashMap<String, Tenant> idleTenants;
+
+    // Running jobs of each project with running jobs
+    private final Map<String, Integer> projectRunning;
+
+    PriorityJobQueue() {
+        this.queues = new EnumMap<IndexingPriority, Map<String, LinkedList<QueuedJob>>>(
+            IndexingPriority.class);
+        for (IndexingPriority priority : IndexingPriority.values()) {
+            queues.put(priority, new LinkedHashMap<String, LinkedList<QueuedJob>>());
+        }
+        this.credits = new double[IndexingPriority.values().length];
+        this.running = new IdentityHashMap<Runnable, QueuedJob>();
+        this.tenants = new HashMap<String, Tenant>();
+        this.idleTenants = new LinkedHashMap<String, Tenant>();
+        this.projectRunning = new HashMap<String, Integer>();
+    }
+
+    // Returns the project key of a tenant
+    private static String getProject(String tenant) {
+        int separator = tenant.indexOf('^');
+        return separator < 0 ? tenant : tenant.substring(0, separator);
+    }
+
+    private int getProjectRunning(String project) {
+        Integer count = projectRunning.get(project);
+        return count == null ? 0 : count;
+    }
+
+    private void addProjectRunning(String project, int delta) {
+        int count = getProjectRunning(project) + delta;
+        if (count > 0) {
+            projectRunning.put(project, count);
+        } else {
+            projectRunning.remove(project);
+        }
+    }
+
+    private Tenant getTenant(String tenant) {
+        Tenant counters = tenants.get(tenant);
+        if (counters == null) {
+            counters = idleTenants.remove(tenant);
+            if (counters == null) {
+                counters = new Tenant();
+            }
+            tenants.put(tenant, counters);
+        }
+        return counters;
+    }
+
+    // Moves a tenant's counters to the idle tenants if it has no queued or running jobs left,
+    // forgetting the tenant that has been idle the longest if there are too many
+    private void retireIfIdle(String tenant) {
+        Tenant counters = tenants.get(tenant);
+        if (counters.queued > 0 || counters.running > 0) {
+            return;
+        }
+        tenants.remove(tenant);
+        idleTenants.put(tenant, counters);
+        if (idleTenants.size() > MAX_IDLE_TENANTS) {
+            Iterator<String> it = idleTenants.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    void add(Runnable job, IndexingPriority priority, String tenant) {
+        add(job, priority, tenant, System.currentTimeMillis());
+    }
+
+    synchronized void add(Runnable job, IndexingPriority priority, String tenant, long now) {
+        insertByEnqueueTime(queues.get(priority), new QueuedJob(job, tenant, now));
+        ++getTenant(tenant).queued;
+        notifyAll();
+    }
+
+    /**
+     * Moves a queued job to a higher priority class, keeping its original enqueue time. Returns
+     * false if the job isn't queued (e.g. it hasn't been added yet, or is already running) or
+     * already has at least that priority.
+     */
+    synchronized boolean raisePriority(Runnable job, IndexingPriority priority) {
+        for (IndexingPriority from : IndexingPriority.values()) {
+            if (!priority.isHigherThan(from)) {
+                continue;
+            }
+            Iterator<LinkedList<QueuedJob>> queueIt = queues.get(from).values().iterator();
+            while (queueIt.hasNext()) {
+                LinkedList<QueuedJob> queue = queueIt.next();
+                Iterator<QueuedJob> it = queue.iterator();
+                while (it.hasNext()) {
+                    QueuedJob queued = it.next();
+                    if (queued.job == job) {
+                        it.remove();
+                        if (queue.isEmpty()) {
+                            queueIt.remove();
+                        }
+                        insertByEnqueueTime(queues.get(priority), queued);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Keeps each tenant queue ordered by enqueue time, so its head is always its oldest job
+    private static void insertByEnqueueTime(Map<String, LinkedList<QueuedJob>> tenantQueues,
+        QueuedJob queued) {
+        LinkedList<QueuedJob> queue = tenantQueues.get(queued.tenant);
+        if (queue == null) {
+            queue = new LinkedList<QueuedJob>();
+            tenantQueues.put(queued.tenant, queue);
+        }
+        int i = queue.size();
+        while (i > 0 && queue.get(i - 1).enqueueTime > queued.enqueueTime) {
+            --i;
+        }
+        queue.add(i, queued);
+    }
+
+    // Returns the enqueue time of the oldest job of a class with queued jobs
+    private long getOldestEnqueueTime(IndexingPriority priority) {
+        long oldest = Long.MAX_VALUE;
+        for (LinkedList<QueuedJob> queue : queues.get(priority).values()) {
+            oldest = Math.min(oldest, queue.getFirst().enqueueTime);
+        }
+        return oldest;
+    }
+
+    // Effective weight of a class with queued jobs, taking the age of its oldest job into account
+    private double getEffectiveWeight(IndexingPriority priority, long now) {
+        long waited = Math.max(0, now - getOldestEnqueueTime(priority));
+        return priority.getWeight() * (1.0 + (double) waited / AGING_INTERVAL_MS);
+    }
+
+    // Returns the queue of the tenant of a class that should run next: the repository with the
+    // fewest running jobs of the project with the fewest running jobs
+    private LinkedList<QueuedJob> getNextTenantQueue(IndexingPriority priority) {
+        Map<String, LinkedList<QueuedJob>> tenantQueues = queues.get(priority);
+
+        // Oldest waiting job of each project with queued jobs
+        Map<String, Long> projectOldest = new HashMap<String, Long>();
+        for (LinkedList<QueuedJob> queue : tenantQueues.values()) {
+            String project = getProject(queue.getFirst().tenant);
+            Long oldest = projectOldest.get(project);
+            if (oldest == null || queue.getFirst().enqueueTime < oldest) {
+                projectOldest.put(project, queue.getFirst().enqueueTime);
+            }
+        }
+        String nextProject = null;
+        int nextProjectRunning = 0;
+        for (Map.Entry<String, Long> entry : projectOldest.entrySet()) {
+            int running = getProjectRunning(entry.getKey());
+            if (nextProject == null || running < nextProjectRunning ||
+                (running == nextProjectRunning &&
+                    entry.getValue() < projectOldest.get(nextProject))) {
+                nextProject = entry.getKey();
+                nextProjectRunning = running;
+            }
+        }
+
+        LinkedList<QueuedJob> nextQueue = null;
+        int nextRunning = 0;
+        for (LinkedList<QueuedJob> queue : tenantQueues.values()) {
+            if (!getProject(queue.getFirst().tenant).equals(nextProject)) {
+                continue;
+            }
+            int tenantRunning = tenants.get(queue.getFirst().tenant).running;
+            if (nextQueue == null || tenantRunning < nextRunning ||
+                (tenantRunning == nextRunning &&
+                    queue.getFirst().enqueueTime < nextQueue.getFirst().enqueueTime)) {
+                nextQueue = queue;
+                nextRunning = tenantRunning;
+            }
+        }
+        return nextQueue;
+    }
+
+    /**
+     * Removes and returns the next job to run (null if no jobs are queued). The job counts as
+     * running until finished() is called.
+     */
+    synchronized Runnable poll(long now) {
+        IndexingPriority next = null;
+        double total = 0;
+        for (IndexingPriority priority : IndexingPriority.values()) {
+            int i = priority.ordinal();
+            if (queues.get(priority).isEmpty()) {
+                // Idle classes don't accumulate credit
+                credits[i] = 0;
+                continue;
+            }
+            double weight = getEffectiveWeight(priority, now);
+            credits[i] += weight;
+            total += weight;
+            if (next == null || credits[i] > credits[next.ordinal()]) {
+                next = priority;
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        credits[next.ordinal()] -= total;
+
+        LinkedList<QueuedJob> queue = getNextTenantQueue(next);
+        QueuedJob queued = queue.removeFirst();
+        if (queue.isEmpty()) {
+            queues.get(next).remove(queued.tenant);
+        }
+        Tenant tenant = tenants.get(queued.tenant);
+        --tenant.queued;
+        ++tenant.running;
+        addProjectRunning(getProject(queued.tenant), 1);
+        queued.startTime = now;
+        running.put(queued.job, queued);
+        return queued.job;
+    }
+
+    // Blocks until a job is queued, then removes and returns it (see poll())
+    synchronized Runnable take() throws InterruptedException {
+        while (true) {
+            Runnable job = poll(System.currentTimeMillis());
+            if (job != null) {
+                return job;
+            }
+            wait();
+        }
+    }
+
+    void finished(Runnable job) {
+        finished(job, System.currentTimeMillis());
+    }
+
+    // Marks a job returned by poll() or take() as finished
+    synchronized void finished(Runnable job, long now) {
+        QueuedJob queued = running.remove(job);
+        if (queued == null) {
+            return;
+        }
+        Tenant tenant = tenants.get(queued.tenant);
+        --tenant.running;
+        addProjectRunning(getProject(queued.tenant), -1);
+        ++tenant.completed;
+        tenant.busyMs += Math.max(0, now - queued.startTime);
+        retireIfIdle(queued.tenant);
+        notifyAll();
+    }
+
+    // Returns true iff no jobs are queued or running
+    synchronized boolean isIdle() {
+        if (!running.isEmpty()) {
+            return false;
+        }
+        for (Map<String, LinkedList<QueuedJob>> tenantQueues : queues.values()) {
+            if (!tenantQueues.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the number of queued jobs of each class
+    synchronized Map<IndexingPriority, Integer> getDepths() {
+        Map<IndexingPriority, Integer> depths =
+            new EnumMap<IndexingPriority, Integer>(IndexingPriority.class);
+        for (Map.Entry<IndexingPriority, Map<String, LinkedList<QueuedJob>>> entry :
+            queues.entrySet()) {
+            int depth = 0;
+            for (LinkedList<QueuedJob> queue : entry.getValue().values()) {
+                depth += queue.size();
+            }
+            depths.put(entry.getKey(), depth);
+        }
+        return depths;
+    }
+
+    // Returns the counters of the tenants with queued or running jobs and of the recently idle
+    // ones, sorted by tenant
+    synchronized List<IndexingTenantStats> getTenantStats() {
+        Map<String, Tenant> sorted = new TreeMap<String, Tenant>(idleTenants);
+        sorted.putAll(tenants);
+        List<IndexingTenantStats> stats = new ArrayList<IndexingTenantStats>();
+        for (Map.Entry<String, Tenant> entry : sorted.entrySet()) {
+            Tenant tenant = entry.getValue();
+            stats.add(new IndexingTenantStats(entry.getKey(), tenant.queued, tenant.running,
+                tenant.completed, tenant.busyMs));
+        }
+        return stats;
+    }
+
+}
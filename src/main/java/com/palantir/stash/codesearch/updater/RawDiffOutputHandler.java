@@ -0,0 +1,171 @@
+/**
+ * Class that incrementally parses the output of "git diff --raw --abbrev=40 -z". Each change is
+ * handed to a listener as soon as its tokens have been read, so the diff is never materialized as
+ * a single string.
+ *
+ * With -z, every entry is a ":<old mode> <new mode> <old sha> <new sha> <status>" header followed
+ * by one NUL-terminated path, or two paths (source and destination) for copies and renames.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.scm.CommandOutputHandler;
+import com.atlassian.utils.process.Watchdog;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+class RawDiffOutputHandler implements CommandOutputHandler<Integer> {
+
+    enum ChangeType {
+        ADD, COPY, DELETE, MODIFY, RENAME
+    }
+
+    /**
+     * Receives each change in the diff. For additions and copies, oldBlob is the null hash; for
+     * deletions, newBlob is. oldPath and newPath are equal unless the change is a copy or rename.
+     */
+    interface ChangeListener {
+
+        void processChange(ChangeType type, String oldBlob, String newBlob,
+            String oldPath, String newPath) throws IOException;
+
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger log;
+
+    private final ChangeListener listener;
+
+    // Reused to accumulate the bytes of the current token
+    private final ByteArrayOutputStream token;
+
+    private Integer changesRead;
+
+    private Watchdog watchdog;
+
+    public RawDiffOutputHandler(PluginLoggerFactory plf, ChangeListener listener) {
+        this.log = plf.getLogger(this.getClass().toString());
+        this.listener = listener;
+        this.token = new ByteArrayOutputStream(256);
+        this.changesRead = 0;
+    }
+
+    // Returns the number of changes read from the diff (null if reading failed)
+    @Override
+    public Integer getOutput() {
+        return changesRead;
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public void setWatchdog(Watchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    // Reads a single NUL-terminated token, returning null at the end of the stream
+    private String readToken(InputStream is) throws IOException {
+        token.reset();
+        int c;
+        while ((c = is.read()) != 0) {
+            if (c < 0) {
+                if (token.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Unexpected end of raw diff output");
+            }
+            token.write(c);
+        }
+        return token.toString("UTF-8");
+    }
+
+    private String readPath(InputStream is) throws IOException {
+        String path = readToken(is);
+        if (path == null) {
+            throw new EOFException("Raw diff output ended before path");
+        }
+        return path;
+    }
+
+    /**
+     * Reads a single change from the raw diff output and hands it to the listener. Returns false
+     * if the stream ended before a new entry.
+     */
+    boolean readChange(InputStream is) throws IOException {
+        String header = readToken(is);
+        if (header == null) {
+            return false;
+        }
+        if (watchdog != null) {
+            watchdog.resetWatchdog();
+        }
+
+        // Parse ":<old mode> <new mode> <old sha> <new sha> <status>" header
+        String[] headerToks = header.trim().split(" ");
+        if (headerToks.length < 5 || !headerToks[0].startsWith(":")) {
+            throw new IOException("Malformed raw diff header: " + header);
+        }
+        String oldBlob = headerToks[2];
+        String newBlob = headerToks[3];
+        char status = headerToks[4].charAt(0);
+
+        switch (status) {
+        case 'A':
+            String addPath = readPath(is);
+            listener.processChange(ChangeType.ADD, oldBlob, newBlob, addPath, addPath);
+            break;
+        case 'C':
+            String copyFrom = readPath(is);
+            String copyTo = readPath(is);
+            listener.processChange(ChangeType.COPY, oldBlob, newBlob, copyFrom, copyTo);
+            break;
+        case 'D':
+            String deletePath = readPath(is);
+            listener.processChange(ChangeType.DELETE, oldBlob, newBlob, deletePath, deletePath);
+            break;
+        case 'M':
+        case 'T':
+            String modifyPath = readPath(is);
+            listener.processChange(ChangeType.MODIFY, oldBlob, newBlob, modifyPath, modifyPath);
+            break;
+        case 'R':
+            String renameFrom = readPath(is);
+            String renameTo = readPath(is);
+            listener.processChange(ChangeType.RENAME, oldBlob, newBlob, renameFrom, renameTo);
+            break;
+        case 'X':
+            throw new IOException("Status letter 'X' is a git bug.");
+        default:
+            // Unmerged or unknown change, skip its path
+            log.debug("Ignoring raw diff entry with status {}", headerToks[4]);
+            readPath(is);
+            break;
+        }
+        return true;
+    }
+
+    @Override
+    public void process(InputStream rawStream) {
+        InputStream is = new BufferedInputStream(rawStream, BUFFER_SIZE);
+        try {
+            int count = 0;
+            while (readChange(is)) {
+                changesRead = ++count;
+            }
+        } catch (IOException e) {
+            log.error("Error reading output from diff, aborting", e);
+            changesRead = null;
+        }
+    }
+
+}
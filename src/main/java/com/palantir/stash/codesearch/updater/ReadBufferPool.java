@@ -0,0 +1,99 @@
+/**
+ * Bounded pool of the byte arrays that cat-file output handlers read file contents into. Each
+ * reader used to allocate its own buffer, growing it up to the maximum file size; with many
+ * concurrent readers and a large filesize limit, that meant hundreds of megabytes of short-lived
+ * arrays, most of them large enough to be allocated outside the young generation.
+ *
+ * Buffer sizes are powers of two between MIN_BUFFER_SIZE and MAX_BUFFER_SIZE, so a released
+ * buffer can serve any later request of its size class. Released buffers are kept as long as the
+ * pool holds at most MAX_POOLED_BYTES; beyond that they are left to the garbage collector.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+
+class ReadBufferPool {
+
+    static final int MIN_BUFFER_SIZE = CatFileOutputHandler.INITIAL_BUFFER_SIZE;
+
+    // Largest file that may be read (a power of two)
+    static final int MAX_BUFFER_SIZE = GlobalSettings.MAX_FILE_SIZE_UB;
+
+    // Maximum total size of the idle buffers kept by the pool
+    static final long MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+    // Idle buffers of each size class, indexed by the log2 of their size (guarded by this)
+    private final Deque<byte[]>[] idleBuffers;
+
+    private long pooledBytes;
+
+    // Number of requests served from the pool and by allocating a new buffer (guarded by this)
+    private long reusedCount;
+    private long allocatedCount;
+
+    @SuppressWarnings("unchecked")
+    ReadBufferPool() {
+        this.idleBuffers = new Deque[Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) + 1];
+        for (int i = 0; i < idleBuffers.length; ++i) {
+            idleBuffers[i] = new ArrayDeque<byte[]>();
+        }
+    }
+
+    // Returns the size class of a buffer holding at least size bytes
+    private static int getBufferSize(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        if (size > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size " + size + " exceeds " +
+                MAX_BUFFER_SIZE);
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    // Returns a buffer of at least size bytes, which should be released when no longer needed
+    byte[] acquire(int size) {
+        int bufferSize = getBufferSize(size);
+        synchronized (this) {
+            byte[] buffer = idleBuffers[Integer.numberOfTrailingZeros(bufferSize)].pollFirst();
+            if (buffer != null) {
+                pooledBytes -= buffer.length;
+                ++reusedCount;
+                return buffer;
+            }
+            ++allocatedCount;
+        }
+        return new byte[bufferSize];
+    }
+
+    // Returns a buffer obtained from acquire() to the pool
+    void release(byte[] buffer) {
+        if (buffer == null || buffer.length != getBufferSize(buffer.length)) {
+            return;
+        }
+        synchronized (this) {
+            if (pooledBytes + buffer.length > MAX_POOLED_BYTES) {
+                return;
+            }
+            idleBuffers[Integer.numberOfTrailingZeros(buffer.length)].addFirst(buffer);
+            pooledBytes += buffer.length;
+        }
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    synchronized long getReusedCount() {
+        return reusedCount;
+    }
+
+    synchronized long getAllocatedCount() {
+        return allocatedCount;
+    }
+
+}
@@ -15,4 +15,11 @@ public interface SearchUpdateJobFactory {
      */
     SearchUpdateJob newDefaultJob(SearchFilterUtils sfu, PluginLoggerFactory plf, Repository repository, String ref);
 
+    /**
+     * Returns the default SearchUpdateJob implementation for the specified repo & ref, sharing
+     * written documents with the other jobs of the same repository update.
+     */
+    SearchUpdateJob newSharedJob(SearchFilterUtils sfu, PluginLoggerFactory plf, Repository repository, String ref,
+        SharedUpdateState sharedState);
+
 }
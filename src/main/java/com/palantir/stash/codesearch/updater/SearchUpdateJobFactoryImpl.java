@@ -1,14 +1,38 @@
 package com.palantir.stash.codesearch.updater;
 
 import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.codesearch.elasticsearch.SharedBulkBatcher;
 import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
 import com.palantir.stash.codesearch.search.SearchFilterUtils;
 
 public class SearchUpdateJobFactoryImpl implements SearchUpdateJobFactory {
 
+    private final CatFileProcessPool catFilePool;
+
+    private final IndexedFileCache fileCache;
+
+    private final AdaptiveConcurrencyController concurrencyController;
+
+    private final SharedBulkBatcher bulkBatcher;
+
+    public SearchUpdateJobFactoryImpl(CatFileProcessPool catFilePool, IndexedFileCache fileCache,
+        AdaptiveConcurrencyController concurrencyController, SharedBulkBatcher bulkBatcher) {
+        this.catFilePool = catFilePool;
+        this.fileCache = fileCache;
+        this.concurrencyController = concurrencyController;
+        this.bulkBatcher = bulkBatcher;
+    }
+
     public SearchUpdateJob newDefaultJob(SearchFilterUtils sfu, PluginLoggerFactory plf, Repository repository,
         String ref) {
-        return new SearchUpdateJobImpl(sfu, plf, repository, ref);
+        return new SearchUpdateJobImpl(sfu, plf, catFilePool, fileCache, concurrencyController,
+            bulkBatcher, repository, ref, null);
+    }
+
+    public SearchUpdateJob newSharedJob(SearchFilterUtils sfu, PluginLoggerFactory plf, Repository repository,
+        String ref, SharedUpdateState sharedState) {
+        return new SearchUpdateJobImpl(sfu, plf, catFilePool, fileCache, concurrencyController,
+            bulkBatcher, repository, ref, sharedState);
     }
 
 }
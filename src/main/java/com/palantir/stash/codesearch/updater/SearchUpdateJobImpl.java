@@ -11,26 +11,53 @@ import static org.elasticsearch.index.query.FilterBuilders.andFilter;
 import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 
+import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FilenameUtils;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.action.update.UpdateRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.get.GetField;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
 import org.slf4j.Logger;
 
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.scm.git.GitCommandBuilderFactory;
 import com.atlassian.stash.scm.git.GitScm;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.elasticsearch.BulkFeedback;
 import com.palantir.stash.codesearch.elasticsearch.RequestBuffer;
+import com.palantir.stash.codesearch.elasticsearch.SharedBulkBatcher;
 import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
 import com.palantir.stash.codesearch.search.SearchFilterUtils;
 
@@ -40,6 +67,27 @@ class SearchUpdateJobImpl implements SearchUpdateJob {
 
     private static final int MAX_ES_RETRIES = 10;
 
+    // Number of diff entries / new commits to index between update checkpoints
+    private static final int DIFF_CHECKPOINT_INTERVAL = 10000;
+    private static final int COMMIT_CHECKPOINT_INTERVAL = 50000;
+
+    // Maximum number of indexed refs to consider when seeding a new ref
+    private static final int MAX_SEED_CANDIDATES = 100;
+
+    private static final TimeValue SCROLL_TIMEOUT = TimeValue.timeValueMinutes(2);
+
+    // Minimum number of files per cat-file reader when splitting reads between readers
+    private static final int MIN_CAT_FILE_CHUNK_SIZE = 1000;
+
+    // Number of blobs to look up per multiget when using shared blob storage
+    private static final int BLOB_LOOKUP_BATCH_SIZE = 1000;
+
+    // Adds the repository param to a shared blob's repositories, unless it's already there
+    private static final String ADD_BLOB_REPOSITORY_SCRIPT =
+        "if (ctx._source.repositories == null) { ctx._source.repositories = [repository] } " +
+        "else if (ctx._source.repositories.contains(repository)) { ctx.op = \"none\" } " +
+        "else { ctx._source.repositories += repository }";
+
     private final Repository repository;
 
     private final String ref;
@@ -48,12 +96,46 @@ class SearchUpdateJobImpl implements SearchUpdateJob {
     private final Logger log;
     private final SearchFilterUtils sfu;
 
-    public SearchUpdateJobImpl(SearchFilterUtils sfu, PluginLoggerFactory plf, Repository repository, String ref) {
+    private final CatFileProcessPool catFilePool;
+
+    private final IndexedFileCache fileCache;
+
+    // Told about every bulk request flushed by the job
+    private final BulkFeedback bulkFeedback;
+
+    // Combines the job's bulk requests with those of concurrent jobs, if enabled
+    private final SharedBulkBatcher bulkBatcher;
+
+    // State shared with the other ref jobs of a repository update (null if there are none)
+    private final SharedUpdateState sharedState;
+
+    // Documents written by the current update range, published to sharedState on success
+    private final Set<String> writtenIds;
+
+    // Documents written by the current update range that didn't fit in writtenIds (guarded by
+    // writtenIds)
+    private int unrecordedCount;
+
+    // Files written by the current update range, added to fileCache on success (guarded by
+    // writtenIds)
+    private IndexedFileCache.FingerprintSet writtenFiles;
+
+    public SearchUpdateJobImpl(SearchFilterUtils sfu, PluginLoggerFactory plf,
+        CatFileProcessPool catFilePool, IndexedFileCache fileCache, BulkFeedback bulkFeedback,
+        SharedBulkBatcher bulkBatcher, Repository repository, String ref,
+        SharedUpdateState sharedState) {
         this.plf = plf;
         this.log = plf.getLogger(this.getClass().toString());
         this.repository = repository;
         this.ref = ref;
         this.sfu = sfu;
+        this.catFilePool = catFilePool;
+        this.fileCache = fileCache;
+        this.bulkFeedback = bulkFeedback;
+        this.bulkBatcher = bulkBatcher;
+        this.sharedState = sharedState;
+        this.writtenIds = Collections.synchronizedSet(new HashSet<String>());
+        this.writtenFiles = new IndexedFileCache.FingerprintSet();
     }
 
     @Override
@@ -127,19 +209,23 @@ class SearchUpdateJobImpl implements SearchUpdateJob {
         return true;
     }
 
+    private IndexRequestBuilder buildLatestIndexedNote(Client client, String commitHash)
+        throws IOException {
+        return client.prepareIndex(ES_UPDATEALIAS, "latestindexed", toString())
+            .setSource(jsonBuilder()
+                .startObject()
+                .field("project", repository.getProject().getKey())
+                .field("repository", repository.getSlug())
+                .field("ref", ref)
+                .field("hash", commitHash)
+                .endObject())
+            .setRouting(getRepoDesc());
+    }
+
     // Returns true iff successful
     private boolean addLatestIndexedNote(Client client, String commitHash) {
         try {
-            client.prepareIndex(ES_UPDATEALIAS, "latestindexed", toString())
-                .setSource(jsonBuilder()
-                    .startObject()
-                    .field("project", repository.getProject().getKey())
-                    .field("repository", repository.getSlug())
-                    .field("ref", ref)
-                    .field("hash", commitHash)
-                    .endObject())
-                .setRouting(getRepoDesc())
-                .get();
+            buildLatestIndexedNote(client, commitHash).get();
         } catch (Exception e) {
             log.error("Caught error adding the latest indexed hash {}:{} to the index",
                 toString(), commitHash, e);
@@ -168,204 +254,960 @@ class SearchUpdateJobImpl implements SearchUpdateJob {
         }
     }
 
-    // Returns a request to delete the ref from an arbitrary document with a refs field
-    private UpdateRequestBuilder buildDeleteFromRef(Client client, String type, String id) {
-        return client.prepareUpdate(ES_UPDATEALIAS, type, id)
-            .setScript("ctx._source.refs.contains(ref) ? ((ctx._source.refs.size() > 1) " +
-                "? (ctx._source.refs.remove(ref)) : (ctx.op = \"delete\")) : (ctx.op = \"none\")")
-            .setScriptLang("mvel")
-            .addScriptParam("ref", ref)
-            .setRetryOnConflict(MAX_ES_RETRIES)
+    /**
+     * Ref membership is stored in small child documents (of type "commitref" or "fileref") with
+     * one child per document and ref, so adding a document to a ref or removing it from one never
+     * rewrites the document itself. Commits and files are kept when their last ref is removed
+     * (so that adding them back is cheap) and are only deleted along with their repository.
+     */
+
+    // Returns a request to delete the ref's membership of a commit or file
+    private DeleteRequestBuilder buildDeleteFromRef(Client client, String type, String id) {
+        return client.prepareDelete(ES_UPDATEALIAS, type + "ref", id + "^" + ref)
             .setRouting(getRepoDesc());
     }
 
-    // Returns a request to add the ref to an arbitrary document with a refs field
-    private UpdateRequestBuilder buildAddToRef(Client client, String type, String id) {
+    // Returns a request to add a commit or file to the ref. The document itself does not need to
+    // be in the index yet.
+    private IndexRequestBuilder buildAddToRef(Client client, String type, String id)
+        throws IOException {
+        return client.prepareIndex(ES_UPDATEALIAS, type + "ref", id + "^" + ref)
+            .setParent(id)
+            .setRouting(getRepoDesc())
+            .setSource(jsonBuilder()
+                .startObject()
+                .field("project", repository.getProject().getKey())
+                .field("repository", repository.getSlug())
+                .field("document", id)
+                .field("refs", ref)
+                .endObject());
+    }
+
+    // Returns a request to insert a commit or file document, unless it is already in the index
+    private UpdateRequestBuilder buildInsert(Client client, String type, String id,
+        XContentBuilder source) {
         return client.prepareUpdate(ES_UPDATEALIAS, type, id)
-            .setScript("ctx._source.refs.contains(ref) " +
-                "? (ctx.op = \"none\") : (ctx._source.refs += ref)")
+            .setScript("ctx.op = \"none\"")
             .setScriptLang("mvel")
-            .addScriptParam("ref", ref)
             .setRetryOnConflict(MAX_ES_RETRIES)
-            .setRouting(getRepoDesc());
+            .setRouting(getRepoDesc())
+            .setUpsert(source);
     }
 
-    // Returns a request to delete a blob/path pair from the index.
-    private UpdateRequestBuilder buildDeleteFileFromRef(Client client, String blob, String path) {
-        String fileId = getRepoDesc() + "^" + blob + "^:/" + path;
-        return buildDeleteFromRef(client, "file", fileId);
+    private String getFileId(String blob, String path) {
+        return getRepoDesc() + "^" + blob + "^:/" + path;
     }
 
-    // Returns a request to add a file to a ref via an update script. Will fail if document is not
-    // in the index.
-    private UpdateRequestBuilder buildAddFileToRef(Client client, String blob, String path) {
-        String fileId = getRepoDesc() + "^" + blob + "^:/" + path;
-        return buildAddToRef(client, "file", fileId);
+    private String getCommitId(String commitHash) {
+        return getRepoDesc() + "^" + commitHash;
     }
 
-    // Returns a request to delete a commit from the index.
-    private UpdateRequestBuilder buildDeleteCommitFromRef(Client client, String commitHash) {
-        String commitId = getRepoDesc() + "^" + commitHash;
-        return buildDeleteFromRef(client, "commit", commitId);
+    // Returns true iff an earlier job of the same repository update wrote the document
+    private boolean isSharedDocument(String id) {
+        return sharedState != null && sharedState.contains(id);
     }
 
-    // Returns a request to add a commit to a ref via an update script. Will fail if document is not
-    // in the index.
-    private UpdateRequestBuilder buildAddCommitToRef(Client client, String commitHash) {
-        String commitId = getRepoDesc() + "^" + commitHash;
-        return buildAddToRef(client, "commit", commitId);
+    // Records a file document written (or found) by this job, for the indexed file cache and the
+    // jobs that share its state.
+    private void recordWrittenFile(String id) {
+        synchronized (writtenIds) {
+            writtenFiles.add(IndexedFileCache.fingerprint(id));
+            recordWritten(id);
+        }
     }
 
-    @Override
-    public void doReindex(Client client, GitScm gitScm, GlobalSettings globalSettings) {
-        if (!globalSettings.getIndexingEnabled()) {
+    // Records a document written (or found) by this job, for the jobs that share its state. Once
+    // the job has collected as many documents as the state can hold, the rest are only counted.
+    private void recordWritten(String id) {
+        if (sharedState == null) {
             return;
         }
-        deleteLatestIndexedNote(client);
-        while (true) {
+        synchronized (writtenIds) {
+            if (writtenIds.size() < SharedUpdateState.MAX_DOCUMENTS) {
+                writtenIds.add(id);
+            } else {
+                ++unrecordedCount;
+            }
+        }
+    }
+
+    // Returns a request to delete a blob/path pair from the ref.
+    private DeleteRequestBuilder buildDeleteFileFromRef(Client client, String blob, String path) {
+        return buildDeleteFromRef(client, "file", getFileId(blob, path));
+    }
+
+    // Returns a request to add a blob/path pair to the ref.
+    private IndexRequestBuilder buildAddFileToRef(Client client, String blob, String path)
+        throws IOException {
+        return buildAddToRef(client, "file", getFileId(blob, path));
+    }
+
+    // Returns a request to delete a commit from the ref.
+    private DeleteRequestBuilder buildDeleteCommitFromRef(Client client, String commitHash) {
+        return buildDeleteFromRef(client, "commit", getCommitId(commitHash));
+    }
+
+    // Returns a request to add a commit to the ref.
+    private IndexRequestBuilder buildAddCommitToRef(Client client, String commitHash)
+        throws IOException {
+        return buildAddToRef(client, "commit", getCommitId(commitHash));
+    }
+
+    // Returns a request to insert a file document with the specified contents if the blob/path
+    // pair is not already in the index. The file must be added to the ref separately.
+    private UpdateRequestBuilder buildUpsertFile(Client client, String blob, String path,
+        FileContents contents) throws IOException {
+        XContentBuilder source = jsonBuilder()
+            .startObject()
+            .field("project", repository.getProject().getKey())
+            .field("repository", repository.getSlug())
+            .field("blob", blob)
+            .field("path", path)
+            .field("extension", FilenameUtils.getExtension(path).toLowerCase());
+        contents.addField(source, "contents")
+            .field("charcount", contents.getCharCount())
+            .field("linecount", contents.getLineCount())
+            .endObject();
+        return buildInsert(client, "file", getFileId(blob, path), source);
+    }
+
+    // Returns a request to insert a file document without contents of its own if the blob/path
+    // pair is not already in the index. Used with shared blob storage.
+    private UpdateRequestBuilder buildUpsertSharedBlobFile(Client client, String blob,
+        String path, int charcount, int linecount) throws IOException {
+        return buildInsert(client, "file", getFileId(blob, path), jsonBuilder()
+            .startObject()
+            .field("project", repository.getProject().getKey())
+            .field("repository", repository.getSlug())
+            .field("blob", blob)
+            .field("path", path)
+            .field("extension", FilenameUtils.getExtension(path).toLowerCase())
+            .field("charcount", charcount)
+            .field("linecount", linecount)
+            .endObject());
+    }
+
+    // Returns a request to add the repository to the list of repositories referencing a stored
+    // blob (which is a no-op if it's already listed). Searches only consider blobs referenced by
+    // repositories the user can see.
+    private UpdateRequestBuilder buildAddRepositoryToBlob(Client client, String blob) {
+        return client.prepareUpdate(ES_UPDATEALIAS, "blob", blob)
+            .setScript(ADD_BLOB_REPOSITORY_SCRIPT)
+            .setScriptLang("mvel")
+            .addScriptParam("repository", getRepoDesc())
+            .setRetryOnConflict(MAX_ES_RETRIES);
+    }
+
+    // Returns a request to insert a blob's contents into the shared blob storage. Blob documents
+    // are keyed (and routed) by hash alone and their contents never change once written, so this
+    // only adds the repository to the blob's repositories if the blob is already in the index.
+    private UpdateRequestBuilder buildUpsertBlob(Client client, String blob,
+        FileContents contents) throws IOException {
+        XContentBuilder source = jsonBuilder()
+            .startObject()
+            .field("blob", blob)
+            .array("repositories", getRepoDesc());
+        contents.addField(source, "contents")
+            .field("charcount", contents.getCharCount())
+            .field("linecount", contents.getLineCount())
+            .endObject();
+        return buildAddRepositoryToBlob(client, blob).setUpsert(source);
+    }
+
+    // Returns a request to insert a commit document if the commit is not already in the index.
+    // The commit must be added to the ref separately.
+    private UpdateRequestBuilder buildUpsertCommit(Client client, String hash, long timestamp,
+        String authorName, String authorEmail, String subject, String body) throws IOException {
+        return buildInsert(client, "commit", getCommitId(hash), jsonBuilder()
+            .startObject()
+            .field("project", repository.getProject().getKey())
+            .field("repository", repository.getSlug())
+            .field("hash", hash)
+            .field("commitdate", new Date(timestamp))
+            .field("authorname", authorName)
+            .field("authoremail", authorEmail)
+            .field("subject", subject)
+            .field("body", body)
+            .endObject());
+    }
+
+    // With shared blob storage, adds file upserts for the files whose blobs are already
+    // stored (possibly by another repository) to the request buffer, and returns the files whose
+    // blobs still need to be read. If a lookup fails, the files it covered are read.
+    private List<SimpleEntry<String, String>> addStoredBlobFiles(Client client,
+        RequestBuffer requestBuffer, List<SimpleEntry<String, String>> files) {
+        List<SimpleEntry<String, String>> filesToRead =
+            new ArrayList<SimpleEntry<String, String>>();
+        for (List<SimpleEntry<String, String>> batch : Lists.partition(files,
+            BLOB_LOOKUP_BATCH_SIZE)) {
             try {
-                SearchRequestBuilder esReq = client.prepareSearch(ES_UPDATEALIAS)
-                    .setSize(1000)
-                    .setFetchSource(false)
-                    .setRouting(getRepoDesc())
-                    .setQuery(filteredQuery(matchAllQuery(), andFilter(
-                        sfu.projectRepositoryFilter(
-                            repository.getProject().getKey(), repository.getSlug()),
-                        sfu.exactRefFilter(ref))));
-                BulkRequestBuilder bulkDelete = client.prepareBulk().setRefresh(true);
-                for (SearchHit hit : esReq.get().getHits().getHits()) {
-                    bulkDelete.add(buildDeleteFromRef(client, hit.getType(), hit.getId()));
+                MultiGetRequestBuilder blobLookup = client.prepareMultiGet();
+                for (SimpleEntry<String, String> bppair : batch) {
+                    blobLookup.add(new MultiGetRequest.Item(ES_UPDATEALIAS, "blob",
+                        bppair.getKey()).fields("charcount", "linecount", "repositories"));
                 }
-                if (bulkDelete.numberOfActions() == 0) {
-                    break;
+                MultiGetItemResponse[] responses = blobLookup.get().getResponses();
+                if (responses.length != batch.size()) {
+                    throw new IndexOutOfBoundsException(
+                        "Multiget resp. array must have the same length as original request array");
                 }
-                bulkDelete.get();
+
+                List<SimpleEntry<String, String>> batchToRead =
+                    new ArrayList<SimpleEntry<String, String>>();
+                List<UpdateRequestBuilder> upserts = new ArrayList<UpdateRequestBuilder>();
+                List<IndexRequestBuilder> refAdds = new ArrayList<IndexRequestBuilder>();
+                Set<String> blobsToClaim = new LinkedHashSet<String>();
+                int count = 0;
+                for (SimpleEntry<String, String> bppair : batch) {
+                    GetResponse blobDoc = responses[count++].getResponse();
+                    if (blobDoc == null || !blobDoc.isExists() ||
+                        blobDoc.getField("charcount") == null ||
+                        blobDoc.getField("linecount") == null) {
+                        batchToRead.add(bppair);
+                        continue;
+                    }
+                    upserts.add(buildUpsertSharedBlobFile(client, bppair.getKey(),
+                        bppair.getValue(),
+                        ((Number) blobDoc.getField("charcount").getValue()).intValue(),
+                        ((Number) blobDoc.getField("linecount").getValue()).intValue()));
+                    GetField repositories = blobDoc.getField("repositories");
+                    if (repositories == null ||
+                        !repositories.getValues().contains(getRepoDesc())) {
+                        blobsToClaim.add(bppair.getKey());
+                    }
+                    refAdds.add(buildAddFileToRef(client, bppair.getKey(), bppair.getValue()));
+                    recordWrittenFile(getFileId(bppair.getKey(), bppair.getValue()));
+                }
+                synchronized (requestBuffer) {
+                    for (String blob : blobsToClaim) {
+                        requestBuffer.add(buildAddRepositoryToBlob(client, blob));
+                    }
+                    for (UpdateRequestBuilder upsert : upserts) {
+                        requestBuffer.add(upsert);
+                    }
+                    for (IndexRequestBuilder refAdd : refAdds) {
+                        requestBuffer.add(refAdd);
+                    }
+                }
+                filesToRead.addAll(batchToRead);
             } catch (Exception e) {
-                log.error("Could not delete documents for {}, aborting", toString(), e);
-                return;
+                log.warn("Caught error looking up stored blobs for {}, reading {} files",
+                    toString(), batch.size(), e);
+                filesToRead.addAll(batch);
             }
         }
-        doUpdate(client, gitScm, globalSettings);
+        log.debug("{} update: {} of {} blobs already stored", toString(),
+            files.size() - filesToRead.size(), files.size());
+        return filesToRead;
+    }
+
+    // Reads a chunk of files with cat-file and adds an upsert and a ref membership for each text
+    // file to the request buffer (which is shared between concurrent readers). With shared blob
+    // storage, only blobs that aren't stored yet are read, and each read blob gets a blob upsert
+    // in addition to its file's upsert.
+    private void upsertFileChunk(final Client client, GitCommandBuilderFactory builderFactory,
+        final RequestBuffer requestBuffer, List<SimpleEntry<String, String>> chunk,
+        int maxFileSize, final boolean sharedBlobs) throws IOException {
+        final List<SimpleEntry<String, String>> files =
+            sharedBlobs ? addStoredBlobFiles(client, requestBuffer, chunk) : chunk;
+        if (files.isEmpty()) {
+            return;
+        }
+        List<String> blobs = new ArrayList<String>(files.size());
+        for (SimpleEntry<String, String> bppair : files) {
+            blobs.add(bppair.getKey());
+        }
+        CatFileOutputHandler catFileOutput = new CatFileOutputHandler(plf, maxFileSize,
+            new CatFileOutputHandler.FileListener() {
+
+                @Override
+                public void processFile(int index, FileContents contents) throws IOException {
+                    if (contents != null) {
+                        SimpleEntry<String, String> bppair = files.get(index);
+                        String blob = bppair.getKey(), path = bppair.getValue();
+                        IndexRequestBuilder refAdd = buildAddFileToRef(client, blob, path);
+                        if (sharedBlobs) {
+                            UpdateRequestBuilder blobUpsert =
+                                buildUpsertBlob(client, blob, contents);
+                            UpdateRequestBuilder fileUpsert = buildUpsertSharedBlobFile(
+                                client, blob, path, contents.getCharCount(),
+                                contents.getLineCount());
+                            synchronized (requestBuffer) {
+                                requestBuffer.add(blobUpsert);
+                                requestBuffer.add(fileUpsert);
+                                requestBuffer.add(refAdd);
+                            }
+                        } else {
+                            UpdateRequestBuilder upsert =
+                                buildUpsertFile(client, blob, path, contents);
+                            synchronized (requestBuffer) {
+                                requestBuffer.add(upsert);
+                                requestBuffer.add(refAdd);
+                            }
+                        }
+                        recordWrittenFile(getFileId(blob, path));
+                    }
+                }
+            }, catFilePool.getBufferPool());
+        Integer objectsRead;
+        try {
+            objectsRead = readObjects(builderFactory, blobs, catFileOutput);
+        } finally {
+            catFileOutput.releaseBuffer();
+        }
+        if (objectsRead == null || objectsRead != files.size()) {
+            throw new IndexOutOfBoundsException(
+                "git cat-file --batch returned wrong number of objects");
+        }
+    }
+
+    // Splits the files into (at most) the specified number of chunks and reads them concurrently,
+    // merging all upserts into the job's request buffer. The first chunk is read on the calling
+    // thread.
+    private void upsertFiles(final Client client, final GitCommandBuilderFactory builderFactory,
+        final RequestBuffer requestBuffer, List<SimpleEntry<String, String>> files,
+        final int maxFileSize, final boolean sharedBlobs, int parallelism) throws Exception {
+        int chunkSize = (files.size() + parallelism - 1) / parallelism;
+        List<List<SimpleEntry<String, String>>> chunks = Lists.partition(files, chunkSize);
+        log.debug("{} update: reading {} files with {} cat-file readers",
+            toString(), files.size(), chunks.size());
+        List<Future<Void>> readers = new ArrayList<Future<Void>>(chunks.size() - 1);
+        for (final List<SimpleEntry<String, String>> chunk : chunks.subList(1, chunks.size())) {
+            readers.add(catFilePool.submitReader(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException {
+                    upsertFileChunk(client, builderFactory, requestBuffer, chunk, maxFileSize,
+                        sharedBlobs);
+                    return null;
+                }
+            }));
+        }
+
+        // Wait for every reader before reporting errors, so that no reader is left adding to
+        // the request buffer after we return
+        Exception error = null;
+        try {
+            upsertFileChunk(client, builderFactory, requestBuffer, chunks.get(0), maxFileSize,
+                sharedBlobs);
+        } catch (Exception e) {
+            error = e;
+        }
+        for (Future<Void> reader : readers) {
+            try {
+                reader.get();
+            } catch (ExecutionException e) {
+                if (error == null && e.getCause() instanceof Exception) {
+                    error = (Exception) e.getCause();
+                } else if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Feeds objects through cat-file, preferring a pooled cat-file process for the repository.
+    // Returns the number of objects read (null if reading failed).
+    private Integer readObjects(GitCommandBuilderFactory builderFactory, List<String> objects,
+        CatFileOutputHandler catFileOutput) throws IOException {
+        CatFileProcess catFileProcess = catFilePool.borrow(repository, builderFactory);
+        if (catFileProcess != null) {
+            try {
+                return catFileProcess.read(objects, catFileOutput);
+            } finally {
+                catFilePool.release(catFileProcess);
+            }
+        }
+
+        // No pooled process available, so use a one-shot cat-file
+        return builderFactory.builder(repository)
+            .command("cat-file")
+            .argument("--batch")
+            .inputHandler(new CatFileInputHandler(objects))
+            .build(catFileOutput).call();
+    }
+
+    // Returns a query for the ref's membership documents
+    private SearchRequestBuilder prepareRefMembershipSearch(Client client) {
+        return client.prepareSearch(ES_UPDATEALIAS)
+            .setTypes("commitref", "fileref")
+            .setRouting(getRepoDesc())
+            .setQuery(filteredQuery(matchAllQuery(), andFilter(
+                sfu.projectRepositoryFilter(
+                    repository.getProject().getKey(), repository.getSlug()),
+                sfu.exactRefMembershipFilter(ref))));
+    }
+
+    // Removes the ref from every document in the index. The membership documents are streamed
+    // from a single scan into the request buffer, and the index is only refreshed once, to check
+    // that none are left. Returns true iff successful.
+    private boolean removeRefFromIndex(Client client, GlobalSettings globalSettings) {
+        RequestBuffer requestBuffer = newRequestBuffer(client, globalSettings);
+        try {
+            SearchResponse resp = prepareRefMembershipSearch(client)
+                .setSearchType(SearchType.SCAN)
+                .setScroll(SCROLL_TIMEOUT)
+                .setSize(500)
+                .setFetchSource(false)
+                .get();
+            while (true) {
+                resp = client.prepareSearchScroll(resp.getScrollId())
+                    .setScroll(SCROLL_TIMEOUT)
+                    .get();
+                SearchHit[] hits = resp.getHits().getHits();
+                if (hits.length == 0) {
+                    break;
+                }
+                for (SearchHit hit : hits) {
+                    requestBuffer.add(client.prepareDelete(ES_UPDATEALIAS, hit.getType(),
+                        hit.getId()).setRouting(getRepoDesc()));
+                }
+            }
+            requestBuffer.flush();
+            logBulkSizes("ref removal", requestBuffer);
+            if (!checkBulkFailures("ref removal", requestBuffer)) {
+                return false;
+            }
+
+            client.admin().indices().prepareRefresh(ES_UPDATEALIAS).get();
+            long remaining = prepareRefMembershipSearch(client)
+                .setSearchType(SearchType.COUNT)
+                .get().getHits().getTotalHits();
+            if (remaining > 0) {
+                log.error("{} ref removal: {} documents still belong to the ref", toString(),
+                    remaining);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("Could not delete documents for {}", toString(), e);
+            return false;
+        }
     }
 
     @Override
-    public void doUpdate(Client client, GitScm gitScm, GlobalSettings globalSettings) {
+    public void doReindex(Client client, GitScm gitScm, GlobalSettings globalSettings) {
         if (!globalSettings.getIndexingEnabled()) {
             return;
         }
+        deleteLatestIndexedNote(client);
+        deleteCheckpoint(client);
+        if (!removeRefFromIndex(client, globalSettings)) {
+            log.error("Aborting reindex of {}", toString());
+            return;
+        }
+        // Don't seed from another ref, since a reindex should rebuild the ref from scratch
+        doUpdate(client, gitScm, globalSettings, false);
+    }
 
-        GitCommandBuilderFactory builderFactory = gitScm.getCommandBuilderFactory();
+    /**
+     * A ref without a latest indexed note would normally be indexed from EMPTY_TREE, re-adding
+     * every file and commit in its history. Most new refs are branched off refs that are already
+     * indexed, so instead we pick the indexed ref of the same repository with the fewest commits
+     * on either side of its merge base with the new ref, copy that ref's documents to the new ref
+     * in bulk, and diff from its indexed commit. The following methods implement this seeding.
+     */
 
-        // List of bulk requests to execute sequentially at the end of the method
-        RequestBuffer requestBuffer = new RequestBuffer(client);
+    // Returns the latest indexed hashes of the repository's refs (at most MAX_SEED_CANDIDATES)
+    private Map<String, String> getIndexedRefs(Client client) {
+        Map<String, String> indexedRefs = new LinkedHashMap<String, String>();
+        try {
+            SearchResponse resp = client.prepareSearch(ES_UPDATEALIAS)
+                .setTypes("latestindexed")
+                .setSize(MAX_SEED_CANDIDATES)
+                .setRouting(getRepoDesc())
+                .setQuery(filteredQuery(matchAllQuery(), sfu.projectRepositoryFilter(
+                    repository.getProject().getKey(), repository.getSlug())))
+                .get();
+            for (SearchHit hit : resp.getHits().getHits()) {
+                Map<String, Object> source = hit.getSource();
+                String indexedRef = source.get("ref").toString();
+                String hash = source.get("hash").toString();
+                if (!ref.equals(indexedRef) && hash.length() == 40) {
+                    indexedRefs.put(indexedRef, hash);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Caught error listing indexed refs of {}", getRepoDesc(), e);
+        }
+        return indexedRefs;
+    }
 
-        // Unique identifier for ref
-        String refDesc = toString();
+    // Returns the number of commits reachable from exactly one of the revisions, or the number of
+    // commits reachable from fromHash if toHash is null (-1 on error)
+    private long countCommits(GitCommandBuilderFactory builderFactory, String fromHash,
+        String toHash) {
+        try {
+            String[] counts = builderFactory.builder(repository)
+                .command("rev-list")
+                .argument("--count")
+                .argument("--left-right")
+                .argument(toHash == null ? fromHash : fromHash + "..." + toHash)
+                .build(new StringOutputHandler(plf)).call()
+                .trim().split("\\s+");
+            long count = 0;
+            for (String c : counts) {
+                count += Long.parseLong(c);
+            }
+            return count;
+        } catch (Exception e) {
+            log.debug("Caught error counting commits between {} and {}", fromHash, toHash, e);
+            return -1;
+        }
+    }
 
-        // Hash of latest indexed commit
-        String prevHash = getLatestIndexedHash(client);
+    // Returns a request buffer with the bulk limits of the global settings, sharing bulks with
+    // concurrent jobs if enabled. Its bulks are only known to be written once flush() returns.
+    private RequestBuffer newRequestBuffer(Client client, GlobalSettings globalSettings) {
+        return new RequestBuffer(client, globalSettings.getBulkMaxActions(),
+            globalSettings.getBulkMaxBytes(), globalSettings.getBulkMaxInFlight(), bulkFeedback,
+            globalSettings.getBulkLinger() > 0 ? bulkBatcher : null);
+    }
 
-        // Hash of latest commit on ref
-        String newHash = getLatestHash(builderFactory);
-        if (newHash == null) {
-            log.error("Aborting since hash is invalid");
+    // Logs the sizes of the bulks a request buffer has sent
+    private void logBulkSizes(String operation, RequestBuffer requestBuffer) {
+        int bulks = requestBuffer.getBulkCount();
+        if (bulks == 0) {
             return;
         }
+        log.info("{} {}: sent {} bulk requests averaging {} actions and {} bytes ({} sent at " +
+            "the size limit)", toString(), operation, bulks, requestBuffer.getActionCount() / bulks,
+            requestBuffer.getByteCount() / bulks, requestBuffer.getSizeLimitedCount());
+    }
 
-        // Diff for files & process changes
-        Set<SimpleEntry<String, String>> filesToAdd =
-            new LinkedHashSet<SimpleEntry<String, String>>();
+    // Returns true iff every item a request buffer has sent so far was written. Logs an error
+    // otherwise, since the caller must then not record its progress.
+    private boolean checkBulkFailures(String operation, RequestBuffer requestBuffer) {
+        int failed = requestBuffer.getFailedCount();
+        if (failed == 0) {
+            return true;
+        }
+        log.error("{} {}: {} bulk items failed permanently (first failure: {}), aborting",
+            toString(), operation, failed, requestBuffer.getFailureMessage());
+        return false;
+    }
+
+    // Adds the ref to every document on seedRef. Returns true iff successful.
+    private boolean copyRefFrom(Client client, GlobalSettings globalSettings, String seedRef) {
+        RequestBuffer requestBuffer = newRequestBuffer(client, globalSettings);
         try {
-            // Get diff --raw -z tokens
-            String[] diffToks = builderFactory.builder(repository)
-                .command("diff")
-                .argument("--raw").argument("--abbrev=40").argument("-z")
-                .argument(prevHash).argument(newHash)
+            // Scans only see refreshed documents, and the seed's note (read in real time) may
+            // already cover writes that haven't been refreshed yet
+            client.admin().indices().prepareRefresh(ES_UPDATEALIAS).get();
+            SearchResponse resp = client.prepareSearch(ES_UPDATEALIAS)
+                .setTypes("commitref", "fileref")
+                .setSearchType(SearchType.SCAN)
+                .setScroll(SCROLL_TIMEOUT)
+                .setSize(500)
+                .setFetchSource("document", null)
+                .setRouting(getRepoDesc())
+                .setQuery(filteredQuery(matchAllQuery(), andFilter(
+                    sfu.projectRepositoryFilter(
+                        repository.getProject().getKey(), repository.getSlug()),
+                    sfu.exactRefMembershipFilter(seedRef))))
+                .get();
+            while (true) {
+                resp = client.prepareSearchScroll(resp.getScrollId())
+                    .setScroll(SCROLL_TIMEOUT)
+                    .get();
+                SearchHit[] hits = resp.getHits().getHits();
+                if (hits.length == 0) {
+                    break;
+                }
+                for (SearchHit hit : hits) {
+                    String type = hit.getType().equals("fileref") ? "file" : "commit";
+                    requestBuffer.add(buildAddToRef(client, type,
+                        hit.getSource().get("document").toString()));
+                }
+            }
+            requestBuffer.flush();
+            logBulkSizes("seed", requestBuffer);
+            if (!checkBulkFailures("seed", requestBuffer)) {
+                return false;
+            }
+        } catch (Exception e) {
+            log.error("Caught error copying documents from {} to {}", seedRef, ref, e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Seeds the ref from the closest indexed ref and writes its latest indexed note. Returns the
+     * seed hash (from which the caller should diff), EMPTY_TREE if the ref wasn't seeded, or null if
+     * seeding failed and left copied documents that could not be removed.
+     */
+    private String seedFromIndexedRef(Client client, GitCommandBuilderFactory builderFactory,
+        GlobalSettings globalSettings, String newHash) {
+        Map<String, String> indexedRefs = getIndexedRefs(client);
+        if (indexedRefs.isEmpty()) {
+            return EMPTY_TREE;
+        }
+
+        // Seeding only pays off if the seed is closer than a full index
+        long bestCost = countCommits(builderFactory, newHash, null);
+        String seedRef = null, seedHash = null;
+        for (Map.Entry<String, String> indexedRef : indexedRefs.entrySet()) {
+            long cost = countCommits(builderFactory, indexedRef.getValue(), newHash);
+            if (cost >= 0 && (bestCost < 0 || cost < bestCost)) {
+                bestCost = cost;
+                seedRef = indexedRef.getKey();
+                seedHash = indexedRef.getValue();
+            }
+        }
+        if (seedRef == null) {
+            return EMPTY_TREE;
+        }
+
+        // A seed with an update in progress has documents beyond its indexed commit
+        SearchUpdateJobImpl seedJob = new SearchUpdateJobImpl(sfu, plf, catFilePool, fileCache,
+            bulkFeedback, bulkBatcher, repository, seedRef, null);
+        if (seedJob.isUpdateInProgress(client)) {
+            log.info("Not seeding {} from {}, which is being updated", toString(), seedRef);
+            return EMPTY_TREE;
+        }
+
+        log.info("Seeding {} from {} at {} ({} commits apart)",
+            toString(), seedRef, seedHash, bestCost);
+        if (copyRefFrom(client, globalSettings, seedRef) &&
+            seedHash.equals(seedJob.getLatestIndexedHash(client)) &&
+            !seedJob.isUpdateInProgress(client) &&
+            addLatestIndexedNote(client, seedHash)) {
+            return seedHash;
+        }
+
+        // An update of the seed started (and possibly finished) while we were copying it, or
+        // copying failed, so the copied documents may not correspond to seedHash
+        log.warn("Unable to seed {} from {}, indexing from scratch", toString(), seedRef);
+        return removeRefFromIndex(client, globalSettings) ? EMPTY_TREE : null;
+    }
+
+    /**
+     * Long updates write checkpoints to ES_UPDATEALIAS so that an interrupted job can resume where
+     * it left off instead of starting over from the latest indexed commit. A checkpoint records
+     * the range being indexed and how many of its diff entries and new commits have been durably
+     * written. Every index operation is idempotent, so replaying work past the checkpoint is
+     * harmless.
+     *
+     * Only refs with a latest indexed note can be seeded from, so an update of such a ref also
+     * uses its checkpoint to mark the update in progress. The checkpoint is a barrier at the head
+     * of the update's first bulk: it's routed with the ref's documents, so it's applied before
+     * them, and later bulks wait for it. It's only deleted after the note has moved. Seeding
+     * relies on this to avoid copying a ref in the middle of an update. Updates of other refs only
+     * write checkpoints once they have flushed a full chunk of diff entries or commits.
+     */
+    private static class Checkpoint {
+
+        private final String prevHash;
+        private final String newHash;
+        private int diffOffset;
+        private int commitOffset;
+        private boolean stored;
+
+        public Checkpoint(String prevHash, String newHash, int diffOffset, int commitOffset,
+            boolean stored) {
+            this.prevHash = prevHash;
+            this.newHash = newHash;
+            this.diffOffset = diffOffset;
+            this.commitOffset = commitOffset;
+            this.stored = stored;
+        }
+    }
+
+    // Returns null if the ref has no checkpoint
+    private Checkpoint getCheckpoint(Client client) {
+        try {
+            GetResponse resp = client.prepareGet(ES_UPDATEALIAS, "checkpoint", toString())
+                .setRouting(getRepoDesc())
+                .get();
+            if (!resp.isExists()) {
+                return null;
+            }
+            Map<String, Object> source = resp.getSourceAsMap();
+            return new Checkpoint(
+                source.get("prevhash").toString(),
+                source.get("newhash").toString(),
+                ((Number) source.get("diffoffset")).intValue(),
+                ((Number) source.get("commitoffset")).intValue(),
+                true);
+        } catch (Exception e) {
+            log.warn("Caught error getting the update checkpoint for {}, ignoring it",
+                toString(), e);
+            return null;
+        }
+    }
+
+    // Returns true if the ref has a checkpoint, i.e. an update in progress (or interrupted), or if
+    // that can't be determined
+    private boolean isUpdateInProgress(Client client) {
+        try {
+            return client.prepareGet(ES_UPDATEALIAS, "checkpoint", toString())
+                .setRouting(getRepoDesc())
+                .setFetchSource(false)
+                .get().isExists();
+        } catch (Exception e) {
+            log.warn("Caught error looking up the update checkpoint for {}", toString(), e);
+            return true;
+        }
+    }
+
+    private DeleteRequestBuilder buildDeleteCheckpoint(Client client) {
+        return client.prepareDelete(ES_UPDATEALIAS, "checkpoint", toString())
+            .setRouting(getRepoDesc());
+    }
+
+    // Returns true iff successful
+    private boolean deleteCheckpoint(Client client) {
+        try {
+            buildDeleteCheckpoint(client).get();
+        } catch (Exception e) {
+            log.warn("Caught error deleting the update checkpoint for {} from the index",
+                toString(), e);
+            return false;
+        }
+        return true;
+    }
+
+    private IndexRequestBuilder buildAddCheckpoint(Client client, Checkpoint checkpoint)
+        throws IOException {
+        return client.prepareIndex(ES_UPDATEALIAS, "checkpoint", toString())
+            .setSource(jsonBuilder()
+                .startObject()
+                .field("project", repository.getProject().getKey())
+                .field("repository", repository.getSlug())
+                .field("ref", ref)
+                .field("prevhash", checkpoint.prevHash)
+                .field("newhash", checkpoint.newHash)
+                .field("diffoffset", checkpoint.diffOffset)
+                .field("commitoffset", checkpoint.commitOffset)
+                .endObject())
+            .setRouting(getRepoDesc());
+    }
+
+    // Returns true iff successful. All requests covered by the checkpoint must already have been
+    // written.
+    private boolean addCheckpoint(Client client, Checkpoint checkpoint) {
+        try {
+            buildAddCheckpoint(client, checkpoint).get();
+        } catch (Exception e) {
+            log.warn("Caught error adding update checkpoint for {}", toString(), e);
+            return false;
+        }
+        checkpoint.stored = true;
+        return true;
+    }
+
+    // Stores an intermediate checkpoint. A failure is logged but doesn't stop the update, which
+    // would only have to redo more work if it was interrupted.
+    private void storeCheckpoint(Client client, Checkpoint checkpoint) {
+        if (!addCheckpoint(client, checkpoint)) {
+            log.warn("Unable to checkpoint the update of {} at diff offset {}, commit offset {}; " +
+                "an interrupted update will redo this work", toString(), checkpoint.diffOffset,
+                checkpoint.commitOffset);
+        }
+    }
+
+    // Returns true iff the commit exists in the repository
+    private boolean commitExists(GitCommandBuilderFactory builderFactory, String hash) {
+        try {
+            return "commit".equals(builderFactory.builder(repository)
+                .command("cat-file")
+                .argument("-t")
+                .argument(hash)
                 .build(new StringOutputHandler(plf)).call()
-                .split("\u0000");
+                .trim());
+        } catch (Exception e) {
+            log.debug("Caught error looking up commit {}", hash, e);
+            return false;
+        }
+    }
 
-            // Process each diff --raw -z entry
-            for (int curTok = 0; curTok < diffToks.length; ++curTok) {
-                String[] statusToks = diffToks[curTok].split(" ");
-                if (statusToks.length < 5) {
-                    break;
+    // Changes from a contiguous run of diff entries
+    private static class DiffChunk {
+
+        private int entries = 0;
+        private final List<SimpleEntry<String, String>> filesToDelete =
+            new ArrayList<SimpleEntry<String, String>>();
+        private final Set<SimpleEntry<String, String>> filesToAdd =
+            new LinkedHashSet<SimpleEntry<String, String>>();
+    }
+
+    /**
+     * Groups the changes streamed from git diff into chunks of DIFF_CHECKPOINT_INTERVAL entries,
+     * indexing and checkpointing each chunk as soon as it is full so that at most one chunk is
+     * held in memory. Entries before the checkpoint's diff offset have already been indexed and
+     * are skipped as they stream past.
+     */
+    private class DiffIndexer implements RawDiffOutputHandler.ChangeListener {
+
+        private final Client client;
+        private final GitCommandBuilderFactory builderFactory;
+        private final GlobalSettings globalSettings;
+        private final RequestBuffer requestBuffer;
+        private final Checkpoint checkpoint;
+        private final int entriesToSkip;
+
+        private int entry = 0;
+        private DiffChunk chunk = new DiffChunk();
+
+        private DiffIndexer(Client client, GitCommandBuilderFactory builderFactory,
+            GlobalSettings globalSettings, RequestBuffer requestBuffer, Checkpoint checkpoint) {
+            this.client = client;
+            this.builderFactory = builderFactory;
+            this.globalSettings = globalSettings;
+            this.requestBuffer = requestBuffer;
+            this.checkpoint = checkpoint;
+            this.entriesToSkip = checkpoint.diffOffset;
+        }
+
+        @Override
+        public void processChange(RawDiffOutputHandler.ChangeType type, String oldBlob,
+            String newBlob, String oldPath, String newPath) throws IOException {
+            if (entry++ < entriesToSkip) {
+                return;
+            }
+            ++chunk.entries;
+            switch (type) {
+            case ADD:
+            case COPY:
+                chunk.filesToAdd.add(new SimpleEntry<String, String>(newBlob, newPath));
+                break;
+            case DELETE:
+                chunk.filesToDelete.add(new SimpleEntry<String, String>(oldBlob, oldPath));
+                break;
+            case MODIFY:
+                if (!oldBlob.equals(newBlob)) {
+                    chunk.filesToDelete.add(new SimpleEntry<String, String>(oldBlob, oldPath));
+                    chunk.filesToAdd.add(new SimpleEntry<String, String>(newBlob, newPath));
                 }
-                String status = statusToks[4];
-                String oldBlob = statusToks[2];
-                String newBlob = statusToks[3];
-
-                // File added
-                // TODO: so many warnings!  Generics, CAEN I HAZ THEM?
-                if (status.startsWith("A")) {
-                    String path = diffToks[++curTok];
-                    filesToAdd.add(new SimpleEntry<String, String>(newBlob, path));
-
-                    // File copied
-                } else if (status.startsWith("C")) {
-                    String toPath = diffToks[curTok += 2];
-                    filesToAdd.add(new SimpleEntry<String, String>(newBlob, toPath));
-
-                    // File deleted
-                } else if (status.startsWith("D")) {
-                    String path = diffToks[++curTok];
-                    requestBuffer.add(buildDeleteFileFromRef(client, oldBlob, path));
-
-                    // File modified
-                } else if (status.startsWith("M") || status.startsWith("T")) {
-                    String path = diffToks[++curTok];
-                    if (!oldBlob.equals(newBlob)) {
-                        requestBuffer.add(buildDeleteFileFromRef(client, oldBlob, path));
-                        filesToAdd.add(new SimpleEntry<String, String>(newBlob, path));
-                    }
+                break;
+            case RENAME:
+                chunk.filesToDelete.add(new SimpleEntry<String, String>(oldBlob, oldPath));
+                chunk.filesToAdd.add(new SimpleEntry<String, String>(newBlob, newPath));
+                break;
+            }
+            if (chunk.entries >= DIFF_CHECKPOINT_INTERVAL) {
+                if (!finish()) {
+                    throw new IOException("Unable to index diff chunk");
+                }
+                requestBuffer.flush();
+                if (!checkBulkFailures("update", requestBuffer)) {
+                    throw new IOException("Bulk items failed permanently");
+                }
+                storeCheckpoint(client, checkpoint);
+            }
+        }
+
+        // Indexes the current chunk, counting it towards the checkpoint's diff offset. Its
+        // requests may still be buffered. Returns true iff successful.
+        private boolean finish() {
+            if (chunk.entries == 0) {
+                return true;
+            }
+            log.debug("{} update: deleting {} files, adding {} files", SearchUpdateJobImpl.this,
+                chunk.filesToDelete.size(), chunk.filesToAdd.size());
+            for (SimpleEntry<String, String> bppair : chunk.filesToDelete) {
+                requestBuffer.add(buildDeleteFileFromRef(client, bppair.getKey(), bppair.getValue()));
+            }
+            if (!indexFiles(client, builderFactory, requestBuffer, chunk.filesToAdd,
+                globalSettings)) {
+                return false;
+            }
+            checkpoint.diffOffset += chunk.entries;
+            chunk = new DiffChunk();
+            return true;
+        }
+    }
 
-                    // File renamed
-                } else if (status.startsWith("R")) {
-                    String fromPath = diffToks[++curTok];
-                    String toPath = diffToks[++curTok];
-                    requestBuffer.add(buildDeleteFileFromRef(client, oldBlob, fromPath));
-                    filesToAdd.add(new SimpleEntry<String, String>(newBlob, toPath));
+    // Adds the files to the ref, indexing the contents of any blob/path pairs that aren't in the
+    // index yet. Returns true iff successful.
+    private boolean indexFiles(Client client, GitCommandBuilderFactory builderFactory,
+        RequestBuffer requestBuffer, Set<SimpleEntry<String, String>> filesToAdd,
+        GlobalSettings globalSettings) {
+        String refDesc = toString();
 
-                    // Unknown change
-                } else if (status.startsWith("X")) {
-                    throw new RuntimeException("Status letter 'X' is a git bug.");
+        // Add new blob/path pairs. We look up the pairs' documents with a multiget here to cut
+        // down on the number of cat-files we need to perform -- if a file already exists in the
+        // ES cluster, we can simply add its ref membership. Pairs that the indexed file cache
+        // knows exist skip this probe and only get their ref membership, and pairs it knows are
+        // missing go straight to cat-file. Until the cache has loaded the repository, every pair
+        // is probed.
+        // Files written by an earlier job of the same repository update only need their ref
+        // membership.
+        if (sharedState != null) {
+            Iterator<SimpleEntry<String, String>> it = filesToAdd.iterator();
+            while (it.hasNext()) {
+                SimpleEntry<String, String> bppair = it.next();
+                if (isSharedDocument(getFileId(bppair.getKey(), bppair.getValue()))) {
+                    try {
+                        requestBuffer.add(buildAddFileToRef(client, bppair.getKey(),
+                            bppair.getValue()));
+                    } catch (IOException e) {
+                        log.error("Caught error adding file to {}, aborting update", refDesc, e);
+                        return false;
+                    }
+                    it.remove();
                 }
             }
-        } catch (Exception e) {
-            log.error("Caught error while diffing between {} and {}, aborting update",
-                prevHash, newHash, e);
-            return;
         }
-        log.debug("{} update: adding {} files", refDesc, filesToAdd.size());
 
-        // Add new blob/path pairs. We use another bulk request here to cut down on the number of
-        // cat-files we need to perform -- if a blob already exists in the ES cluster, we can
-        // simply add the ref to the refs array.
-        if (!filesToAdd.isEmpty()) {
+        fileCache.ensureLoaded(client, repository);
+        ImmutableList.Builder<SimpleEntry<String, String>> filesToProbeBuilder =
+            ImmutableList.builder();
+        Iterator<SimpleEntry<String, String>> addIt = filesToAdd.iterator();
+        while (addIt.hasNext()) {
+            SimpleEntry<String, String> bppair = addIt.next();
+            String fileId = getFileId(bppair.getKey(), bppair.getValue());
+            if (fileCache.isKnownPresent(repository, fileId)) {
+                try {
+                    requestBuffer.add(buildAddFileToRef(client, bppair.getKey(),
+                        bppair.getValue()));
+                } catch (IOException e) {
+                    log.error("Caught error adding file to {}, aborting update", refDesc, e);
+                    return false;
+                }
+                addIt.remove();
+                recordWrittenFile(fileId);
+            } else if (!fileCache.isKnownMissing(repository, fileId)) {
+                filesToProbeBuilder.add(bppair);
+            }
+        }
+        ImmutableList<SimpleEntry<String, String>> filesToProbe = filesToProbeBuilder.build();
+        log.debug("{} update: probing {} of {} files", refDesc, filesToProbe.size(),
+            filesToAdd.size());
+        if (!filesToProbe.isEmpty()) {
             try {
-                BulkRequestBuilder bulkFileRefUpdate = client.prepareBulk();
-                ImmutableList<SimpleEntry<String, String>> filesToAddCopy =
-                    ImmutableList.copyOf(filesToAdd);
-                for (SimpleEntry<String, String> bppair : filesToAddCopy) {
-                    String blob = bppair.getKey(), path = bppair.getValue();
-                    bulkFileRefUpdate.add(buildAddFileToRef(client, blob, path));
+                MultiGetRequestBuilder fileLookup = client.prepareMultiGet();
+                for (SimpleEntry<String, String> bppair : filesToProbe) {
+                    fileLookup.add(new MultiGetRequest.Item(ES_UPDATEALIAS, "file",
+                        getFileId(bppair.getKey(), bppair.getValue()))
+                        .routing(getRepoDesc())
+                        .fetchSourceContext(new FetchSourceContext(false)));
                 }
-                BulkItemResponse[] responses = bulkFileRefUpdate.get().getItems();
-                if (responses.length != filesToAddCopy.size()) {
+                MultiGetItemResponse[] responses = fileLookup.get().getResponses();
+                if (responses.length != filesToProbe.size()) {
                     throw new IndexOutOfBoundsException(
-                        "Bulk resp. array must have the same length as original request array");
+                        "Multiget resp. array must have the same length as original request array");
                 }
 
-                // Process all update responses
+                // Process all lookup responses
                 int count = 0;
-                for (SimpleEntry<String, String> bppair : filesToAddCopy) {
-                    if (!responses[count].isFailed()) {
-                        // Update was successful, no need to index file
+                for (SimpleEntry<String, String> bppair : filesToProbe) {
+                    GetResponse fileDoc = responses[count].getResponse();
+                    if (fileDoc != null && fileDoc.isExists()) {
+                        // File is already indexed, no need to read it
+                        requestBuffer.add(buildAddFileToRef(client, bppair.getKey(),
+                            bppair.getValue()));
                         filesToAdd.remove(bppair);
+                        recordWrittenFile(getFileId(bppair.getKey(), bppair.getValue()));
                     }
                     ++count;
                 }
             } catch (Exception e) {
-                log.warn("file-ref update failed, performing upserts for all changes", e);
+                log.warn("file lookup failed, performing upserts for all changes", e);
             }
         }
         log.debug("{} update: {} files to upsert", refDesc, filesToAdd.size());
@@ -373,88 +1215,113 @@ class SearchUpdateJobImpl implements SearchUpdateJob {
         // Process all changes w/o corresponding documents
         if (!filesToAdd.isEmpty()) {
             try {
-                // Get filesizes and prune all files that exceed the filesize limit
-                ImmutableList<SimpleEntry<String, String>> filesToAddCopy =
-                    ImmutableList.copyOf(filesToAdd);
-                CatFileInputHandler catFileInput = new CatFileInputHandler();
-                for (SimpleEntry<String, String> bppair : filesToAddCopy) {
-                    catFileInput.addObject(bppair.getKey());
-                }
-                String[] catFileMetadata = builderFactory.builder(repository)
-                    .command("cat-file")
-                    .argument("--batch-check")
-                    .inputHandler(catFileInput)
-                    .build(new StringOutputHandler(plf)).call()
-                    .split("\n");
-                if (filesToAdd.size() != catFileMetadata.length) {
-                    throw new IndexOutOfBoundsException(
-                        "git cat-file --batch-check returned wrong number of lines");
-                }
-                CatFileOutputHandler catFileOutput = new CatFileOutputHandler(plf);
-                int count = 0;
-                int maxFileSize = globalSettings.getMaxFileSize();
-                for (SimpleEntry<String, String> bppair : filesToAddCopy) {
-                    int fs;
-                    try {
-                        fs = Integer.parseInt(catFileMetadata[count].split("\\s")[2]);
-                    } catch (Exception e) {
-                        fs = Integer.MAX_VALUE;
-                    }
-
-                    if (fs > maxFileSize) {
-                        filesToAdd.remove(bppair);
-                    } else {
-                        catFileOutput.addFile(fs);
-                    }
-                    ++count;
-                }
-
-                // Generate new cat-file input and retrieve file contents
-                catFileInput = new CatFileInputHandler();
-                for (SimpleEntry<String, String> bppair : filesToAdd) {
-                    catFileInput.addObject(bppair.getKey());
-                }
-                String[] fileContents = builderFactory.builder(repository)
-                    .command("cat-file")
-                    .argument("--batch=")
-                    .inputHandler(catFileInput)
-                    .build(catFileOutput).call();
-                if (filesToAdd.size() != fileContents.length) {
-                    throw new IndexOutOfBoundsException(
-                        "git cat-file --batch= returned wrong number of files");
-                }
-                count = 0;
-                for (SimpleEntry<String, String> bppair : filesToAdd) {
-                    String blob = bppair.getKey(), path = bppair.getValue();
-                    String fileContent = fileContents[count];
-                    if (fileContent != null) {
-                        requestBuffer.add(buildAddFileToRef(client, blob, path)
-                            // Upsert inserts a new document into the index if it does not already exist.
-                            .setUpsert(jsonBuilder()
-                                .startObject()
-                                .field("project", repository.getProject().getKey())
-                                .field("repository", repository.getSlug())
-                                .field("blob", blob)
-                                .field("path", path)
-                                .field("extension", FilenameUtils.getExtension(path).toLowerCase())
-                                .field("contents", fileContent)
-                                .field("charcount", fileContent.length())
-                                .field("linecount", countLines(fileContent))
-                                .startArray("refs")
-                                .value(ref)
-                                .endArray()
-                                .endObject()));
-                    }
-                    ++count;
-                }
+                // Stream file contents into the request buffer. Each file is turned into an
+                // upsert as soon as it is read, so only the current bulk request's worth of file
+                // contents is ever held in memory. Files exceeding the filesize limit are skipped
+                // by the output handler. Large lists (e.g. initial indexes) are split between
+                // several concurrent cat-file readers.
+                List<SimpleEntry<String, String>> filesToUpsert = ImmutableList.copyOf(filesToAdd);
+                int parallelism = Math.max(1, Math.min(globalSettings.getCatFileParallelism(),
+                    filesToUpsert.size() / MIN_CAT_FILE_CHUNK_SIZE));
+                upsertFiles(client, builderFactory, requestBuffer, filesToUpsert,
+                    globalSettings.getMaxFileSize(), globalSettings.getSharedBlobStorage(),
+                    parallelism);
             } catch (Exception e) {
                 log.error("Caught error during new file indexing, aborting update", e);
-                return;
+                return false;
             }
         }
+        return true;
+    }
 
-        // Clear memory
-        filesToAdd = null;
+    // Moves the latest indexed note to the checkpoint's target commit and then deletes the
+    // checkpoint (if stored), in a single bulk. Both are routed to the same shard, where bulk items
+    // are applied in order, so the checkpoint never disappears before the note has moved. Returns
+    // true iff the note was written.
+    private boolean finishRange(Client client, Checkpoint checkpoint) {
+        BulkResponse resp;
+        try {
+            BulkRequestBuilder bulk = client.prepareBulk()
+                .add(buildLatestIndexedNote(client, checkpoint.newHash));
+            if (checkpoint.stored) {
+                bulk.add(buildDeleteCheckpoint(client));
+            }
+            resp = bulk.get();
+        } catch (Exception e) {
+            log.error("Caught error adding the latest indexed hash {}:{} to the index",
+                toString(), checkpoint.newHash, e);
+            return false;
+        }
+        BulkItemResponse[] items = resp.getItems();
+        if (items[0].isFailed()) {
+            log.error("Unable to add the latest indexed hash {}:{} to the index: {}",
+                toString(), checkpoint.newHash, items[0].getFailureMessage());
+            return false;
+        }
+        if (items.length > 1 && items[1].isFailed()) {
+            log.warn("Unable to delete the update checkpoint for {} from the index: {}",
+                toString(), items[1].getFailureMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the changes between the checkpoint's hashes, skipping the diff entries and commits
+     * that the checkpoint has already covered. Checkpoints are written as work is flushed, and the
+     * latest indexed note is advanced once the whole range has been indexed. Returns true iff
+     * successful.
+     */
+    private boolean updateRange(final Client client, GitCommandBuilderFactory builderFactory,
+        GlobalSettings globalSettings, final Checkpoint checkpoint) {
+        // List of bulk requests to execute sequentially at the end of the method
+        final RequestBuffer requestBuffer = newRequestBuffer(client, globalSettings);
+
+        // Documents of a failed range are never published
+        synchronized (writtenIds) {
+            writtenIds.clear();
+            unrecordedCount = 0;
+            writtenFiles = new IndexedFileCache.FingerprintSet();
+        }
+
+        // Unique identifier for ref
+        String refDesc = toString();
+
+        String prevHash = checkpoint.prevHash;
+        String newHash = checkpoint.newHash;
+
+        // If other refs could be seeded from this one, mark the update as in progress ahead of
+        // its first write. An empty range writes nothing.
+        if (!checkpoint.stored && !prevHash.equals(newHash) && !EMPTY_TREE.equals(prevHash)) {
+            try {
+                requestBuffer.addBarrier(buildAddCheckpoint(client, checkpoint));
+            } catch (IOException e) {
+                log.error("Unable to mark the update of {} as in progress, aborting update",
+                    refDesc, e);
+                return false;
+            }
+            checkpoint.stored = true;
+        }
+
+        // Diff for files, indexing the changes in chunks as they stream in
+        DiffIndexer diffIndexer = new DiffIndexer(client, builderFactory, globalSettings,
+            requestBuffer, checkpoint);
+        try {
+            Integer changesRead = builderFactory.builder(repository)
+                .command("diff")
+                .argument("--raw").argument("--abbrev=40").argument("-z")
+                .argument(prevHash).argument(newHash)
+                .build(new RawDiffOutputHandler(plf, diffIndexer)).call();
+            if (changesRead == null) {
+                throw new IOException("Unable to parse raw diff output");
+            }
+        } catch (Exception e) {
+            log.error("Caught error while diffing between {} and {}, aborting update",
+                prevHash, newHash, e);
+            return false;
+        }
+        if (!diffIndexer.finish()) {
+            return false;
+        }
 
         // Get deleted commits
         String[] deletedCommits;
@@ -467,10 +1334,10 @@ class SearchUpdateJobImpl implements SearchUpdateJob {
                 .split("\n+");
         } catch (Exception e) {
             log.error("Caught error while scanning for deleted commits, aborting update", e);
-            return;
+            return false;
         }
 
-        // Remove deleted commits from ES index
+        // Remove deleted commits from ES index (this is cheap to redo, so it isn't checkpointed)
         int commitsDeleted = 0;
         for (String hash : deletedCommits) {
             if (hash.length() != 40) {
@@ -480,89 +1347,150 @@ class SearchUpdateJobImpl implements SearchUpdateJob {
             ++commitsDeleted;
         }
 
-        // Get new commits
-        String[] newCommits;
+        // Stream new commits into the ES index. Commits are parsed straight off git's output
+        // and the request buffer flushes them in bounded batches, so memory use does not depend
+        // on the length of the history. Commits before the checkpoint's commit offset have
+        // already been indexed.
+        final int commitsToSkip = checkpoint.commitOffset;
+        Integer commitsAdded;
         try {
-            newCommits = builderFactory.builder(repository)
+            commitsAdded = builderFactory.builder(repository)
                 .command("log")
-                .argument("--format=%H%x02%ct%x02%an%x02%ae%x02%s%x02%b%x03")
+                .argument("--format=" + CommitLogOutputHandler.FORMAT)
                 .argument(newHash)
                 .argument("^" + prevHash)
-                .build(new StringOutputHandler(plf)).call()
-                .split("\u0003");
-        } catch (Exception e) {
-            log.error("Caught error while scanning for new commits, aborting update", e);
-            return;
-        }
+                .build(new CommitLogOutputHandler(plf, new CommitLogOutputHandler.CommitListener() {
 
-        // Add new commits to ES index
-        int commitsAdded = 0;
-        for (String line : newCommits) {
-            try {
-                // Parse each commit "line" (not really lines, since they're delimited by \u0003)
-                if (line.length() <= 40) {
-                    continue;
-                }
-                if (line.charAt(0) == '\n') {
-                    line = line.substring(1);
-                }
-                String[] commitToks = line.split("\u0002", 6);
-                String hash = commitToks[0];
-                long timestamp = Long.parseLong(commitToks[1]) * 1000;
-                String authorName = commitToks[2];
-                String authorEmail = commitToks[3];
-                String subject = commitToks[4];
-                String body = commitToks.length < 6 ? "" : commitToks[5]; // bodies are optional, so this might not be present
-                if (hash.length() != 40) {
-                    continue;
-                }
+                    private int commit = 0;
 
-                // Add commit to request
-                requestBuffer.add(
-                    buildAddCommitToRef(client, hash)
-                        .setUpsert(jsonBuilder()
-                            .startObject()
-                            .field("project", repository.getProject().getKey())
-                            .field("repository", repository.getSlug())
-                            .field("hash", hash)
-                            .field("commitdate", new Date(timestamp))
-                            .field("authorname", authorName)
-                            .field("authoremail", authorEmail)
-                            .field("subject", subject)
-                            .field("body", body)
-                            .startArray("refs")
-                            .value(ref)
-                            .endArray()
-                            .endObject())
-                    );
-                ++commitsAdded;
-            } catch (Exception e) {
-                log.warn("Caught error while constructing request object, skipping update", e);
-                continue;
+                    @Override
+                    public void processCommit(String hash, long timestamp, String authorName,
+                        String authorEmail, String subject, String body) throws IOException {
+                        if (commit++ < commitsToSkip) {
+                            return;
+                        }
+                        if (!isSharedDocument(getCommitId(hash))) {
+                            requestBuffer.add(buildUpsertCommit(client, hash, timestamp,
+                                authorName, authorEmail, subject, body));
+                            recordWritten(getCommitId(hash));
+                        }
+                        requestBuffer.add(buildAddCommitToRef(client, hash));
+                        if (commit % COMMIT_CHECKPOINT_INTERVAL == 0) {
+                            requestBuffer.flush();
+                            if (!checkBulkFailures("update", requestBuffer)) {
+                                throw new IOException("Bulk items failed permanently");
+                            }
+                            checkpoint.commitOffset = commit;
+                            storeCheckpoint(client, checkpoint);
+                        }
+                    }
+                })).call();
+            if (commitsAdded == null) {
+                throw new IOException("Unable to parse git log output");
             }
+        } catch (Exception e) {
+            log.error("Caught error while scanning for new commits, aborting update", e);
+            return false;
         }
 
         log.debug("{} update: adding {} commits, deleting {} commits",
-            refDesc, commitsAdded, commitsDeleted);
+            refDesc, commitsAdded - commitsToSkip, commitsDeleted);
 
         // Write remaining requests and wait for completion
         requestBuffer.flush();
+        logBulkSizes("update", requestBuffer);
+
+        // Items that couldn't be written would be lost if the range was marked as indexed, so
+        // leave the note (and checkpoint) alone and let the next update redo the range
+        if (!checkBulkFailures("update", requestBuffer)) {
+            return false;
+        }
 
-        // Update latest indexed note
-        addLatestIndexedNote(client, newHash);
+        // Update latest indexed note, after which the checkpoint is no longer needed
+        if (!finishRange(client, checkpoint)) {
+            return false;
+        }
+
+        // Every file of the range is now known to be indexed
+        synchronized (writtenIds) {
+            fileCache.addAll(repository, writtenFiles);
+            writtenFiles = new IndexedFileCache.FingerprintSet();
+        }
+
+        // Let the remaining jobs of the repository update reuse this range's documents
+        if (sharedState != null) {
+            synchronized (writtenIds) {
+                int dropped = sharedState.addAll(writtenIds) + unrecordedCount;
+                if (dropped > 0) {
+                    log.info("{} update: shared update state is full, so the later refs of " +
+                        "this update will probe for {} of its documents", refDesc, dropped);
+                }
+                writtenIds.clear();
+                unrecordedCount = 0;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void doUpdate(Client client, GitScm gitScm, GlobalSettings globalSettings) {
+        doUpdate(client, gitScm, globalSettings, true);
     }
 
-    private static final int countLines(String str) {
-        char prevChar = '\n', c;
-        int count = 0;
-        for (int i = 0; i < str.length(); ++i) {
-            c = str.charAt(i);
-            if ((prevChar == '\r' && c != '\n') || prevChar == '\n') {
-                ++count;
+    private void doUpdate(Client client, GitScm gitScm, GlobalSettings globalSettings,
+        boolean allowSeed) {
+        if (!globalSettings.getIndexingEnabled()) {
+            return;
+        }
+
+        GitCommandBuilderFactory builderFactory = gitScm.getCommandBuilderFactory();
+
+        // Hash of latest indexed commit
+        String prevHash = getLatestIndexedHash(client);
+
+        // Hash of latest commit on ref
+        String newHash = getLatestHash(builderFactory);
+        if (newHash == null) {
+            log.error("Aborting since hash is invalid");
+            return;
+        }
+
+        // Finish an interrupted update first. Its checkpoint is only usable if its range still
+        // starts at the latest indexed commit and its target commit still exists.
+        Checkpoint checkpoint = getCheckpoint(client);
+        boolean staleCheckpoint = false;
+        if (checkpoint != null) {
+            if (checkpoint.prevHash.equals(prevHash) &&
+                commitExists(builderFactory, checkpoint.newHash)) {
+                log.info("Resuming update of {} from {} to {} (diff offset {}, commit offset {})",
+                    toString(), checkpoint.prevHash, checkpoint.newHash, checkpoint.diffOffset,
+                    checkpoint.commitOffset);
+                if (!updateRange(client, builderFactory, globalSettings, checkpoint)) {
+                    return;
+                }
+                prevHash = checkpoint.newHash;
+                if (prevHash.equals(newHash)) {
+                    return;
+                }
+            } else {
+                // Left in place as the in-progress marker, to be overwritten by the next range
+                log.info("Discarding stale update checkpoint for {}", toString());
+                checkpoint = null;
+                staleCheckpoint = true;
+            }
+        }
+
+        // Seed new refs from the closest indexed ref
+        if (allowSeed && checkpoint == null && EMPTY_TREE.equals(prevHash)) {
+            prevHash = seedFromIndexedRef(client, builderFactory, globalSettings, newHash);
+            if (prevHash == null) {
+                log.error("Aborting update of {}", toString());
+                return;
             }
-            prevChar = c;
         }
-        return count;
+
+        updateRange(client, builderFactory, globalSettings,
+            new Checkpoint(prevHash, newHash, 0, 0, staleCheckpoint));
     }
 
 }
@@ -7,6 +7,8 @@
 
 package com.palantir.stash.codesearch.updater;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import com.atlassian.stash.repository.Repository;
@@ -25,6 +27,15 @@ public interface SearchUpdater {
      */
     Future<Void> submitAsyncReindex(Repository repository, String ref, int delayMs);
 
+    /**
+     * Submits the changed refs of a repository (e.g. all refs changed by one push) to be
+     * asynchronously processed by a single job after a delay of at least delayMs. Deleted refs
+     * are reindexed first, then updated refs are updated in order, each reusing the documents
+     * written for the refs before it.
+     */
+    Future<Void> submitAsyncRepositoryUpdate(Repository repository, List<String> updatedRefs,
+        List<String> deletedRefs, int delayMs);
+
     /**
      * Submits a repository and branch to be updated after a delay of at least delayMs. Blocks
      * until the update job has completed.
@@ -55,4 +66,16 @@ public interface SearchUpdater {
      */
     void refreshConcurrencyLimit();
 
+    /**
+     * Returns the number of updates of each priority class that are ready to run but waiting for
+     * an indexing slot.
+     */
+    Map<IndexingPriority, Integer> getQueueDepths();
+
+    /**
+     * Returns the queued, running and completed updates of every repository that has queued
+     * updates since startup.
+     */
+    List<IndexingTenantStats> getTenantStats();
+
 }
@@ -6,11 +6,17 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -19,20 +25,28 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.PatternSyntaxException;
 
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.AliasMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.FilterBuilders;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.DisposableBean;
 
 import com.atlassian.stash.repository.Branch;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.scm.git.GitScm;
+import com.google.common.util.concurrent.SettableFuture;
 import com.palantir.stash.codesearch.admin.GlobalSettings;
 import com.palantir.stash.codesearch.admin.RepositorySettings;
 import com.palantir.stash.codesearch.admin.SettingsManager;
 import com.palantir.stash.codesearch.elasticsearch.ElasticSearch;
+import com.palantir.stash.codesearch.elasticsearch.RequestBuffer;
 import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
 import com.palantir.stash.codesearch.repository.RepositoryServiceManager;
 import com.palantir.stash.codesearch.search.SearchFilterUtils;
@@ -81,10 +95,21 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
 
     private final SearchUpdateJobFactory jobFactory;
 
+    private final IndexedFileCache fileCache;
+
+    private final AdaptiveConcurrencyController concurrencyController;
+
     private final SecureRandom random;
 
-    // Lock pool for update jobs (see acquireLock() and releaseLock())
-    private final Set<SearchUpdateJob> runningJobs;
+    /**
+     * Lock pool for update jobs (see tryAcquireLock() and releaseLock()). A job is present iff a
+     * job with the same ref is running, and maps to the steps chained behind it, which are queued
+     * one by one as the lock is handed on. No thread ever waits for a lock.
+     */
+    private final Map<SearchUpdateJob, LinkedList<JobStep>> jobChains;
+
+    // Queued updates that haven't started yet, by ref or repository (see PendingUpdate)
+    private final Map<String, PendingUpdate> pendingUpdates;
 
     /**
      * Since full reindexes are costly, we definitely don't want to do more than one at a time.
@@ -99,22 +124,47 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
     private int concurrencyLimit;
 
     /**
-     * Why do we use both a semaphore and a thread pool to control execution? Since each indexing
-     * job must be locked on its corresponding branch, there could be a bunch of jobs "executing"
-     * in the thread pool that are simply blocking on the lock acquisition. Therefore, we use
-     * the semaphore to control the jobs which are actually running, and we use the thread pool
-     * (of a larger capacity) to stage jobs that are waiting on the lock.
+     * How are jobs executed? The scheduled job pool only waits out each pending update's delay
+     * and then hands it to the priority queue, which orders runnable work by priority class and
+     * then by the running jobs of its project and repository (see PriorityJobQueue). Workers
+     * run it: each worker acquires a semaphore permit before taking work, so the next piece of
+     * work is only chosen once it can actually run, and the semaphore bounds the number of
+     * running jobs. Jobs whose ref is locked are chained behind the running
+     * job instead of occupying a worker, so there are only as many workers as permits.
      */
     private final ResizableSemaphore semaphore;
 
     private final ScheduledThreadPoolExecutor jobPool;
 
+    private final PriorityJobQueue jobQueue;
+
+    private final ExecutorService workerPool;
+
+    // Number of workers started (guarded by semaphore)
+    private int workerCount;
+
+    // Maximum number of debounce delays a pending update can be postponed by
+    private static final int MAX_DEBOUNCE_ROUNDS = 10;
+
+    private static final TimeValue PURGE_SCROLL_TIMEOUT = TimeValue.timeValueMinutes(2);
+
+    private static final int MAX_ES_RETRIES = 10;
+
+    // Removes the repository param from a shared blob's repositories, deleting the blob once no
+    // repository references it
+    private static final String RELEASE_BLOB_SCRIPT =
+        "if (ctx._source.repositories != null) { ctx._source.repositories.remove(repository) } " +
+        "if (ctx._source.repositories == null || ctx._source.repositories.isEmpty()) " +
+        "{ ctx.op = \"delete\" }";
+
     public SearchUpdaterImpl(
         ElasticSearch es,
         GitScm gitScm,
         SettingsManager settingsManager,
         RepositoryServiceManager repositoryServiceManager,
-        SearchUpdateJobFactory jobFactory, PluginLoggerFactory plf, SearchFilterUtils sfu) {
+        SearchUpdateJobFactory jobFactory, IndexedFileCache fileCache,
+        AdaptiveConcurrencyController concurrencyController, PluginLoggerFactory plf,
+        SearchFilterUtils sfu) {
         this.plf = plf;
         this.sfu = sfu;
         this.log = plf.getLogger(this.getClass().toString());
@@ -123,16 +173,26 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
         this.settingsManager = settingsManager;
         this.repositoryServiceManager = repositoryServiceManager;
         this.jobFactory = jobFactory;
+        this.fileCache = fileCache;
+        this.concurrencyController = concurrencyController;
         this.random = new SecureRandom();
-        this.runningJobs = new HashSet<SearchUpdateJob>();
+        this.jobChains = new HashMap<SearchUpdateJob, LinkedList<JobStep>>();
+        this.pendingUpdates = new HashMap<String, PendingUpdate>();
         this.isReindexingAll = new AtomicBoolean(false);
         this.jobPoolBlocked = new AtomicInteger(0);
         this.concurrencyLimit = GlobalSettings.MAX_CONCURRENT_INDEXING_LB;
         this.semaphore = new ResizableSemaphore(concurrencyLimit, true);
-        this.jobPool = new ScheduledThreadPoolExecutor(concurrencyLimit * 5);
+        this.jobPool = new ScheduledThreadPoolExecutor(1);
+        // Debounced updates cancel their triggers, which shouldn't linger in the queue
+        this.jobPool.setRemoveOnCancelPolicy(true);
+        this.jobQueue = new PriorityJobQueue();
+        this.workerPool = Executors.newCachedThreadPool();
+        this.workerCount = 0;
+        startWorkers(concurrencyLimit);
         initializeAliasedIndex(ES_UPDATEALIAS, false);
         redirectAndDeleteAliasedIndex(ES_SEARCHALIAS, ES_UPDATEALIAS);
         settingsManager.addSearchUpdater(this);
+        concurrencyController.setSearchUpdater(this);
     }
 
     // Return the name of the index pointed to by an alias (null if no index found)
@@ -185,8 +245,8 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
                         .endObject()
                         .endObject()
                         .endObject())
-                // Commit schema
-                .addMapping("commit",
+                // Update checkpoint schema
+                .addMapping("checkpoint",
                     jsonBuilder().startObject()
                         .startObject("properties")
                         .startObject("project")
@@ -197,19 +257,37 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
                         .field("type", "string")
                         .field("index", "not_analyzed")
                         .endObject()
-                        .startObject("refs")
-                        .field("type", "multi_field")
-                        .startObject("fields")
-                        .startObject("refs")
+                        .startObject("ref")
                         .field("type", "string")
-                        .field("index_analyzer", "ref_analyzer")
-                        .field("search_analyzer", "ref_analyzer")
+                        .field("index", "not_analyzed")
                         .endObject()
-                        .startObject("untouched")
+                        .startObject("prevhash")
                         .field("type", "string")
                         .field("index", "not_analyzed")
                         .endObject()
+                        .startObject("newhash")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
                         .endObject()
+                        .startObject("diffoffset")
+                        .field("type", "integer")
+                        .endObject()
+                        .startObject("commitoffset")
+                        .field("type", "integer")
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                // Commit schema
+                .addMapping("commit",
+                    jsonBuilder().startObject()
+                        .startObject("properties")
+                        .startObject("project")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        .startObject("repository")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
                         .endObject()
                         .startObject("authorname")
                         .field("type", "string")
@@ -246,9 +324,12 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
                         .endObject()
                         .endObject()
                         .endObject())
-                // File schema
-                .addMapping("file",
+                // Commit ref membership schema (one child document per commit and ref)
+                .addMapping("commitref",
                     jsonBuilder().startObject()
+                        .startObject("_parent")
+                        .field("type", "commit")
+                        .endObject()
                         .startObject("properties")
                         .startObject("project")
                         .field("type", "string")
@@ -258,6 +339,10 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
                         .field("type", "string")
                         .field("index", "not_analyzed")
                         .endObject()
+                        .startObject("document")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
                         .startObject("refs")
                         .field("type", "multi_field")
                         .startObject("fields")
@@ -272,6 +357,20 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
                         .endObject()
                         .endObject()
                         .endObject()
+                        .endObject()
+                        .endObject())
+                // File schema
+                .addMapping("file",
+                    jsonBuilder().startObject()
+                        .startObject("properties")
+                        .startObject("project")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        .startObject("repository")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
                         .startObject("blob")
                         .field("type", "string")
                         .field("index", "not_analyzed")
@@ -304,6 +403,67 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
                         .endObject()
                         .endObject()
                         .endObject())
+                // File ref membership schema (one child document per file and ref)
+                .addMapping("fileref",
+                    jsonBuilder().startObject()
+                        .startObject("_parent")
+                        .field("type", "file")
+                        .endObject()
+                        .startObject("properties")
+                        .startObject("project")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        .startObject("repository")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        .startObject("document")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        .startObject("refs")
+                        .field("type", "multi_field")
+                        .startObject("fields")
+                        .startObject("refs")
+                        .field("type", "string")
+                        .field("index_analyzer", "ref_analyzer")
+                        .field("search_analyzer", "ref_analyzer")
+                        .endObject()
+                        .startObject("untouched")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                // Shared blob schema (file contents keyed by blob hash, see SharedBlobStorage)
+                .addMapping("blob",
+                    jsonBuilder().startObject()
+                        .startObject("properties")
+                        .startObject("blob")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        // project^repository of every repository referencing the blob
+                        .startObject("repositories")
+                        .field("type", "string")
+                        .field("index", "not_analyzed")
+                        .endObject()
+                        .startObject("contents")
+                        .field("type", "string")
+                        .field("index_analyzer", "code_analyzer")
+                        .field("search_analyzer", "code_analyzer")
+                        .endObject()
+                        .startObject("charcount")
+                        .field("type", "integer")
+                        .endObject()
+                        .startObject("linecount")
+                        .field("type", "integer")
+                        .endObject()
+                        .endObject()
+                        .endObject())
                 .setSettings(
                     jsonBuilder().startObject()
                         .startObject("analysis")
@@ -382,59 +542,298 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
         return true;
     }
 
-    // Acquire a lock on an update job
-    private void acquireLock(SearchUpdateJob job) {
-        synchronized (runningJobs) {
-            while (runningJobs.contains(job)) {
-                try {
-                    runningJobs.wait();
-                } catch (InterruptedException e) {
-                    // Do nothing -- still waiting for lock acquisition
-                }
+    // Acquires the lock of the step's job and returns true if it is free. Otherwise, the step is
+    // chained behind the running job and queued once the lock is handed to it.
+    private boolean tryAcquireLock(JobStep step) {
+        synchronized (jobChains) {
+            LinkedList<JobStep> chain = jobChains.get(step.job);
+            if (chain == null) {
+                jobChains.put(step.job, new LinkedList<JobStep>());
+                return true;
             }
-            runningJobs.add(job);
+            chain.add(step);
+            return false;
         }
     }
 
-    // Release a lock on an update job
+    // Releases the lock of an update job, handing it to the next chained step (if any)
     private void releaseLock(SearchUpdateJob job) {
-        synchronized (runningJobs) {
-            runningJobs.remove(job);
-            runningJobs.notifyAll();
+        JobStep next;
+        synchronized (jobChains) {
+            next = jobChains.get(job).poll();
+            if (next == null) {
+                jobChains.remove(job);
+                return;
+            }
+        }
+        // Chained steps keep the update's enqueue time, so that they don't lose their aging
+        jobQueue.add(next, next.priority, next.tenant, next.enqueueTime);
+    }
+
+    // Executes a search updater job (the caller holds its lock and a semaphore permit)
+    private void runJob(SearchUpdateJob job, boolean reindex) {
+        try {
+            final GlobalSettings globalSettings = settingsManager.getGlobalSettings();
+            if (!globalSettings.getIndexingEnabled()) {
+                log.warn("Not executing SearchUpdateJob {} since indexing is disabled",
+                    job.toString());
+                return;
+            }
+            if (reindex) {
+                job.doReindex(es.getClient(), gitScm, globalSettings);
+            } else {
+                job.doUpdate(es.getClient(), gitScm, globalSettings);
+            }
+        } catch (Throwable e) {
+            log.error("Unexpected error while updating index for {}", job.toString(), e);
+        }
+    }
+
+    // Starts workers until there are at least count of them (the caller must hold semaphore's
+    // monitor, or be the constructor)
+    private void startWorkers(int count) {
+        for (; workerCount < count; ++workerCount) {
+            workerPool.execute(new Worker());
         }
     }
 
     /**
-     * Returns a new runnable that executes a search updater job.
+     * One job of a started update. The jobs of an update run in order, each while holding its
+     * lock: a step that finds its lock taken is chained behind the running job and resumes the
+     * rest of the update from whichever worker picks it up later.
      */
-    private Callable<Void> getJobRunnable(final SearchUpdateJob job, final boolean reindex) {
-        return new Callable<Void>() {
+    private class JobStep implements Runnable {
 
-            @Override
-            public Void call() throws Exception {
-                acquireLock(job);
-                semaphore.acquireUninterruptibly();
+        private final List<SearchUpdateJob> jobs;
+
+        // The first reindexCount jobs are reindexes, the rest are updates
+        private final int reindexCount;
+
+        private final int index;
+
+        private final SearchUpdateJob job;
+
+        private final IndexingPriority priority;
+
+        private final String tenant;
+
+        // When the update was first queued (see PriorityJobQueue)
+        private final long enqueueTime;
+
+        private final SettableFuture<Void> future;
+
+        public JobStep(List<SearchUpdateJob> jobs, int reindexCount, int index,
+            IndexingPriority priority, String tenant, long enqueueTime,
+            SettableFuture<Void> future) {
+            this.jobs = jobs;
+            this.reindexCount = reindexCount;
+            this.index = index;
+            this.job = jobs.get(index);
+            this.priority = priority;
+            this.tenant = tenant;
+            this.enqueueTime = enqueueTime;
+            this.future = future;
+        }
+
+        // Runs this step's job and every following step whose lock is free
+        @Override
+        public void run() {
+            JobStep step = this;
+            while (true) {
+                try {
+                    runJob(step.job, step.index < reindexCount);
+                } finally {
+                    releaseLock(step.job);
+                }
+                if (step.index + 1 == jobs.size()) {
+                    future.set(null);
+                    return;
+                }
+                step = new JobStep(jobs, reindexCount, step.index + 1, priority, tenant,
+                    enqueueTime, future);
+                if (!tryAcquireLock(step)) {
+                    return; // chained
+                }
+            }
+        }
+    }
+
+    // Runs queued work, one piece at a time, whenever a semaphore permit is available
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
                 try {
-                    final GlobalSettings globalSettings = settingsManager.getGlobalSettings();
-                    if (!globalSettings.getIndexingEnabled()) {
-                        log.warn("Not executing SearchUpdateJob {} since indexing is disabled",
-                            job.toString());
-                        return null;
+                    semaphore.acquire();
+                } catch (InterruptedException e) {
+                    return; // shutting down
+                }
+                try {
+                    Runnable work;
+                    try {
+                        work = jobQueue.take();
+                    } catch (InterruptedException e) {
+                        return; // shutting down
                     }
-                    if (reindex) {
-                        job.doReindex(es.getClient(), gitScm, globalSettings);
-                    } else {
-                        job.doUpdate(es.getClient(), gitScm, globalSettings);
+                    try {
+                        work.run();
+                    } catch (Throwable e) {
+                        log.error("Unexpected error while running indexing work", e);
+                    } finally {
+                        jobQueue.finished(work);
                     }
-                } catch (Throwable e) {
-                    log.error("Unexpected error while updating index for {}", job.toString(), e);
                 } finally {
-                    releaseLock(job);
                     semaphore.release();
                 }
-                return null;
             }
-        };
+        }
+    }
+
+    /**
+     * A queued update of one ref (or of several refs of a repository) that hasn't started yet.
+     * Newer changes with the same key are merged into it instead of being queued separately, and
+     * all of their submitters share its future. With a debounce delay, each merged change also
+     * postpones the update (up to MAX_DEBOUNCE_ROUNDS debounce delays after the first change).
+     * Once its delay has passed, the update waits in the priority queue until a worker takes it.
+     */
+    private class PendingUpdate implements Runnable {
+
+        private final String key;
+
+        private final Repository repository;
+
+        // Tenant key of the update, project^repository (see PriorityJobQueue)
+        private final String tenant;
+
+        // Whether the refs' jobs share documents (see SharedUpdateState)
+        private final boolean shared;
+
+        // Refs to update, mapped to whether they need a reindex (guarded by pendingUpdates)
+        private final Map<String, Boolean> refs;
+
+        private final SettableFuture<Void> future;
+
+        private final long deadline;
+
+        private ScheduledFuture<?> trigger;
+
+        // Priority class of the update (guarded by pendingUpdates)
+        private IndexingPriority priority;
+
+        // When the update was queued (guarded by pendingUpdates)
+        private long enqueueTime;
+
+        public PendingUpdate(String key, Repository repository, boolean shared,
+            IndexingPriority priority, long maxDelayMs) {
+            this.key = key;
+            this.repository = repository;
+            this.tenant = repository.getProject().getKey() + "^" + repository.getSlug();
+            this.shared = shared;
+            this.refs = new LinkedHashMap<String, Boolean>();
+            this.future = SettableFuture.create();
+            this.deadline = System.currentTimeMillis() + maxDelayMs;
+            this.priority = priority;
+        }
+
+        // Merged changes can only raise the priority, even if the update is already queued
+        private void raisePriority(IndexingPriority newPriority) {
+            if (newPriority.isHigherThan(priority)) {
+                priority = newPriority;
+                jobQueue.raisePriority(this, newPriority);
+            }
+        }
+
+        // A reindex supersedes an update of the same ref
+        private void merge(Map<String, Boolean> newRefs) {
+            for (Map.Entry<String, Boolean> entry : newRefs.entrySet()) {
+                Boolean reindex = refs.get(entry.getKey());
+                refs.put(entry.getKey(), entry.getValue() || (reindex != null && reindex));
+            }
+        }
+
+        // Starts (or restarts) the delay before the update runs
+        private void schedule(long delayMs) {
+            delayMs = Math.max(0, Math.min(delayMs, deadline - System.currentTimeMillis()));
+            if (trigger != null && !trigger.cancel(false)) {
+                return; // already queued or running
+            }
+            trigger = jobPool.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    synchronized (pendingUpdates) {
+                        enqueueTime = System.currentTimeMillis();
+                        jobQueue.add(PendingUpdate.this, priority, tenant, enqueueTime);
+                    }
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        // Starts the jobs of every merged ref, reindexes first (see JobStep)
+        @Override
+        public void run() {
+            Map<String, Boolean> refsToUpdate;
+            IndexingPriority startPriority;
+            long startEnqueueTime;
+            synchronized (pendingUpdates) {
+                if (pendingUpdates.get(key) == this) {
+                    pendingUpdates.remove(key);
+                }
+                refsToUpdate = new LinkedHashMap<String, Boolean>(refs);
+                startPriority = priority;
+                startEnqueueTime = enqueueTime;
+            }
+            SharedUpdateState sharedState = shared ? new SharedUpdateState() : null;
+            List<SearchUpdateJob> reindexJobs = new ArrayList<SearchUpdateJob>();
+            List<SearchUpdateJob> updateJobs = new ArrayList<SearchUpdateJob>();
+            for (Map.Entry<String, Boolean> entry : refsToUpdate.entrySet()) {
+                SearchUpdateJob job = shared
+                    ? jobFactory.newSharedJob(sfu, plf, repository, entry.getKey(), sharedState)
+                    : jobFactory.newDefaultJob(sfu, plf, repository, entry.getKey());
+                (entry.getValue() ? reindexJobs : updateJobs).add(job);
+            }
+            List<SearchUpdateJob> jobs = new ArrayList<SearchUpdateJob>(reindexJobs);
+            jobs.addAll(updateJobs);
+            if (jobs.isEmpty()) {
+                future.set(null);
+                return;
+            }
+            JobStep first = new JobStep(jobs, reindexJobs.size(), 0, startPriority, tenant,
+                startEnqueueTime, future);
+            if (tryAcquireLock(first)) {
+                first.run();
+            }
+        }
+    }
+
+    // Queues an update of the refs under the specified key, merging it into a pending update
+    // with the same key if there is one. Returns the future of the (possibly merged) update.
+    private Future<Void> submitPendingUpdate(String key, Repository repository,
+        Map<String, Boolean> refs, boolean shared, IndexingPriority priority, int delayMs) {
+        if (jobPoolBlocked.get() > 0) {
+            log.warn("Job pool is currently blocked: not executing update job on {}", key);
+            return getFinishedFuture();
+        }
+        long delay = Math.max(delayMs, settingsManager.getGlobalSettings().getUpdateDebounce());
+        synchronized (pendingUpdates) {
+            PendingUpdate pending = pendingUpdates.get(key);
+            if (pending != null) {
+                log.debug("Merging update of {} into pending update", key);
+                pending.merge(refs);
+                pending.raisePriority(priority);
+                if (delay > 0) {
+                    pending.schedule(delay);
+                }
+                return pending.future;
+            }
+            pending = new PendingUpdate(key, repository, shared, priority,
+                delay * MAX_DEBOUNCE_ROUNDS);
+            pending.merge(refs);
+            pendingUpdates.put(key, pending);
+            pending.schedule(delay);
+            return pending.future;
+        }
     }
 
     // Returns a dummy finished Future object
@@ -468,39 +867,80 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
         };
     }
 
-    private Future<Void> submitAsyncUpdateImpl(Repository repository, String ref,
-        int delayMs, boolean reindex) {
+    // Returns the ID of the repository's default branch (null if there is none)
+    private String getDefaultBranch(Repository repository) {
+        try {
+            return repositoryServiceManager.getRepositoryMetadataService()
+                .getDefaultBranch(repository)
+                .getId();
+        } catch (Exception e) {
+            return null; // No default branch
+        }
+    }
+
+    // Returns the priority class of an update of the specified refs pushed by a user
+    private IndexingPriority getPushPriority(Repository repository, Collection<String> refs) {
+        String defaultBranch = getDefaultBranch(repository);
+        if (defaultBranch != null && refs.contains(defaultBranch)) {
+            return IndexingPriority.DEFAULT_BRANCH;
+        }
+        return IndexingPriority.OTHER_REF;
+    }
+
+    // Returns true iff the ref matches the repository's ref regex (or is its default branch, if
+    // "HEAD" matches)
+    private boolean isIndexedRef(Repository repository, String ref) {
         RepositorySettings repositorySettings = settingsManager.getRepositorySettings(repository);
         String refRegex = repositorySettings.getRefRegex();
         try {
-            String defaultBranch = null;
-            try {
-                defaultBranch = repositoryServiceManager.getRepositoryMetadataService()
-                    .getDefaultBranch(repository)
-                    .getId();
-            } catch (Exception e) {
-            } // No default branch
+            String defaultBranch = getDefaultBranch(repository);
             if (!ref.matches(refRegex) &&
                 (defaultBranch == null ||
                     !ref.equals(defaultBranch) ||
                 !"HEAD".matches(refRegex))) {
                 log.debug("Skipping {}/{}:{} (doesn't match {})",
                     repository.getProject().getKey(), repository.getSlug(), ref, refRegex);
-                return getFinishedFuture();
+                return false;
             }
         } catch (PatternSyntaxException e) {
             log.error("Ref matcher {} is invalid", refRegex, e);
+            return false;
+        }
+        return true;
+    }
+
+    private Future<Void> submitAsyncUpdateImpl(Repository repository, String ref,
+        int delayMs, boolean reindex, IndexingPriority priority) {
+        if (!isIndexedRef(repository, ref)) {
             return getFinishedFuture();
         }
-        if (jobPoolBlocked.get() > 0) {
-            log.warn("Job pool is currently blocked: not executing update job on {}/{}:{}",
-                repository.getProject().getKey(), repository.getSlug(), ref);
+        Map<String, Boolean> refs = new LinkedHashMap<String, Boolean>();
+        refs.put(ref, reindex);
+        return submitPendingUpdate(
+            repository.getProject().getKey() + "^" + repository.getSlug() + "^" + ref,
+            repository, refs, false, priority, delayMs);
+    }
+
+    @Override
+    public Future<Void> submitAsyncRepositoryUpdate(Repository repository,
+        List<String> updatedRefs, List<String> deletedRefs, int delayMs) {
+        Map<String, Boolean> refs = new LinkedHashMap<String, Boolean>();
+        for (String ref : deletedRefs) {
+            if (isIndexedRef(repository, ref)) {
+                refs.put(ref, true);
+            }
+        }
+        for (String ref : updatedRefs) {
+            if (isIndexedRef(repository, ref) && !refs.containsKey(ref)) {
+                refs.put(ref, false);
+            }
+        }
+        if (refs.isEmpty()) {
             return getFinishedFuture();
         }
-        SearchUpdateJob job = jobFactory.newDefaultJob(sfu, plf, repository, ref);
-        Callable<Void> jobCallable = getJobRunnable(job, reindex);
-        Future<Void> ret = jobPool.schedule(jobCallable, delayMs, TimeUnit.MILLISECONDS);
-        return ret;
+        return submitPendingUpdate(
+            repository.getProject().getKey() + "^" + repository.getSlug(),
+            repository, refs, true, getPushPriority(repository, refs.keySet()), delayMs);
     }
 
     // Waits uninterruptibly for a future to be satisfied
@@ -522,17 +962,20 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
 
     private void submitUpdateImpl(Repository repository, String ref, int delayMs,
         boolean reindex) {
-        waitForFuture(submitAsyncUpdateImpl(repository, ref, delayMs, reindex));
+        waitForFuture(submitAsyncUpdateImpl(repository, ref, delayMs, reindex,
+            getPushPriority(repository, Collections.singleton(ref))));
     }
 
     @Override
     public Future<Void> submitAsyncUpdate(Repository repository, String ref, int delayMs) {
-        return submitAsyncUpdateImpl(repository, ref, delayMs, false);
+        return submitAsyncUpdateImpl(repository, ref, delayMs, false,
+            getPushPriority(repository, Collections.singleton(ref)));
     }
 
     @Override
     public Future<Void> submitAsyncReindex(Repository repository, String ref, int delayMs) {
-        return submitAsyncUpdateImpl(repository, ref, delayMs, true);
+        return submitAsyncUpdateImpl(repository, ref, delayMs, true,
+            getPushPriority(repository, Collections.singleton(ref)));
     }
 
     @Override
@@ -550,7 +993,8 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
         try {
             int zeroJobIntervals = 0;
             while (zeroJobIntervals < 5) {
-                if (jobPool.getCompletedTaskCount() >= jobPool.getTaskCount()) {
+                if (jobPool.getCompletedTaskCount() >= jobPool.getTaskCount() &&
+                    jobQueue.isIdle()) {
                     ++zeroJobIntervals;
                 } else {
                     zeroJobIntervals = 0;
@@ -567,6 +1011,141 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
         }
     }
 
+    /**
+     * Removes a repository from the repositories of every shared blob it references, and deletes
+     * the blobs that no other repository references. Blobs are routed by hash, so every shard is
+     * scanned. A blob that another job claims at the same time is simply kept. Returns the number
+     * of blobs released, or -1 on failure.
+     */
+    private long releaseSharedBlobs(String projectKey, String repositorySlug,
+        GlobalSettings globalSettings) {
+        Client client = es.getClient();
+        String repoDesc = projectKey + '^' + repositorySlug;
+        RequestBuffer requestBuffer = new RequestBuffer(client, globalSettings.getBulkMaxActions(),
+            globalSettings.getBulkMaxBytes(), globalSettings.getBulkMaxInFlight(), null);
+        long released = 0;
+        try {
+            SearchResponse resp = client.prepareSearch(ES_UPDATEALIAS)
+                .setTypes("blob")
+                .setSearchType(SearchType.SCAN)
+                .setScroll(PURGE_SCROLL_TIMEOUT)
+                .setSize(500)
+                .setFetchSource(false)
+                .setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+                    FilterBuilders.termFilter("repositories", repoDesc)))
+                .get();
+            while (true) {
+                resp = client.prepareSearchScroll(resp.getScrollId())
+                    .setScroll(PURGE_SCROLL_TIMEOUT)
+                    .get();
+                SearchHit[] hits = resp.getHits().getHits();
+                if (hits.length == 0) {
+                    break;
+                }
+                for (SearchHit hit : hits) {
+                    requestBuffer.add(client.prepareUpdate(hit.getIndex(), "blob", hit.getId())
+                        .setScript(RELEASE_BLOB_SCRIPT)
+                        .setScriptLang("mvel")
+                        .addScriptParam("repository", repoDesc)
+                        .setRetryOnConflict(MAX_ES_RETRIES));
+                    ++released;
+                }
+            }
+            requestBuffer.flush();
+        } catch (Exception e) {
+            log.error("Caught error releasing shared blobs of {}", repoDesc, e);
+            return -1;
+        }
+        if (requestBuffer.getFailedCount() > 0) {
+            log.error("Could not release {} shared blobs of {} (first failure: {})",
+                requestBuffer.getFailedCount(), repoDesc, requestBuffer.getFailureMessage());
+            return -1;
+        }
+        return released;
+    }
+
+    /**
+     * Deletes every document of a repository from the index, and then releases the shared blobs
+     * it referenced. All other documents are routed to a single shard by project^repository, so
+     * one scan of that shard finds every document to delete; the deletes are then sent in bulk
+     * and the index is refreshed once to check that none are left. Returns the number of documents
+     * that were actually removed (not counting blobs), or -1 on failure.
+     */
+    private long purgeRepository(String projectKey, String repositorySlug,
+        GlobalSettings globalSettings) {
+        Client client = es.getClient();
+        String routing = projectKey + '^' + repositorySlug;
+        RequestBuffer requestBuffer = new RequestBuffer(client, globalSettings.getBulkMaxActions(),
+            globalSettings.getBulkMaxBytes(), globalSettings.getBulkMaxInFlight(), null);
+        long scanned = 0;
+        try {
+            SearchResponse resp = client.prepareSearch(ES_UPDATEALIAS)
+                .setSearchType(SearchType.SCAN)
+                .setScroll(PURGE_SCROLL_TIMEOUT)
+                .setSize(500)
+                .setFetchSource(false)
+                .setRouting(routing)
+                .setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+                    sfu.projectRepositoryFilter(projectKey, repositorySlug)))
+                .get();
+            while (true) {
+                resp = client.prepareSearchScroll(resp.getScrollId())
+                    .setScroll(PURGE_SCROLL_TIMEOUT)
+                    .get();
+                SearchHit[] hits = resp.getHits().getHits();
+                if (hits.length == 0) {
+                    break;
+                }
+                for (SearchHit hit : hits) {
+                    requestBuffer.add(client.prepareDelete(hit.getIndex(), hit.getType(),
+                        hit.getId()).setRouting(routing));
+                    ++scanned;
+                }
+            }
+            requestBuffer.flush();
+        } catch (Exception e) {
+            log.error("Caught error deleting documents of {}", routing, e);
+            return -1;
+        }
+        long deleted = requestBuffer.getDeletedCount();
+        if (requestBuffer.getFailedCount() > 0) {
+            log.error("Deleted {} documents of {}, but could not delete {} (first failure: {})",
+                deleted, routing, requestBuffer.getFailedCount(), requestBuffer.getFailureMessage());
+            return -1;
+        }
+        if (deleted < scanned) {
+            log.info("{} of {} scanned documents of {} were already gone", scanned - deleted,
+                scanned, routing);
+        }
+
+        long released = releaseSharedBlobs(projectKey, repositorySlug, globalSettings);
+        if (released < 0) {
+            return -1;
+        }
+        if (released > 0) {
+            log.info("Released {} shared blobs of {} (deleting those no other repository uses)",
+                released, routing);
+        }
+
+        // Documents of jobs that were still running may have been added meanwhile
+        try {
+            client.admin().indices().prepareRefresh(ES_UPDATEALIAS).get();
+            long remaining = client.prepareSearch(ES_UPDATEALIAS)
+                .setSearchType(SearchType.COUNT)
+                .setRouting(routing)
+                .setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+                    sfu.projectRepositoryFilter(projectKey, repositorySlug)))
+                .get().getHits().getTotalHits();
+            if (remaining > 0) {
+                log.warn("{} documents of {} were added while it was being deleted", remaining,
+                    routing);
+            }
+        } catch (Exception e) {
+            log.warn("Caught error counting remaining documents of {}", routing, e);
+        }
+        return deleted;
+    }
+
     @Override
     public boolean reindexRepository(final String projectKey, final String repositorySlug) {
         GlobalSettings globalSettings = settingsManager.getGlobalSettings();
@@ -578,21 +1157,14 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
 
         // Delete documents for this repository
         log.warn("Deleting {}^{} for manual reindexing", projectKey, repositorySlug);
-        for (int i = 0; i < 5; ++i) { // since ES doesn't have a refresh setting for delete by
-                                      // query requests, we just spam multiple requests.
-            es.getClient().prepareDeleteByQuery(ES_UPDATEALIAS)
-                .setRouting(projectKey + '^' + repositorySlug)
-                .setQuery(QueryBuilders.filteredQuery(
-                    QueryBuilders.matchAllQuery(),
-                    sfu.projectRepositoryFilter(projectKey, repositorySlug)))
-                .get();
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                log.warn("Caught InterruptedException while trying to sleep", e);
-            }
+        long deleted = purgeRepository(projectKey, repositorySlug, globalSettings);
+        fileCache.invalidate(projectKey, repositorySlug);
+        if (deleted < 0) {
+            log.error("Aborting manual reindex of {}^{}", projectKey, repositorySlug);
+            return false;
         }
-        log.warn("Deletion of {}^{} completed", projectKey, repositorySlug);
+        log.warn("Deletion of {}^{} completed ({} documents deleted)", projectKey, repositorySlug,
+            deleted);
 
         // Search for repository
         Repository repository = repositoryServiceManager.getRepositoryService().getBySlug(
@@ -606,7 +1178,8 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
         List<Future<Void>> futures = new ArrayList<Future<Void>>();
         for (Branch branch : repositoryServiceManager.getBranchMap(repository).values()) {
             // No need to explicitly trigger reindex, since index is empty.
-            futures.add(submitAsyncUpdate(repository, branch.getId(), 0));
+            futures.add(submitAsyncUpdateImpl(repository, branch.getId(), 0, false,
+                IndexingPriority.REPOSITORY_REINDEX));
         }
         for (Future<Void> future : futures) {
             waitForFuture(future);
@@ -633,6 +1206,7 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
                 @Override
                 public void run() {
                     initializeAliasedIndex(ES_UPDATEALIAS, true);
+                    fileCache.invalidateAll();
                 }
             });
 
@@ -647,7 +1221,8 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
             for (Repository repo : repositoryServiceManager.getRepositoryMap(null).values()) {
                 for (Branch branch : repositoryServiceManager.getBranchMap(repo).values()) {
                     // No need to explicitly trigger reindex, since index is empty.
-                    futures.add(submitAsyncUpdate(repo, branch.getId(), 0));
+                    futures.add(submitAsyncUpdateImpl(repo, branch.getId(), 0, false,
+                        IndexingPriority.FULL_REINDEX));
                 }
             }
             for (Future<Void> future : futures) {
@@ -671,21 +1246,31 @@ public class SearchUpdaterImpl implements SearchUpdater, DisposableBean {
     public void refreshConcurrencyLimit() {
         synchronized (semaphore) {
             int prevConcurrencyLimit = concurrencyLimit;
-            concurrencyLimit = settingsManager.getGlobalSettings().getMaxConcurrentIndexing();
+            concurrencyLimit = concurrencyController.getConcurrencyLimit();
             if (prevConcurrencyLimit == concurrencyLimit) {
                 return;
             }
-            log.warn("Attempting to change concurrency limit from {} to {}",
-                prevConcurrencyLimit, concurrencyLimit);
-            jobPool.setCorePoolSize(concurrencyLimit * 5);
-            jobPool.setMaximumPoolSize(concurrencyLimit * 5);
+            log.debug("Changing concurrency limit from {} to {}", prevConcurrencyLimit,
+                concurrencyLimit);
             semaphore.resize(concurrencyLimit);
+            startWorkers(concurrencyLimit);
         }
     }
 
+    @Override
+    public Map<IndexingPriority, Integer> getQueueDepths() {
+        return jobQueue.getDepths();
+    }
+
+    @Override
+    public List<IndexingTenantStats> getTenantStats() {
+        return jobQueue.getTenantStats();
+    }
+
     @Override
     public void destroy() {
         jobPool.shutdown();
+        workerPool.shutdownNow();
     }
 
 }
@@ -0,0 +1,56 @@
+/**
+ * State shared between the ref jobs of a single repository update (e.g. all refs changed by one
+ * push). The jobs run one after another, and each job publishes the commit and file documents
+ * it has written once it completes successfully. When a later job's diff or log lists one of
+ * those documents, the job only adds it to its ref: it doesn't probe ES for the document, read
+ * its blob with cat-file or reinsert it. Each ref's own diff and log still run, since they
+ * determine the ref's membership changes.
+ *
+ * Only documents that are known to be in the index are recorded, so the state may be used to
+ * skip inserts. At most MAX_DOCUMENTS are recorded (bounding the memory an update of a huge
+ * push can use); once the state is full, addAll() reports the documents it dropped, and later
+ * jobs probe for those as usual.
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+public class SharedUpdateState {
+
+    // Maximum number of document IDs to remember
+    static final int MAX_DOCUMENTS = 1000000;
+
+    private final Set<String> documentIds;
+
+    public SharedUpdateState() {
+        this.documentIds = new HashSet<String>();
+    }
+
+    // Returns true iff the document was written by an earlier job sharing this state
+    public synchronized boolean contains(String documentId) {
+        return documentIds.contains(documentId);
+    }
+
+    // Records documents that a job has written (and flushed) to the index. Returns the number of
+    // documents that were dropped because the state is full.
+    public synchronized int addAll(Collection<String> ids) {
+        int dropped = 0;
+        for (String id : ids) {
+            if (documentIds.size() < MAX_DOCUMENTS) {
+                documentIds.add(id);
+            } else if (!documentIds.contains(id)) {
+                ++dropped;
+            }
+        }
+        return dropped;
+    }
+
+    // Returns true iff no more documents can be recorded
+    public synchronized boolean isFull() {
+        return documentIds.size() >= MAX_DOCUMENTS;
+    }
+
+}
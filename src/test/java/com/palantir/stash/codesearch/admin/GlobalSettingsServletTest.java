@@ -2,6 +2,8 @@ package com.palantir.stash.codesearch.admin;
 
 import java.io.PrintWriter;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -23,6 +25,8 @@ import com.atlassian.stash.server.ApplicationPropertiesService;
 import com.atlassian.stash.user.Permission;
 import com.atlassian.stash.user.PermissionValidationService;
 import com.atlassian.stash.user.SecurityService;
+import com.palantir.stash.codesearch.updater.IndexingPriority;
+import com.palantir.stash.codesearch.updater.IndexingTenantStats;
 import com.palantir.stash.codesearch.updater.SearchUpdater;
 
 public class GlobalSettingsServletTest {
@@ -60,6 +64,9 @@ public class GlobalSettingsServletTest {
         Mockito.when(sm.getGlobalSettings()).thenReturn(gs);
         Mockito.when(req.getRequestURL()).thenReturn(new StringBuffer(SOME_URL));
         Mockito.when(res.getWriter()).thenReturn(pw);
+        Mockito.when(su.getQueueDepths()).thenReturn(
+            new EnumMap<IndexingPriority, Integer>(IndexingPriority.class));
+        Mockito.when(su.getTenantStats()).thenReturn(new ArrayList<IndexingTenantStats>());
 
         servlet = new GlobalSettingsServlet(aps, sm, pvs, su, ss, str);
     }
@@ -109,7 +116,18 @@ public class GlobalSettingsServletTest {
         Mockito.when(req.getParameter("indexingEnabled")).thenReturn("" + GlobalSettings.INDEXING_ENABLED_DEFAULT);
         Mockito.when(req.getParameter("maxConcurrentIndexing")).thenReturn(
             "" + GlobalSettings.MAX_CONCURRENT_INDEXING_DEFAULT);
+        Mockito.when(req.getParameter("minConcurrentIndexing")).thenReturn(
+            "" + GlobalSettings.MIN_CONCURRENT_INDEXING_DEFAULT);
+        Mockito.when(req.getParameter("catFileParallelism")).thenReturn(
+            "" + GlobalSettings.CAT_FILE_PARALLELISM_DEFAULT);
+        Mockito.when(req.getParameter("updateDebounce")).thenReturn(
+            "" + GlobalSettings.UPDATE_DEBOUNCE_DEFAULT);
         Mockito.when(req.getParameter("maxFileSize")).thenReturn("" + GlobalSettings.MAX_FILE_SIZE_DEFAULT);
+        Mockito.when(req.getParameter("sharedBlobStorage")).thenReturn("" + GlobalSettings.SHARED_BLOB_STORAGE_DEFAULT);
+        Mockito.when(req.getParameter("bulkMaxActions")).thenReturn("" + GlobalSettings.BULK_MAX_ACTIONS_DEFAULT);
+        Mockito.when(req.getParameter("bulkMaxBytes")).thenReturn("" + GlobalSettings.BULK_MAX_BYTES_DEFAULT);
+        Mockito.when(req.getParameter("bulkMaxInFlight")).thenReturn("" + GlobalSettings.BULK_MAX_IN_FLIGHT_DEFAULT);
+        Mockito.when(req.getParameter("bulkLinger")).thenReturn("" + GlobalSettings.BULK_LINGER_DEFAULT);
         Mockito.when(req.getParameter("searchTimeout")).thenReturn("" + GlobalSettings.SEARCH_TIMEOUT_DEFAULT);
         Mockito.when(req.getParameter("noHighlightExtensions")).thenReturn(
             "" + GlobalSettings.NO_HIGHLIGHT_EXTENSIONS_DEFAULT);
@@ -128,7 +146,15 @@ public class GlobalSettingsServletTest {
         Mockito.verify(sm).setGlobalSettings(
             Mockito.eq(GlobalSettings.INDEXING_ENABLED_DEFAULT),
             Mockito.eq(GlobalSettings.MAX_CONCURRENT_INDEXING_DEFAULT),
+            Mockito.eq(GlobalSettings.MIN_CONCURRENT_INDEXING_DEFAULT),
+            Mockito.eq(GlobalSettings.CAT_FILE_PARALLELISM_DEFAULT),
+            Mockito.eq(GlobalSettings.UPDATE_DEBOUNCE_DEFAULT),
             Mockito.eq(GlobalSettings.MAX_FILE_SIZE_DEFAULT),
+            Mockito.eq(GlobalSettings.SHARED_BLOB_STORAGE_DEFAULT),
+            Mockito.eq(GlobalSettings.BULK_MAX_ACTIONS_DEFAULT),
+            Mockito.eq(GlobalSettings.BULK_MAX_BYTES_DEFAULT),
+            Mockito.eq(GlobalSettings.BULK_MAX_IN_FLIGHT_DEFAULT),
+            Mockito.eq(GlobalSettings.BULK_LINGER_DEFAULT),
             Mockito.eq(GlobalSettings.SEARCH_TIMEOUT_DEFAULT),
             Mockito.eq(GlobalSettings.NO_HIGHLIGHT_EXTENSIONS_DEFAULT),
             Mockito.eq(GlobalSettings.MAX_PREVIEW_LINES_DEFAULT),
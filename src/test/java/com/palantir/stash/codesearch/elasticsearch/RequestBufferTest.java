@@ -0,0 +1,472 @@
+package com.palantir.stash.codesearch.elasticsearch;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class RequestBufferTest {
+
+    @Mock
+    private InternalClient client;
+
+    // Number of actions of each bulk sent
+    private List<Integer> bulks;
+
+    // Bulks that haven't completed yet, and their listeners (if responses are deferred)
+    private List<SimpleEntry<BulkRequest, ActionListener<BulkResponse>>> outstanding;
+
+    private volatile boolean deferResponses;
+
+    private volatile Throwable bulkFailure;
+
+    // Failures of the next items sent, in order (null for items that succeed)
+    private List<BulkItemResponse.Failure> itemFailures;
+
+    // IDs of the items sent, in order
+    private List<String> sentIds;
+
+    // Used to give every index request its own ID
+    private int nextId;
+
+    // Whether the next deletes sent find their document, in order (found if empty)
+    private List<Boolean> deletesFound;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        bulks = new ArrayList<Integer>();
+        outstanding = new ArrayList<SimpleEntry<BulkRequest, ActionListener<BulkResponse>>>();
+        deferResponses = false;
+        bulkFailure = null;
+        itemFailures = new ArrayList<BulkItemResponse.Failure>();
+        sentIds = new ArrayList<String>();
+        nextId = 0;
+        deletesFound = new ArrayList<Boolean>();
+
+        Mockito.when(client.prepareBulk()).thenAnswer(new Answer<BulkRequestBuilder>() {
+
+            @Override
+            public BulkRequestBuilder answer(InvocationOnMock invocation) {
+                return new BulkRequestBuilder(client);
+            }
+        });
+        Mockito.doAnswer(new Answer<Void>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                BulkRequest request = (BulkRequest) invocation.getArguments()[0];
+                ActionListener<BulkResponse> listener =
+                    (ActionListener<BulkResponse>) invocation.getArguments()[1];
+                synchronized (bulks) {
+                    bulks.add(request.numberOfActions());
+                    for (ActionRequest sent : request.requests()) {
+                        sentIds.add(getId(sent));
+                    }
+                    if (deferResponses) {
+                        outstanding.add(new SimpleEntry<BulkRequest, ActionListener<BulkResponse>>(
+                            request, listener));
+                        return null;
+                    }
+                }
+                if (bulkFailure != null) {
+                    listener.onFailure(bulkFailure);
+                } else {
+                    listener.onResponse(buildResponse(request));
+                }
+                return null;
+            }
+        }).when(client).bulk(Mockito.any(BulkRequest.class), Mockito.any(ActionListener.class));
+    }
+
+    private static String getId(ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            return ((IndexRequest) request).id();
+        } else if (request instanceof DeleteRequest) {
+            return ((DeleteRequest) request).id();
+        }
+        return ((UpdateRequest) request).id();
+    }
+
+    // Builds the response to a bulk, failing items as given by itemFailures
+    private BulkResponse buildResponse(BulkRequest request) {
+        BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+        synchronized (bulks) {
+            for (int i = 0; i < items.length; ++i) {
+                BulkItemResponse.Failure failure =
+                    itemFailures.isEmpty() ? null : itemFailures.remove(0);
+                if (failure == null && request.requests().get(i) instanceof DeleteRequest) {
+                    boolean found = deletesFound.isEmpty() || deletesFound.remove(0);
+                    items[i] = new BulkItemResponse(i, "delete",
+                        new DeleteResponse("index", "file", "id", 1, found));
+                } else if (failure == null) {
+                    items[i] = new BulkItemResponse(i, "index", (ActionResponse) null);
+                } else {
+                    items[i] = new BulkItemResponse(i, "index", failure);
+                }
+            }
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private static BulkItemResponse.Failure failure(String message, RestStatus status) {
+        return new BulkItemResponse.Failure("index", "file", "id", message, status);
+    }
+
+    private static BulkItemResponse.Failure rejection() {
+        return failure("EsRejectedExecutionException[rejected execution]",
+            RestStatus.SERVICE_UNAVAILABLE);
+    }
+
+    private static BulkItemResponse.Failure conflict() {
+        return failure("VersionConflictEngineException[version conflict]", RestStatus.CONFLICT);
+    }
+
+    private static BulkItemResponse.Failure parseFailure() {
+        return failure("MapperParsingException[failed to parse]", RestStatus.BAD_REQUEST);
+    }
+
+    private IndexRequest newIndexRequest(int sourceBytes) {
+        return newIndexRequest("id" + nextId++, sourceBytes);
+    }
+
+    private static IndexRequest newIndexRequest(String id, int sourceBytes) {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < sourceBytes; ++i) {
+            contents.append('x');
+        }
+        return new IndexRequest("index", "file", id).source("contents", contents.toString());
+    }
+
+    @Test
+    public void actionLimitTest() {
+        RequestBuffer buffer = new RequestBuffer(client, 3, 1024 * 1024, 0, null);
+        for (int i = 0; i < 7; ++i) {
+            buffer.add(newIndexRequest(10));
+        }
+        Assert.assertEquals(2, bulks.size());
+        buffer.flush();
+        Assert.assertEquals(3, bulks.size());
+        Assert.assertEquals(Integer.valueOf(1), bulks.get(2));
+        Assert.assertEquals(3, buffer.getBulkCount());
+        Assert.assertEquals(7, buffer.getActionCount());
+        Assert.assertEquals(0, buffer.getSizeLimitedCount());
+    }
+
+    @Test
+    public void byteLimitTest() {
+        RequestBuffer buffer = new RequestBuffer(client, 500, 10000, 0, null);
+
+        // Small requests are batched until their total size reaches the limit
+        for (int i = 0; i < 3; ++i) {
+            buffer.add(newIndexRequest(4000));
+        }
+        Assert.assertEquals(1, bulks.size());
+        Assert.assertEquals(Integer.valueOf(3), bulks.get(0));
+
+        // A request larger than the limit is sent on its own
+        buffer.add(newIndexRequest(20000));
+        Assert.assertEquals(2, bulks.size());
+        Assert.assertEquals(Integer.valueOf(1), bulks.get(1));
+        Assert.assertEquals(2, buffer.getSizeLimitedCount());
+        Assert.assertTrue(buffer.getByteCount() >= 32000);
+    }
+
+    @Test
+    public void feedbackTest() {
+        final int[] reported = new int[2];
+        RequestBuffer buffer = new RequestBuffer(client, 2, 1024 * 1024, 0, new BulkFeedback() {
+
+            @Override
+            public void bulkCompleted(int actions, long latencyMs, int rejections) {
+                reported[0] += actions;
+                reported[1] += rejections;
+            }
+        });
+        for (int i = 0; i < 4; ++i) {
+            buffer.add(newIndexRequest(10));
+        }
+        Assert.assertEquals(4, reported[0]);
+        Assert.assertEquals(0, reported[1]);
+    }
+
+    // Completes the oldest deferred bulk
+    private void respond() {
+        SimpleEntry<BulkRequest, ActionListener<BulkResponse>> bulk;
+        synchronized (bulks) {
+            bulk = outstanding.remove(0);
+        }
+        bulk.getValue().onResponse(buildResponse(bulk.getKey()));
+    }
+
+    // Waits for the specified number of bulks to have been sent
+    private void awaitBulks(int count) throws InterruptedException {
+        for (int i = 0; i < 500; ++i) {
+            synchronized (bulks) {
+                if (bulks.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("Expected " + count + " bulks to be sent");
+    }
+
+    @Test
+    public void inFlightLimitTest() throws Exception {
+        deferResponses = true;
+        final RequestBuffer buffer = new RequestBuffer(client, 1, 1024 * 1024, 2, null);
+
+        // Two bulks may be outstanding without blocking the caller
+        buffer.add(newIndexRequest(10));
+        buffer.add(newIndexRequest(10));
+        Assert.assertEquals(2, outstanding.size());
+
+        // A third one waits for the oldest to complete
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                buffer.add(newIndexRequest(10));
+            }
+        };
+        producer.start();
+        producer.join(200);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(2, bulks.size());
+        respond();
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(3, bulks.size());
+
+        // flush() waits for every outstanding bulk
+        Thread flusher = new Thread() {
+
+            @Override
+            public void run() {
+                buffer.flush();
+            }
+        };
+        flusher.start();
+        flusher.join(200);
+        Assert.assertTrue(flusher.isAlive());
+        respond();
+        respond();
+        flusher.join(5000);
+        Assert.assertFalse(flusher.isAlive());
+    }
+
+    @Test
+    public void barrierTest() throws Exception {
+        deferResponses = true;
+        final RequestBuffer buffer = new RequestBuffer(client, 2, 1024 * 1024, 4, null);
+
+        // The barrier's bulk must complete before the next one is sent
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                buffer.addBarrier(new IndexRequestBuilder(client, "index")
+                    .setType("checkpoint").setId("id").setSource("ref", "x"));
+                buffer.add(newIndexRequest(10));
+                buffer.add(newIndexRequest(10));
+                buffer.add(newIndexRequest(10));
+            }
+        };
+        producer.start();
+        producer.join(200);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(1, bulks.size());
+        respond();
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(2, bulks.size());
+
+        // Without a barrier, bulks are sent without waiting
+        buffer.add(newIndexRequest(10));
+        buffer.add(newIndexRequest(10));
+        Assert.assertEquals(3, bulks.size());
+        respond();
+        respond();
+        buffer.flush();
+    }
+
+    @Test
+    public void barrierFailureTest() {
+        itemFailures.add(parseFailure());
+        RequestBuffer buffer = new RequestBuffer(client, 2, 1024 * 1024, 4, null);
+        buffer.addBarrier(new IndexRequestBuilder(client, "index")
+            .setType("checkpoint").setId("id").setSource("ref", "x"));
+        try {
+            buffer.add(newIndexRequest(10));
+            Assert.fail("Expected the barrier's failure to be thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(1, bulks.size());
+        }
+    }
+
+    @Test
+    public void failureTest() {
+        bulkFailure = new IllegalStateException("bulk failed");
+        RequestBuffer buffer = new RequestBuffer(client, 1, 1024 * 1024, 4, null);
+        buffer.add(newIndexRequest(10));
+        try {
+            buffer.flush();
+            Assert.fail("Expected the bulk's failure to be thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("bulk failed", e.getMessage());
+        }
+
+        // The failure is only thrown once
+        buffer.flush();
+    }
+
+    @Test
+    public void retryTest() {
+        itemFailures.add(null);
+        itemFailures.add(rejection());
+        itemFailures.add(conflict());
+        itemFailures.add(rejection());
+        RequestBuffer buffer = new RequestBuffer(client, 3, 1024 * 1024, 2, null);
+        buffer.add(newIndexRequest(10));
+        buffer.add(newIndexRequest(10));
+        buffer.add(new UpdateRequest("index", "file", "id").doc("contents", "x"));
+        buffer.flush();
+
+        // Both failed items are resubmitted together, then the one that fails again on its own
+        Assert.assertEquals(3, bulks.size());
+        Assert.assertEquals(Integer.valueOf(2), bulks.get(1));
+        Assert.assertEquals(Integer.valueOf(1), bulks.get(2));
+        Assert.assertEquals(0, buffer.getFailedCount());
+        Assert.assertNull(buffer.getFailureMessage());
+    }
+
+    @Test
+    public void permanentFailureTest() {
+        itemFailures.add(parseFailure());
+        itemFailures.add(null);
+        for (int i = 0; i <= RequestBuffer.MAX_RETRIES; ++i) {
+            itemFailures.add(rejection());
+        }
+        RequestBuffer buffer = new RequestBuffer(client, 3, 1024 * 1024, 0, null);
+        for (int i = 0; i < 3; ++i) {
+            buffer.add(newIndexRequest(10));
+        }
+        buffer.flush();
+
+        // Only the rejected item is retried, until it has been tried MAX_RETRIES more times
+        Assert.assertEquals(1 + RequestBuffer.MAX_RETRIES, bulks.size());
+        Assert.assertEquals(2, buffer.getFailedCount());
+        Assert.assertEquals("MapperParsingException[failed to parse]",
+            buffer.getFailureMessage());
+    }
+
+    @Test
+    public void deletedCountTest() {
+        itemFailures.add(null);
+        itemFailures.add(null);
+        itemFailures.add(parseFailure());
+        deletesFound.add(true);
+        deletesFound.add(false);
+        RequestBuffer buffer = new RequestBuffer(client, 2, 1024 * 1024, 0, null);
+        for (int i = 0; i < 3; ++i) {
+            buffer.add(new DeleteRequest("index", "file", "id" + i));
+        }
+        buffer.add(newIndexRequest(10));
+        buffer.flush();
+
+        // Only the delete that found its document is counted; the failed one is counted apart
+        Assert.assertEquals(1, buffer.getDeletedCount());
+        Assert.assertEquals(1, buffer.getFailedCount());
+    }
+
+    @Test
+    public void conflictTest() {
+        itemFailures.add(conflict());
+        itemFailures.add(conflict());
+        RequestBuffer buffer = new RequestBuffer(client, 2, 1024 * 1024, 0, null);
+        buffer.add(newIndexRequest(10));
+        buffer.add(new UpdateRequest("index", "file", "id").doc("contents", "x")
+            .retryOnConflict(3));
+        buffer.flush();
+
+        // Neither conflict is retried: the index request's would fail again, and the update has
+        // already been retried by ElasticSearch
+        Assert.assertEquals(1, bulks.size());
+        Assert.assertEquals(2, buffer.getFailedCount());
+    }
+
+    @Test
+    public void statusTest() {
+        // Failures are classified by their status, not their message
+        itemFailures.add(failure("EsRejectedExecutionException[rejected execution]",
+            RestStatus.BAD_REQUEST));
+        itemFailures.add(failure("failed to parse", RestStatus.SERVICE_UNAVAILABLE));
+        RequestBuffer buffer = new RequestBuffer(client, 2, 1024 * 1024, 0, null);
+        buffer.add(newIndexRequest(10));
+        buffer.add(newIndexRequest(10));
+        buffer.flush();
+        Assert.assertEquals(2, bulks.size());
+        Assert.assertEquals(Integer.valueOf(1), bulks.get(1));
+        Assert.assertEquals(1, buffer.getFailedCount());
+    }
+
+    @Test
+    public void orderingTest() throws Exception {
+        deferResponses = true;
+        itemFailures.add(rejection());
+        final RequestBuffer buffer = new RequestBuffer(client, 1, 1024 * 1024, 4, null);
+
+        // A later request for the same document waits for the earlier one, and its retry
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                buffer.add(newIndexRequest("same", 10));
+                buffer.add(newIndexRequest("other", 10));
+                buffer.add(newIndexRequest("same", 20));
+            }
+        };
+        producer.start();
+        awaitBulks(2);
+        producer.join(200);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(2, bulks.size());
+        respond();
+        respond();
+        awaitBulks(3);
+        Assert.assertEquals(Arrays.asList("same", "other", "same"), sentIds);
+        respond();
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(Arrays.asList("same", "other", "same", "same"), sentIds);
+        respond();
+        buffer.flush();
+        Assert.assertEquals(0, buffer.getFailedCount());
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.palantir.stash.codesearch.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.LoggerFactory;
+
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.admin.SettingsManager;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class SharedBulkBatcherTest {
+
+    private static final int LINGER_MS = 50;
+
+    // Time that ElasticSearch reports for every bulk
+    private static final long TOOK_MS = 7;
+
+    @Mock
+    private InternalClient client;
+    @Mock
+    private ElasticSearch es;
+    @Mock
+    private SettingsManager sm;
+    @Mock
+    private GlobalSettings gs;
+    @Mock
+    private PluginLoggerFactory plf;
+
+    // Number of actions of each bulk sent
+    private List<Integer> bulks;
+
+    // Positions (within a bulk) of the items to fail
+    private List<Integer> failedItems;
+
+    private SharedBulkBatcher batcher;
+
+    // Response or failure received by a submission
+    private static class Result implements ActionListener<BulkResponse> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private BulkResponse resp;
+
+        @Override
+        public void onResponse(BulkResponse resp) {
+            this.resp = resp;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            done.countDown();
+        }
+
+        private BulkResponse await() throws InterruptedException {
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            return resp;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        bulks = new ArrayList<Integer>();
+        failedItems = new ArrayList<Integer>();
+
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(SharedBulkBatcherTest.class));
+        Mockito.when(sm.getGlobalSettings()).thenReturn(gs);
+        Mockito.when(gs.getBulkLinger()).thenReturn(LINGER_MS);
+        Mockito.when(gs.getBulkMaxActions()).thenReturn(5);
+        Mockito.when(gs.getBulkMaxBytes()).thenReturn(1024 * 1024);
+        Mockito.when(es.getClient()).thenReturn(client);
+        Mockito.when(client.prepareBulk()).thenAnswer(new Answer<BulkRequestBuilder>() {
+
+            @Override
+            public BulkRequestBuilder answer(InvocationOnMock invocation) {
+                return new BulkRequestBuilder(client);
+            }
+        });
+        Mockito.doAnswer(new Answer<Void>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                BulkRequest request = (BulkRequest) invocation.getArguments()[0];
+                ActionListener<BulkResponse> listener =
+                    (ActionListener<BulkResponse>) invocation.getArguments()[1];
+                BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+                for (int i = 0; i < items.length; ++i) {
+                    if (failedItems.contains(i)) {
+                        items[i] = new BulkItemResponse(i, "index", new BulkItemResponse.Failure(
+                            "index", "file", "id", "MapperParsingException", RestStatus.BAD_REQUEST));
+                    } else {
+                        items[i] = new BulkItemResponse(i, "index", (ActionResponse) null);
+                    }
+                }
+                synchronized (bulks) {
+                    bulks.add(items.length);
+                }
+                listener.onResponse(new BulkResponse(items, TOOK_MS));
+                return null;
+            }
+        }).when(client).bulk(Mockito.any(BulkRequest.class), Mockito.any(ActionListener.class));
+
+        batcher = new SharedBulkBatcher(es, sm, plf);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.destroy();
+    }
+
+    private static List<ActionRequest> newRequests(int count) {
+        List<ActionRequest> requests = new ArrayList<ActionRequest>();
+        for (int i = 0; i < count; ++i) {
+            requests.add(new IndexRequest("index", "file", "id" + i).source("contents", "x"));
+        }
+        return requests;
+    }
+
+    @Test
+    public void lingerTest() throws Exception {
+        failedItems.add(2);
+        Result first = new Result();
+        Result second = new Result();
+        batcher.submit(newRequests(2), 100, first);
+        batcher.submit(newRequests(1), 100, second);
+        Assert.assertTrue(bulks.isEmpty());
+
+        // Both submissions are sent together once the linger time has elapsed
+        BulkResponse firstResp = first.await();
+        BulkResponse secondResp = second.await();
+        Assert.assertEquals(Arrays.asList(3), bulks);
+        Assert.assertEquals(1, batcher.getBulkCount());
+        Assert.assertEquals(2, batcher.getSubmissionCount());
+
+        // Each gets its own items, renumbered
+        Assert.assertEquals(2, firstResp.getItems().length);
+        Assert.assertFalse(firstResp.hasFailures());
+        Assert.assertEquals(1, secondResp.getItems().length);
+        Assert.assertEquals(0, secondResp.getItems()[0].getItemId());
+        Assert.assertTrue(secondResp.getItems()[0].isFailed());
+
+        // ElasticSearch's own time is reported, not the round trip including the linger
+        Assert.assertEquals(TOOK_MS, firstResp.getTookInMillis());
+        Assert.assertEquals(TOOK_MS, secondResp.getTookInMillis());
+    }
+
+    @Test
+    public void settingsReadTest() throws Exception {
+        // Settings are read once per combined bulk, not per submission
+        Result[] results = new Result[4];
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = new Result();
+            batcher.submit(newRequests(1), 100, results[i]);
+        }
+        for (Result result : results) {
+            Assert.assertNotNull(result.await());
+        }
+        Mockito.verify(sm, Mockito.times(1)).getGlobalSettings();
+
+        // The next combined bulk picks up changed settings
+        Mockito.when(gs.getBulkMaxActions()).thenReturn(2);
+        Result first = new Result();
+        Result second = new Result();
+        batcher.submit(newRequests(1), 100, first);
+        batcher.submit(newRequests(1), 100, second);
+        Assert.assertEquals(Arrays.asList(4, 2), bulks);
+        Mockito.verify(sm, Mockito.times(2)).getGlobalSettings();
+    }
+
+    @Test
+    public void sizeLimitTest() throws Exception {
+        Result first = new Result();
+        Result second = new Result();
+        batcher.submit(newRequests(3), 100, first);
+        batcher.submit(newRequests(2), 100, second);
+
+        // The combined bulk reached the action limit, so it was sent without lingering
+        Assert.assertEquals(Arrays.asList(5), bulks);
+        Assert.assertNotNull(first.await());
+        Assert.assertNotNull(second.await());
+    }
+
+    @Test
+    public void requestBufferTest() throws Exception {
+        final RequestBuffer[] buffers = new RequestBuffer[3];
+        Thread[] jobs = new Thread[buffers.length];
+        for (int i = 0; i < buffers.length; ++i) {
+            final RequestBuffer buffer = new RequestBuffer(client, 500, 1024 * 1024, 2, null,
+                batcher);
+            buffers[i] = buffer;
+            jobs[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    buffer.add(new IndexRequest("index", "file", "id").source("contents", "x"));
+                    buffer.flush();
+                }
+            };
+            jobs[i].start();
+        }
+
+        // Every job's flush returns once the shared bulk holding its request completes
+        for (Thread job : jobs) {
+            job.join(5000);
+            Assert.assertFalse(job.isAlive());
+        }
+        int actions = 0;
+        for (int bulk : bulks) {
+            actions += bulk;
+        }
+        Assert.assertEquals(3, actions);
+        Assert.assertTrue(bulks.size() < 3);
+        for (RequestBuffer buffer : buffers) {
+            Assert.assertEquals(0, buffer.getFailedCount());
+        }
+    }
+
+}
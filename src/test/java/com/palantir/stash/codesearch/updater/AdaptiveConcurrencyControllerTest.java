@@ -0,0 +1,155 @@
+package com.palantir.stash.codesearch.updater;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.admin.SettingsManager;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class AdaptiveConcurrencyControllerTest {
+
+    private static final long INTERVAL = AdaptiveConcurrencyController.ADJUSTMENT_INTERVAL_MS;
+
+    private static final long SLOW = AdaptiveConcurrencyController.TARGET_BULK_LATENCY_MS + 1;
+
+    @Mock
+    private PluginLoggerFactory plf;
+    @Mock
+    private SettingsManager sm;
+    @Mock
+    private GlobalSettings gs;
+    @Mock
+    private SearchUpdater updater;
+
+    private AdaptiveConcurrencyController controller;
+
+    // Adjustments handed to the controller's executor that haven't run yet
+    private List<Runnable> tasks;
+
+    private long nowMs;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(AdaptiveConcurrencyControllerTest.class));
+        Mockito.when(sm.getGlobalSettings()).thenReturn(gs);
+        setBounds(2, 8);
+
+        tasks = new ArrayList<Runnable>();
+        nowMs = 1000000;
+        controller = new AdaptiveConcurrencyController(sm, plf, new Ticker() {
+
+            @Override
+            public long read() {
+                return TimeUnit.MILLISECONDS.toNanos(nowMs);
+            }
+        }, new Executor() {
+
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        controller.setSearchUpdater(updater);
+    }
+
+    private void setBounds(int floor, int ceiling) {
+        Mockito.when(gs.getMinConcurrentIndexing()).thenReturn(floor);
+        Mockito.when(gs.getMaxConcurrentIndexing()).thenReturn(ceiling);
+    }
+
+    // Runs the adjustments handed to the executor, returning how many there were
+    private int runTasks() {
+        List<Runnable> toRun = new ArrayList<Runnable>(tasks);
+        tasks.clear();
+        for (Runnable task : toRun) {
+            task.run();
+        }
+        return toRun.size();
+    }
+
+    // Reports a bulk at the end of the next adjustment window and runs the adjustment
+    private void nextWindow(long latencyMs, int rejections) {
+        nowMs += INTERVAL;
+        controller.bulkCompleted(10, latencyMs, rejections);
+        Assert.assertEquals(1, runTasks());
+    }
+
+    @Test
+    public void aimdTest() {
+        Assert.assertEquals(8, controller.getConcurrencyLimit());
+
+        // Rejections and slow bulks halve the limit down to the floor
+        nextWindow(10, 5);
+        Assert.assertEquals(4, controller.getConcurrencyLimit());
+        nextWindow(SLOW, 0);
+        Assert.assertEquals(2, controller.getConcurrencyLimit());
+        nextWindow(SLOW, 0);
+        Assert.assertEquals(2, controller.getConcurrencyLimit());
+        Mockito.verify(updater, Mockito.times(2)).refreshConcurrencyLimit();
+
+        // Healthy windows add one slot at a time up to the ceiling
+        for (int i = 3; i <= 8; ++i) {
+            nextWindow(10, 0);
+            Assert.assertEquals(i, controller.getConcurrencyLimit());
+        }
+        nextWindow(10, 0);
+        Assert.assertEquals(8, controller.getConcurrencyLimit());
+        Mockito.verify(updater, Mockito.times(8)).refreshConcurrencyLimit();
+    }
+
+    @Test
+    public void windowTest() {
+        Assert.assertEquals(8, controller.getConcurrencyLimit());
+
+        // Rejections within a window are only acted upon once it ends
+        nowMs += 1;
+        controller.bulkCompleted(10, 10, 3);
+        Assert.assertEquals(0, runTasks());
+        nowMs += INTERVAL;
+        controller.bulkCompleted(10, 10, 0);
+        controller.bulkCompleted(10, 10, 0);
+        Assert.assertEquals(1, runTasks());
+        Assert.assertEquals(4, controller.getConcurrencyLimit());
+        Mockito.verify(updater).refreshConcurrencyLimit();
+    }
+
+    @Test
+    public void boundsTest() {
+        Assert.assertEquals(8, controller.getConcurrencyLimit());
+
+        // Changed settings clamp the current limit
+        setBounds(1, 4);
+        Assert.assertEquals(4, controller.getConcurrencyLimit());
+        setBounds(6, 16);
+        Assert.assertEquals(6, controller.getConcurrencyLimit());
+
+        // A floor above the ceiling is ignored
+        setBounds(5, 3);
+        Assert.assertEquals(3, controller.getConcurrencyLimit());
+        nextWindow(SLOW, 1);
+        Assert.assertEquals(3, controller.getConcurrencyLimit());
+    }
+
+    @Test
+    public void listenerThreadTest() {
+        // Bulks reported within a window touch neither the settings nor the updater
+        controller.bulkCompleted(10, SLOW, 1);
+        Assert.assertTrue(tasks.isEmpty());
+        Mockito.verifyZeroInteractions(sm, updater);
+    }
+
+}
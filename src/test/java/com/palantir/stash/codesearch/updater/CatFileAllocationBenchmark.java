@@ -0,0 +1,115 @@
+/**
+ * Allocation-rate benchmark for cat-file reads. Replays synthetic cat-file --batch output from
+ * memory through CatFileOutputHandler, the way SearchUpdateJobImpl reads chunks of blobs, and
+ * reports the bytes allocated by the reading thread per object read. Each chunk is read either
+ * with a private buffer pool (so every handler allocates its own buffers) or with a pool shared
+ * across chunks (as CatFileProcessPool does).
+ *
+ * Requires a HotSpot JVM for per-thread allocation counters.
+ *
+ * Usage: CatFileAllocationBenchmark [numChunks] [filesPerChunk] [fileSize]
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.mockito.Mockito;
+import org.slf4j.LoggerFactory;
+
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class CatFileAllocationBenchmark {
+
+    private static final int ITERATIONS = 5;
+
+    private final PluginLoggerFactory plf;
+
+    private final com.sun.management.ThreadMXBean threadBean;
+
+    // Number of characters handed to the listener (keeps the scan from being optimized away)
+    private long charsRead;
+
+    public CatFileAllocationBenchmark() {
+        this.plf = Mockito.mock(PluginLoggerFactory.class);
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(CatFileAllocationBenchmark.class));
+        this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    // Builds the cat-file output for a chunk of files whose sizes vary around fileSize
+    private static byte[] createChunk(int numFiles, int fileSize, Random random) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < numFiles; ++i) {
+            int size = fileSize / 2 + random.nextInt(fileSize);
+            contents.setLength(0);
+            while (contents.length() < size) {
+                contents.append("line ").append(random.nextLong()).append('\n');
+            }
+            byte[] data = contents.toString().getBytes("UTF-8");
+            output.write(String.format("%040x blob %d\n", i, data.length).getBytes("UTF-8"));
+            output.write(data);
+            output.write('\n');
+        }
+        return output.toByteArray();
+    }
+
+    // Reads every chunk, returning the number of bytes allocated per object read
+    private double run(byte[][] chunks, int filesPerChunk, boolean sharedPool) {
+        CatFileOutputHandler.FileListener listener = new CatFileOutputHandler.FileListener() {
+
+            @Override
+            public void processFile(int index, FileContents contents) {
+                charsRead += contents == null ? 0 : contents.getCharCount();
+            }
+        };
+        ReadBufferPool bufferPool = new ReadBufferPool();
+        long threadId = Thread.currentThread().getId();
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (byte[] chunk : chunks) {
+            CatFileOutputHandler handler = sharedPool ?
+                new CatFileOutputHandler(plf, GlobalSettings.MAX_FILE_SIZE_DEFAULT, listener,
+                    bufferPool) :
+                new CatFileOutputHandler(plf, GlobalSettings.MAX_FILE_SIZE_DEFAULT, listener);
+            handler.process(new ByteArrayInputStream(chunk));
+            if (handler.getOutput() != filesPerChunk) {
+                throw new IllegalStateException("Read " + handler.getOutput() + " of " +
+                    filesPerChunk + " objects");
+            }
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - start;
+        return (double) allocated / (chunks.length * filesPerChunk);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numChunks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int filesPerChunk = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+        int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 96 * 1024;
+
+        Random random = new Random(0);
+        byte[][] chunks = new byte[numChunks][];
+        for (int i = 0; i < numChunks; ++i) {
+            chunks[i] = createChunk(filesPerChunk, fileSize, random);
+        }
+        CatFileAllocationBenchmark benchmark = new CatFileAllocationBenchmark();
+
+        // Warm up so that class loading and compilation aren't counted
+        benchmark.run(chunks, filesPerChunk, false);
+        benchmark.run(chunks, filesPerChunk, true);
+
+        for (boolean sharedPool : new boolean[] { false, true }) {
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < ITERATIONS; ++i) {
+                best = Math.min(best, benchmark.run(chunks, filesPerChunk, sharedPool));
+            }
+            System.out.printf("pool=%-7s chunks=%d files=%d best=%.0f bytes/object%n",
+                sharedPool ? "shared" : "private", numChunks, numChunks * filesPerChunk, best);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Benchmark for parallel cat-file reads. Builds a synthetic repository with a large number of
+ * files (using git fast-import), then reads every blob through CatFileOutputHandler with an
+ * increasing number of concurrent cat-file readers, mirroring how SearchUpdateJobImpl splits the
+ * initial index of a ref.
+ *
+ * Usage: CatFileBenchmark [numFiles] [maxParallelism] [fileSize]
+ */
+
+package com.palantir.stash.codesearch.updater;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.palantir.stash.codesearch.admin.GlobalSettings;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class CatFileBenchmark {
+
+    private static final int ITERATIONS = 3;
+
+    private final File repoDir;
+
+    private final PluginLoggerFactory plf;
+
+    // Total number of bytes and files handed to listeners (guarded by this)
+    private long bytesRead;
+    private int filesRead;
+
+    public CatFileBenchmark(File repoDir) {
+        this.repoDir = repoDir;
+        this.plf = Mockito.mock(PluginLoggerFactory.class);
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(CatFileBenchmark.class));
+    }
+
+    private Process startGit(String... args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add("git");
+        for (String arg : args) {
+            command.add(arg);
+        }
+        return new ProcessBuilder(command).directory(repoDir).start();
+    }
+
+    private static void waitFor(Process process) throws Exception {
+        if (process.waitFor() != 0) {
+            throw new IOException("git exited with status " + process.exitValue());
+        }
+    }
+
+    // Creates a single commit containing numFiles random text files
+    private void createRepository(int numFiles, int fileSize) throws Exception {
+        waitFor(startGit("init", "-q", "--bare", "."));
+        Process fastImport = startGit("fast-import", "--quiet");
+        OutputStream os = new BufferedOutputStream(fastImport.getOutputStream());
+        Random random = new Random(0);
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < numFiles; ++i) {
+            contents.setLength(0);
+            while (contents.length() < fileSize) {
+                contents.append("line ").append(random.nextLong()).append('\n');
+            }
+            byte[] data = contents.toString().getBytes("UTF-8");
+            os.write(("blob\nmark :" + (i + 1) + "\ndata " + data.length + "\n").getBytes("UTF-8"));
+            os.write(data);
+            os.write('\n');
+        }
+        os.write(("commit refs/heads/master\n" +
+            "committer Benchmark <benchmark@example.com> 0 +0000\ndata 0\n").getBytes("UTF-8"));
+        for (int i = 0; i < numFiles; ++i) {
+            os.write(("M 100644 :" + (i + 1) + " dir" + (i % 100) + "/file" + i + ".txt\n")
+                .getBytes("UTF-8"));
+        }
+        os.close();
+        waitFor(fastImport);
+    }
+
+    private List<String> listBlobs() throws Exception {
+        Process lsTree = startGit("ls-tree", "-r", "master");
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(lsTree.getInputStream(), "UTF-8"));
+        List<String> blobs = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            blobs.add(line.split("\\s+")[2]);
+        }
+        waitFor(lsTree);
+        return blobs;
+    }
+
+    // Reads a chunk of blobs with a one-shot cat-file, returning the number of objects read
+    private int readChunk(final List<String> blobs) throws Exception {
+        final Process catFile = startGit("cat-file", "--batch");
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                new CatFileInputHandler(blobs).process(catFile.getOutputStream());
+            }
+        });
+        writer.start();
+        CatFileOutputHandler handler = new CatFileOutputHandler(plf,
+            GlobalSettings.MAX_FILE_SIZE_DEFAULT, new CatFileOutputHandler.FileListener() {
+
+                @Override
+                public void processFile(int index, FileContents contents) {
+                    synchronized (CatFileBenchmark.this) {
+                        bytesRead += contents == null ? 0 : contents.getCharCount();
+                        ++filesRead;
+                    }
+                }
+            });
+        handler.process(catFile.getInputStream());
+        writer.join();
+        waitFor(catFile);
+        return handler.getOutput();
+    }
+
+    private long run(List<String> blobs, int parallelism, ExecutorService executor)
+        throws Exception {
+        int chunkSize = (blobs.size() + parallelism - 1) / parallelism;
+        long start = System.nanoTime();
+        List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+        for (final List<String> chunk : Lists.partition(blobs, chunkSize)) {
+            readers.add(executor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    return readChunk(chunk);
+                }
+            }));
+        }
+        int objectsRead = 0;
+        for (Future<Integer> reader : readers) {
+            objectsRead += reader.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (objectsRead != blobs.size()) {
+            throw new IllegalStateException("Read " + objectsRead + " of " + blobs.size() + " objects");
+        }
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int maxParallelism = args.length > 1 ? Integer.parseInt(args[1]) :
+            GlobalSettings.CAT_FILE_PARALLELISM_UB;
+        int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        File repoDir = File.createTempFile("scs-cat-file-benchmark", "");
+        repoDir.delete();
+        repoDir.mkdirs();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            CatFileBenchmark benchmark = new CatFileBenchmark(repoDir);
+            System.out.println("Creating repository with " + numFiles + " files in " + repoDir);
+            benchmark.createRepository(numFiles, fileSize);
+            List<String> blobs = benchmark.listBlobs();
+
+            // Warm up the page cache so that the first run isn't penalized
+            benchmark.run(blobs, 1, executor);
+
+            for (int parallelism = 1; parallelism <= maxParallelism; parallelism *= 2) {
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < ITERATIONS; ++i) {
+                    best = Math.min(best, benchmark.run(blobs, parallelism, executor));
+                }
+                System.out.printf("parallelism=%-3d files=%d best=%dms (%.0f files/s)%n",
+                    parallelism, blobs.size(), best / 1000000, blobs.size() * 1e9 / best);
+            }
+        } finally {
+            executor.shutdown();
+            FileUtils.deleteDirectory(repoDir);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.palantir.stash.codesearch.updater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.LoggerFactory;
+
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class CatFileOutputHandlerTest {
+
+    private static final String SHA_A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String SHA_B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    private static final String SHA_C = "cccccccccccccccccccccccccccccccccccccccc";
+    private static final String SHA_D = "dddddddddddddddddddddddddddddddddddddddd";
+    private static final String SHA_E = "eeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeee";
+
+    @Mock
+    private PluginLoggerFactory plf;
+
+    private List<Integer> indices;
+    private List<String> contents;
+
+    private CatFileOutputHandler.FileListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(CatFileOutputHandlerTest.class));
+
+        indices = new ArrayList<Integer>();
+        contents = new ArrayList<String>();
+        listener = new CatFileOutputHandler.FileListener() {
+
+            @Override
+            public void processFile(int index, FileContents fileContents) {
+                indices.add(index);
+                contents.add(fileContents == null ? null : fileContents.toString());
+            }
+        };
+    }
+
+    private static void writeObject(ByteArrayOutputStream os, String sha, String type, byte[] data)
+        throws IOException {
+        os.write((sha + " " + type + " " + data.length + "\n").getBytes("UTF-8"));
+        os.write(data);
+        os.write('\n');
+    }
+
+    @Test
+    public void singlePassTest() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeObject(os, SHA_A, "blob", "hello\nworld\n".getBytes("UTF-8"));
+        writeObject(os, SHA_B, "blob", new byte[] { 'a', 0, 'b' });
+        writeObject(os, SHA_C, "blob", new byte[64]);
+        os.write((SHA_D + " missing\n").getBytes("UTF-8"));
+        writeObject(os, SHA_E, "tree", new byte[4]);
+        writeObject(os, SHA_A, "blob", "".getBytes("UTF-8"));
+
+        CatFileOutputHandler handler = new CatFileOutputHandler(plf, 32, listener);
+        handler.process(new ByteArrayInputStream(os.toByteArray()));
+
+        Assert.assertEquals(Integer.valueOf(6), handler.getOutput());
+        Assert.assertEquals(3, indices.size());
+        Assert.assertEquals(Integer.valueOf(0), indices.get(0));
+        Assert.assertEquals("hello\nworld\n", contents.get(0));
+        Assert.assertEquals(Integer.valueOf(1), indices.get(1));
+        Assert.assertNull(contents.get(1));
+        Assert.assertEquals(Integer.valueOf(5), indices.get(2));
+        Assert.assertEquals("", contents.get(2));
+    }
+
+    @Test
+    public void truncatedOutputTest() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write((SHA_A + " blob 10\nabc").getBytes("UTF-8"));
+
+        CatFileOutputHandler handler = new CatFileOutputHandler(plf, 32, listener);
+        handler.process(new ByteArrayInputStream(os.toByteArray()));
+
+        Assert.assertNull(handler.getOutput());
+        Assert.assertTrue(indices.isEmpty());
+    }
+
+    @Test
+    public void bufferPoolTest() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeObject(os, SHA_A, "blob", "small".getBytes("UTF-8"));
+        writeObject(os, SHA_B, "blob", new byte[100 * 1024]);
+        byte[] output = os.toByteArray();
+
+        // The buffer grows to the largest file and is returned to the pool after reading
+        ReadBufferPool pool = new ReadBufferPool();
+        new CatFileOutputHandler(plf, 1024 * 1024, listener, pool).process(
+            new ByteArrayInputStream(output));
+        Assert.assertEquals(2, pool.getAllocatedCount());
+        Assert.assertEquals(ReadBufferPool.MIN_BUFFER_SIZE + 128 * 1024, pool.getPooledBytes());
+
+        // Later handlers reuse it
+        CatFileOutputHandler handler = new CatFileOutputHandler(plf, 1024 * 1024, listener, pool);
+        handler.process(new ByteArrayInputStream(output));
+        Assert.assertEquals(Integer.valueOf(2), handler.getOutput());
+        Assert.assertEquals(2, pool.getAllocatedCount());
+        Assert.assertEquals(2, pool.getReusedCount());
+        Assert.assertEquals("small", contents.get(2));
+    }
+
+    @Test
+    public void malformedHeaderTest() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write((SHA_A + " blob 1x\nabc\n").getBytes("UTF-8"));
+
+        CatFileOutputHandler handler = new CatFileOutputHandler(plf, 32, listener);
+        handler.process(new ByteArrayInputStream(os.toByteArray()));
+
+        Assert.assertNull(handler.getOutput());
+        Assert.assertTrue(indices.isEmpty());
+    }
+
+    @Test
+    public void truncatedTest() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write((SHA_A + " blob 3\nabc").getBytes("UTF-8"));
+
+        CatFileOutputHandler handler = new CatFileOutputHandler(plf, 32, listener);
+        handler.process(new ByteArrayInputStream(os.toByteArray()));
+
+        Assert.assertNull(handler.getOutput());
+        Assert.assertTrue(indices.isEmpty());
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.palantir.stash.codesearch.updater;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.LoggerFactory;
+
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class CommitLogOutputHandlerTest {
+
+    private static final String SHA_A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String SHA_B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+
+    @Mock
+    private PluginLoggerFactory plf;
+
+    private List<String> commits;
+
+    private CommitLogOutputHandler.CommitListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(CommitLogOutputHandlerTest.class));
+
+        commits = new ArrayList<String>();
+        listener = new CommitLogOutputHandler.CommitListener() {
+
+            @Override
+            public void processCommit(String hash, long timestamp, String authorName,
+                String authorEmail, String subject, String body) {
+                commits.add(hash.charAt(0) + "|" + timestamp + "|" + authorName + "|" +
+                    authorEmail + "|" + subject + "|" + body);
+            }
+        };
+    }
+
+    private static String record(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0) {
+                sb.append('\u0002');
+            }
+            sb.append(fields[i]);
+        }
+        return sb.append("\u0003\n").toString();
+    }
+
+    private CommitLogOutputHandler parse(String log) throws Exception {
+        CommitLogOutputHandler handler = new CommitLogOutputHandler(plf, listener);
+        handler.process(new ByteArrayInputStream(log.getBytes("UTF-8")));
+        return handler;
+    }
+
+    @Test
+    public void parseTest() throws Exception {
+        CommitLogOutputHandler handler = parse(
+            record(SHA_A, "1400000000", "Alice", "alice@example.com", "Subject", "Body\n\nMore\n") +
+            record("short", "1", "x", "y", "z", "") +
+            record(SHA_B, "1400000001", "Bob", "bob@example.com", "No body", ""));
+
+        Assert.assertEquals(Integer.valueOf(2), handler.getOutput());
+        Assert.assertEquals(2, commits.size());
+        Assert.assertEquals("a|1400000000000|Alice|alice@example.com|Subject|Body\n\nMore\n",
+            commits.get(0));
+        Assert.assertEquals("b|1400000001000|Bob|bob@example.com|No body|", commits.get(1));
+    }
+
+    @Test
+    public void emptyLogTest() throws Exception {
+        CommitLogOutputHandler handler = parse("\n");
+
+        Assert.assertEquals(Integer.valueOf(0), handler.getOutput());
+        Assert.assertTrue(commits.isEmpty());
+    }
+
+    @Test
+    public void truncatedOutputTest() throws Exception {
+        CommitLogOutputHandler handler = parse(
+            record(SHA_A, "1400000000", "Alice", "alice@example.com", "Subject", "") +
+            SHA_B + "\u00021400000001\u0002Bob");
+
+        Assert.assertNull(handler.getOutput());
+        Assert.assertEquals(1, commits.size());
+    }
+
+}
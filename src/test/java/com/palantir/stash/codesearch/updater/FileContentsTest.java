@@ -0,0 +1,76 @@
+package com.palantir.stash.codesearch.updater;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FileContentsTest {
+
+    private static FileContents scan(byte[] bytes) {
+        // Pad the buffer, as cat-file buffers are usually larger than the file
+        byte[] buffer = new byte[bytes.length + 16];
+        System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+        return FileContents.fromBytes(buffer, bytes.length);
+    }
+
+    private static void assertScanned(String str) throws Exception {
+        FileContents contents = scan(str.getBytes("UTF-8"));
+        Assert.assertNotNull(contents);
+        Assert.assertEquals(str, contents.toString());
+        Assert.assertEquals(str.length(), contents.getCharCount());
+        Assert.assertEquals(FileContents.countLines(str), contents.getLineCount());
+    }
+
+    @Test
+    public void countsTest() throws Exception {
+        assertScanned("");
+        assertScanned("a");
+        assertScanned("hello\nworld\n");
+        assertScanned("\n\n\n");
+        assertScanned("dos\r\nmac\runix\nend");
+        assertScanned("café\n漢字\r\n😀 surrogate pair");
+        Assert.assertEquals(3, scan("a\r\nb\rc".getBytes("UTF-8")).getLineCount());
+    }
+
+    @Test
+    public void binaryTest() throws Exception {
+        Assert.assertNull(scan(new byte[] { 'a', 0, 'b' }));
+        Assert.assertNull(scan(new byte[] { 'a', 127 }));
+        // Binary bytes are found after malformed UTF-8 too
+        Assert.assertNull(scan(new byte[] { (byte) 0xff, 'a', 1 }));
+        Assert.assertNotNull(scan("tab\tseparated\f".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void malformedTest() throws Exception {
+        byte[][] malformed = {
+            { 'a', (byte) 0xc3 }, // Truncated
+            { (byte) 0xc0, (byte) 0xaf }, // Overlong
+            { (byte) 0xe0, (byte) 0x80, (byte) 0xaf }, // Overlong
+            { (byte) 0xed, (byte) 0xa0, (byte) 0x80 }, // Surrogate
+            { (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80 }, // Above U+10FFFF
+            { 'a', (byte) 0x80, 'b' }, // Unexpected continuation byte
+            { (byte) 0xe9, 't', (byte) 0xe9 }, // Latin-1
+        };
+        for (byte[] bytes : malformed) {
+            // Decoded with the platform charset, like before
+            String expected = new String(bytes);
+            FileContents contents = scan(bytes);
+            Assert.assertEquals(expected, contents.toString());
+            Assert.assertEquals(expected.length(), contents.getCharCount());
+        }
+    }
+
+    @Test
+    public void jsonTest() throws Exception {
+        String str = "\"quoted\" \\ back\\slash\ttab\r\né漢😀\u000b";
+        XContentBuilder builder = jsonBuilder().startObject();
+        scan(str.getBytes("UTF-8")).addField(builder, "contents").endObject();
+        Assert.assertEquals(str,
+            XContentHelper.convertToMap(builder.bytes(), false).v2().get("contents"));
+    }
+
+}
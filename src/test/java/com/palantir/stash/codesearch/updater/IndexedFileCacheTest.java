@@ -0,0 +1,90 @@
+package com.palantir.stash.codesearch.updater;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.elasticsearch.client.Client;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+import com.palantir.stash.codesearch.search.SearchFilterUtils;
+
+public class IndexedFileCacheTest {
+
+    @Test
+    public void fingerprintSetTest() {
+        IndexedFileCache.FingerprintSet set = new IndexedFileCache.FingerprintSet();
+        // Enough entries to force several resizes
+        for (int i = 0; i < 10000; ++i) {
+            Assert.assertTrue(set.add(IndexedFileCache.fingerprint("PROJ^repo^" + i + "^:/file")));
+        }
+        Assert.assertFalse(set.add(IndexedFileCache.fingerprint("PROJ^repo^42^:/file")));
+        Assert.assertEquals(10000, set.size());
+        for (int i = 0; i < 10000; ++i) {
+            Assert.assertTrue(set.contains(IndexedFileCache.fingerprint("PROJ^repo^" + i + "^:/file")));
+        }
+        for (int i = 10000; i < 20000; ++i) {
+            Assert.assertFalse(set.contains(IndexedFileCache.fingerprint("PROJ^repo^" + i + "^:/file")));
+        }
+    }
+
+    @Test
+    public void fingerprintNeverZeroTest() {
+        Assert.assertTrue(IndexedFileCache.fingerprint("") != 0);
+        Assert.assertTrue(IndexedFileCache.fingerprint("a") != IndexedFileCache.fingerprint("b"));
+    }
+
+    @Test
+    public void fingerprintSetAddAllTest() {
+        IndexedFileCache.FingerprintSet set = new IndexedFileCache.FingerprintSet();
+        IndexedFileCache.FingerprintSet other = new IndexedFileCache.FingerprintSet();
+        for (int i = 0; i < 2000; ++i) {
+            set.add(IndexedFileCache.fingerprint("a" + i));
+            other.add(IndexedFileCache.fingerprint("a" + (i + 1000)));
+        }
+        Assert.assertEquals(1000, set.addAll(other));
+        Assert.assertEquals(3000, set.size());
+        Assert.assertTrue(set.contains(IndexedFileCache.fingerprint("a2999")));
+    }
+
+    @Test
+    public void backgroundLoadTest() {
+        PluginLoggerFactory plf = Mockito.mock(PluginLoggerFactory.class);
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(IndexedFileCacheTest.class));
+        Project project = Mockito.mock(Project.class);
+        Mockito.when(project.getKey()).thenReturn("PROJ");
+        Repository repository = Mockito.mock(Repository.class);
+        Mockito.when(repository.getProject()).thenReturn(project);
+        Mockito.when(repository.getSlug()).thenReturn("repo");
+        Client client = Mockito.mock(Client.class);
+
+        final List<Runnable> loads = new ArrayList<Runnable>();
+        IndexedFileCache cache = new IndexedFileCache(plf, Mockito.mock(SearchFilterUtils.class),
+            new Executor() {
+
+                @Override
+                public void execute(Runnable task) {
+                    loads.add(task);
+                }
+            });
+
+        // Loading is handed off once per repository, and nothing is known until it finishes
+        cache.ensureLoaded(client, repository);
+        cache.ensureLoaded(client, repository);
+        Assert.assertEquals(1, loads.size());
+        IndexedFileCache.FingerprintSet written = new IndexedFileCache.FingerprintSet();
+        written.add(IndexedFileCache.fingerprint("file"));
+        cache.addAll(repository, written);
+        Assert.assertFalse(cache.isKnownPresent(repository, "file"));
+        Assert.assertFalse(cache.isKnownMissing(repository, "other"));
+        Mockito.verifyZeroInteractions(client);
+    }
+
+}
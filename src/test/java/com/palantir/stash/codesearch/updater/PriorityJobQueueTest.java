@@ -0,0 +1,191 @@
+package com.palantir.stash.codesearch.updater;
+
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PriorityJobQueueTest {
+
+    private static final long NOW = 1400000000000L;
+
+    private static final String TENANT = "PROJ^repo";
+
+    private PriorityJobQueue queue;
+
+    // Priority class each job was added with
+    private Map<Runnable, IndexingPriority> priorities;
+
+    @Before
+    public void setUp() {
+        queue = new PriorityJobQueue();
+        priorities = new IdentityHashMap<Runnable, IndexingPriority>();
+    }
+
+    private Runnable addJob(IndexingPriority priority, long enqueueTime) {
+        return addJob(priority, TENANT, enqueueTime);
+    }
+
+    private Runnable addJob(IndexingPriority priority, String tenant, long enqueueTime) {
+        Runnable job = new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        };
+        priorities.put(job, priority);
+        queue.add(job, priority, tenant, enqueueTime);
+        return job;
+    }
+
+    @Test
+    public void weightedTest() {
+        for (IndexingPriority priority : IndexingPriority.values()) {
+            for (int i = 0; i < 100; ++i) {
+                addJob(priority, NOW);
+            }
+        }
+
+        // Every round of 15 jobs is split according to the weights 8:4:2:1
+        Map<IndexingPriority, Integer> counts =
+            new EnumMap<IndexingPriority, Integer>(IndexingPriority.class);
+        for (int i = 0; i < 30; ++i) {
+            IndexingPriority priority = priorities.get(queue.poll(NOW));
+            Integer count = counts.get(priority);
+            counts.put(priority, count == null ? 1 : count + 1);
+        }
+        Assert.assertEquals(Integer.valueOf(16), counts.get(IndexingPriority.DEFAULT_BRANCH));
+        Assert.assertEquals(Integer.valueOf(8), counts.get(IndexingPriority.OTHER_REF));
+        Assert.assertEquals(Integer.valueOf(4), counts.get(IndexingPriority.REPOSITORY_REINDEX));
+        Assert.assertEquals(Integer.valueOf(2), counts.get(IndexingPriority.FULL_REINDEX));
+
+        Assert.assertEquals(Integer.valueOf(100 - 16),
+            queue.getDepths().get(IndexingPriority.DEFAULT_BRANCH));
+        Assert.assertEquals(Integer.valueOf(100 - 2),
+            queue.getDepths().get(IndexingPriority.FULL_REINDEX));
+    }
+
+    @Test
+    public void agingTest() {
+        long waited = NOW + 20 * PriorityJobQueue.AGING_INTERVAL_MS;
+        Runnable reindex = addJob(IndexingPriority.FULL_REINDEX, NOW);
+        for (int i = 0; i < 10; ++i) {
+            addJob(IndexingPriority.DEFAULT_BRANCH, waited);
+        }
+
+        // Without aging, the reindex job would only get every ninth turn
+        Assert.assertSame(reindex, queue.poll(waited));
+        Assert.assertEquals(IndexingPriority.DEFAULT_BRANCH, priorities.get(queue.poll(waited)));
+    }
+
+    @Test
+    public void raisePriorityTest() {
+        Runnable reindex = addJob(IndexingPriority.FULL_REINDEX, NOW);
+        Runnable fresh = addJob(IndexingPriority.DEFAULT_BRANCH, NOW + 1);
+
+        Assert.assertTrue(queue.raisePriority(reindex, IndexingPriority.DEFAULT_BRANCH));
+        Assert.assertFalse(queue.raisePriority(reindex, IndexingPriority.OTHER_REF));
+        Assert.assertEquals(Integer.valueOf(0),
+            queue.getDepths().get(IndexingPriority.FULL_REINDEX));
+
+        // The moved job keeps its place ahead of younger jobs of its new class
+        Assert.assertSame(reindex, queue.poll(NOW + 1));
+        Assert.assertSame(fresh, queue.poll(NOW + 1));
+    }
+
+    @Test
+    public void idleTest() {
+        Assert.assertTrue(queue.isIdle());
+        Assert.assertNull(queue.poll(NOW));
+        addJob(IndexingPriority.OTHER_REF, NOW);
+        Assert.assertFalse(queue.isIdle());
+        Runnable job = queue.poll(NOW);
+        Assert.assertNotNull(job);
+        Assert.assertFalse(queue.isIdle());
+        queue.finished(job, NOW);
+        Assert.assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void freedSlotTest() {
+        for (int i = 0; i < 10; ++i) {
+            addJob(IndexingPriority.DEFAULT_BRANCH, "BUSY^repo", NOW);
+        }
+        Runnable quiet = addJob(IndexingPriority.DEFAULT_BRANCH, "QUIET^repo", NOW + 1);
+
+        // The busy tenant's first job runs, then the quiet tenant gets the next slot even though
+        // its job is younger
+        Runnable busy = queue.poll(NOW + 1);
+        Assert.assertNotSame(quiet, busy);
+        Assert.assertSame(quiet, queue.poll(NOW + 1));
+
+        // Spare slots go to the busy tenant
+        Assert.assertNotNull(queue.poll(NOW + 1));
+
+        queue.finished(busy, NOW + 1001);
+        List<IndexingTenantStats> stats = queue.getTenantStats();
+        Assert.assertEquals(2, stats.size());
+        Assert.assertEquals("BUSY^repo", stats.get(0).getTenant());
+        Assert.assertEquals(8, stats.get(0).getQueued());
+        Assert.assertEquals(1, stats.get(0).getRunning());
+        Assert.assertEquals(1, stats.get(0).getCompleted());
+        Assert.assertEquals(1000, stats.get(0).getBusyMs());
+        Assert.assertEquals("QUIET^repo", stats.get(1).getTenant());
+        Assert.assertEquals(0, stats.get(1).getQueued());
+        Assert.assertEquals(1, stats.get(1).getRunning());
+    }
+
+    @Test
+    public void projectOrderTest() {
+        Runnable big1 = addJob(IndexingPriority.DEFAULT_BRANCH, "BIG^repo1", NOW);
+        Runnable big2 = addJob(IndexingPriority.DEFAULT_BRANCH, "BIG^repo2", NOW);
+        Runnable big3 = addJob(IndexingPriority.DEFAULT_BRANCH, "BIG^repo3", NOW);
+        Runnable small = addJob(IndexingPriority.DEFAULT_BRANCH, "SMALL^repo", NOW + 1);
+
+        // Once one repository of the big project runs, the small project goes next, even though
+        // other repositories of the big project have no running jobs and older jobs
+        Assert.assertSame(big1, queue.poll(NOW + 1));
+        Assert.assertSame(small, queue.poll(NOW + 1));
+
+        // Within the big project, repositories share the remaining slots
+        Runnable next = queue.poll(NOW + 1);
+        Assert.assertTrue(next == big2 || next == big3);
+        queue.finished(big1, NOW + 2);
+        queue.finished(small, NOW + 2);
+        Assert.assertNotNull(queue.poll(NOW + 2));
+        Assert.assertEquals(Integer.valueOf(0),
+            queue.getDepths().get(IndexingPriority.DEFAULT_BRANCH));
+    }
+
+    @Test
+    public void idleTenantTest() {
+        // Tenants without queued or running jobs are only kept up to a limit, most recent first
+        int count = PriorityJobQueue.MAX_IDLE_TENANTS + 10;
+        for (int i = 0; i < count; ++i) {
+            addJob(IndexingPriority.OTHER_REF, String.format("PROJ^repo%03d", i), NOW + i);
+        }
+        for (int i = 0; i < count; ++i) {
+            queue.finished(queue.poll(NOW + count), NOW + count + i);
+        }
+        List<IndexingTenantStats> stats = queue.getTenantStats();
+        Assert.assertEquals(PriorityJobQueue.MAX_IDLE_TENANTS, stats.size());
+        Assert.assertEquals("PROJ^repo010", stats.get(0).getTenant());
+        Assert.assertEquals(1, stats.get(0).getCompleted());
+
+        // A returning tenant keeps its counters, and busy tenants are never dropped
+        addJob(IndexingPriority.OTHER_REF, "PROJ^repo010", NOW + 2 * count);
+        for (int i = 0; i < count; ++i) {
+            addJob(IndexingPriority.OTHER_REF, String.format("OTHER^repo%03d", i), NOW);
+        }
+        stats = queue.getTenantStats();
+        Assert.assertEquals(PriorityJobQueue.MAX_IDLE_TENANTS + count, stats.size());
+        Assert.assertEquals("PROJ^repo010", stats.get(count).getTenant());
+        Assert.assertEquals(1, stats.get(count).getQueued());
+        Assert.assertEquals(1, stats.get(count).getCompleted());
+    }
+
+}
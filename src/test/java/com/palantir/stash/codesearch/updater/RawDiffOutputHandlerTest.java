@@ -0,0 +1,103 @@
+package com.palantir.stash.codesearch.updater;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.LoggerFactory;
+
+import com.palantir.stash.codesearch.logger.PluginLoggerFactory;
+
+public class RawDiffOutputHandlerTest {
+
+    private static final String NULL_SHA = "0000000000000000000000000000000000000000";
+    private static final String SHA_A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String SHA_B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+
+    @Mock
+    private PluginLoggerFactory plf;
+
+    private List<String> changes;
+
+    private RawDiffOutputHandler.ChangeListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(plf.getLogger(Mockito.anyString())).thenReturn(
+            LoggerFactory.getLogger(RawDiffOutputHandlerTest.class));
+
+        changes = new ArrayList<String>();
+        listener = new RawDiffOutputHandler.ChangeListener() {
+
+            @Override
+            public void processChange(RawDiffOutputHandler.ChangeType type, String oldBlob,
+                String newBlob, String oldPath, String newPath) {
+                changes.add(type + " " + oldBlob.charAt(0) + newBlob.charAt(0) + " " +
+                    oldPath + " " + newPath);
+            }
+        };
+    }
+
+    private static String entry(String oldBlob, String newBlob, String status, String... paths) {
+        StringBuilder sb = new StringBuilder(":100644 100644 " + oldBlob + " " + newBlob + " " +
+            status + "\u0000");
+        for (String path : paths) {
+            sb.append(path).append('\u0000');
+        }
+        return sb.toString();
+    }
+
+    private RawDiffOutputHandler parse(String diff) throws Exception {
+        RawDiffOutputHandler handler = new RawDiffOutputHandler(plf, listener);
+        handler.process(new ByteArrayInputStream(diff.getBytes("UTF-8")));
+        return handler;
+    }
+
+    @Test
+    public void parseTest() throws Exception {
+        RawDiffOutputHandler handler = parse(
+            entry(NULL_SHA, SHA_A, "A", "dir/new file.txt") +
+            entry(SHA_A, SHA_B, "M", "modified.txt") +
+            entry(SHA_A, SHA_B, "T", "typechange") +
+            entry(SHA_A, NULL_SHA, "D", "deleted.txt") +
+            entry(SHA_A, SHA_B, "R087", "from.txt", "to.txt") +
+            entry(SHA_A, SHA_A, "C100", "orig.txt", "copy.txt") +
+            entry(NULL_SHA, NULL_SHA, "U", "unmerged.txt") +
+            entry(NULL_SHA, SHA_B, "A", "\u00fcnicode.txt"));
+
+        Assert.assertEquals(Integer.valueOf(8), handler.getOutput());
+        Assert.assertEquals(7, changes.size());
+        Assert.assertEquals("ADD 0a dir/new file.txt dir/new file.txt", changes.get(0));
+        Assert.assertEquals("MODIFY ab modified.txt modified.txt", changes.get(1));
+        Assert.assertEquals("MODIFY ab typechange typechange", changes.get(2));
+        Assert.assertEquals("DELETE a0 deleted.txt deleted.txt", changes.get(3));
+        Assert.assertEquals("RENAME ab from.txt to.txt", changes.get(4));
+        Assert.assertEquals("COPY aa orig.txt copy.txt", changes.get(5));
+        Assert.assertEquals("ADD 0b \u00fcnicode.txt \u00fcnicode.txt", changes.get(6));
+    }
+
+    @Test
+    public void emptyDiffTest() throws Exception {
+        RawDiffOutputHandler handler = parse("");
+
+        Assert.assertEquals(Integer.valueOf(0), handler.getOutput());
+        Assert.assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void truncatedOutputTest() throws Exception {
+        RawDiffOutputHandler handler = parse(entry(SHA_A, SHA_B, "M", "ok.txt") +
+            ":100644 100644 " + SHA_A + " " + SHA_B + " R100\u0000from.txt\u0000");
+
+        Assert.assertNull(handler.getOutput());
+        Assert.assertEquals(1, changes.size());
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.palantir.stash.codesearch.updater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadBufferPoolTest {
+
+    @Test
+    public void sizeClassTest() {
+        ReadBufferPool pool = new ReadBufferPool();
+        Assert.assertEquals(ReadBufferPool.MIN_BUFFER_SIZE, pool.acquire(0).length);
+        Assert.assertEquals(ReadBufferPool.MIN_BUFFER_SIZE, pool.acquire(1000).length);
+        Assert.assertEquals(128 * 1024, pool.acquire(64 * 1024 + 1).length);
+        Assert.assertEquals(ReadBufferPool.MAX_BUFFER_SIZE,
+            pool.acquire(ReadBufferPool.MAX_BUFFER_SIZE).length);
+        try {
+            pool.acquire(ReadBufferPool.MAX_BUFFER_SIZE + 1);
+            Assert.fail("Expected buffers above the maximum size to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void reuseTest() {
+        ReadBufferPool pool = new ReadBufferPool();
+        byte[] buffer = pool.acquire(200 * 1024);
+        pool.release(buffer);
+        Assert.assertSame(buffer, pool.acquire(150 * 1024));
+        Assert.assertNotSame(buffer, pool.acquire(150 * 1024));
+        Assert.assertEquals(1, pool.getReusedCount());
+        Assert.assertEquals(2, pool.getAllocatedCount());
+
+        // Arrays that didn't come from a pool are ignored
+        pool.release(new byte[1000]);
+        Assert.assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void boundTest() {
+        ReadBufferPool pool = new ReadBufferPool();
+        int count = (int) (ReadBufferPool.MAX_POOLED_BYTES / ReadBufferPool.MAX_BUFFER_SIZE) + 2;
+        byte[][] buffers = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            buffers[i] = pool.acquire(ReadBufferPool.MAX_BUFFER_SIZE);
+        }
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        Assert.assertEquals(ReadBufferPool.MAX_POOLED_BYTES, pool.getPooledBytes());
+    }
+
+}